@@ -1,5 +1,8 @@
 package de.lmu.dbs.jforest.core;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+
 /**
  * Bas class for classification objects. Aclassification object holds information
  * for the tree nodes, particularly which values (coordinates) it should process.
@@ -21,5 +24,37 @@ public abstract class Classification {
 	 * @return
 	 */
 	public abstract int getSize();
+	
+	/**
+	 * Determines if the classification can be written by compress(OutputStream), used to spill 
+	 * classifications of waiting nodes to disk (see ClassificationSpill). False by default.
+	 * 
+	 * @return
+	 */
+	public boolean isCompressible() {
+		return false;
+	}
+	
+	/**
+	 * Writes the values in a compact serialized form to out.
+	 * 
+	 * @param out
+	 * @throws Exception
+	 */
+	public void compress(OutputStream out) throws Exception {
+		throw new Exception("Compression is not supported by " + getClass().getName());
+	}
+	
+	/**
+	 * Restores the values from data written by compress(OutputStream). The classification has been 
+	 * cleared before, but all other attributes (i.e. layout information) are still set.
+	 * 
+	 * @param in
+	 * @param size number of values
+	 * @throws Exception
+	 */
+	public void restore(InputStream in, int size) throws Exception {
+		throw new Exception("Restoring is not supported by " + getClass().getName());
+	}
 }
 
@@ -0,0 +1,178 @@
+package de.lmu.dbs.jforest.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Holds the classifications of a node waiting to be grown in a scratch file, instead of the heap.
+ * The classification objects themselves stay in their list, but are cleared, so they only keep their
+ * layout information. restore() reads the values back and deletes the file.
+ * <br><br>
+ * The values are streamed through a small buffer in both directions, so spilling needs no
+ * additional heap for the compressed data. The file is not memory mapped, as each value is written
+ * and read exactly once in sequence, and a closed file can be deleted right after restoring.
+ * Files which are still pending when the JVM exits are deleted by one shutdown hook for all spills.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class ClassificationSpill {
+
+	/**
+	 * Size of the stream buffers in bytes
+	 */
+	public static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Scratch files which have not been restored yet
+	 */
+	private static Set<File> pendingFiles = new HashSet<File>();
+
+	/**
+	 * Deletes the pending scratch files on exit
+	 */
+	private static Thread cleanup = null;
+
+	/**
+	 * Scratch file
+	 */
+	private File file;
+
+	/**
+	 * Number of values of each classification
+	 */
+	private int[] sizes;
+
+	/**
+	 * Total number of bytes in the scratch file
+	 */
+	private long bytes = 0;
+
+	/**
+	 * Spills the classifications to a new scratch file in folder. Returns null if one of
+	 * the classifications does not support compression, nothing is spilled then.
+	 *
+	 * @param classification
+	 * @param folder scratch folder, or null for the system´s temporary folder
+	 * @return
+	 * @throws Exception
+	 */
+	public static ClassificationSpill spill(List<Classification> classification, String folder) throws Exception {
+		int num = classification.size();
+		for(int i=0; i<num; i++) {
+			if (!classification.get(i).isCompressible()) return null;
+		}
+		ClassificationSpill ret = new ClassificationSpill();
+		ret.sizes = new int[num];
+		File dir = (folder != null) ? new File(folder) : null;
+		ret.file = File.createTempFile("jforest_spill_", ".tmp", dir);
+		register(ret.file);
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(ret.file), BUFFER_SIZE);
+			try {
+				for(int i=0; i<num; i++) {
+					ret.sizes[i] = classification.get(i).getSize();
+					classification.get(i).compress(out);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (Exception e) {
+			ret.delete();
+			throw e;
+		}
+		ret.bytes = ret.file.length();
+		for(int i=0; i<num; i++) {
+			classification.get(i).clear();
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads the values back into the (cleared) classifications, and deletes the scratch file.
+	 *
+	 * @param classification the list which has been spilled
+	 * @throws Exception
+	 */
+	public void restore(List<Classification> classification) throws Exception {
+		if (classification.size() != sizes.length) throw new Exception("Spilled " + sizes.length + " classifications, but got " + classification.size() + " to restore");
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+			try {
+				for(int i=0; i<sizes.length; i++) {
+					classification.get(i).restore(in, sizes[i]);
+				}
+			} finally {
+				in.close();
+			}
+		} finally {
+			delete();
+		}
+	}
+
+	/**
+	 * Returns the size of the scratch file in bytes.
+	 *
+	 * @return
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Internal: Deletes the scratch file.
+	 */
+	private void delete() {
+		file.delete();
+		synchronized(ClassificationSpill.class) {
+			pendingFiles.remove(file);
+		}
+	}
+
+	/**
+	 * Internal: Registers a scratch file to be deleted on exit, if it is not restored until then.
+	 *
+	 * @param file
+	 */
+	private static synchronized void register(File file) {
+		if (cleanup == null) {
+			cleanup = new Thread() {
+				public void run() {
+					deletePendingFiles();
+				}
+			};
+			Runtime.getRuntime().addShutdownHook(cleanup);
+		}
+		pendingFiles.add(file);
+	}
+
+	/**
+	 * Deletes all scratch files which have not been restored yet.
+	 */
+	public static synchronized void deletePendingFiles() {
+		for(File f : new ArrayList<File>(pendingFiles)) {
+			f.delete();
+		}
+		pendingFiles.clear();
+	}
+
+	/**
+	 * Determines if the used heap exceeds the given fraction of the maximum heap size.
+	 *
+	 * @param watermark
+	 * @return
+	 */
+	public static boolean isAboveWatermark(double watermark) {
+		Runtime r = Runtime.getRuntime();
+		return (r.totalMemory() - r.freeMemory()) > watermark * r.maxMemory();
+	}
+}
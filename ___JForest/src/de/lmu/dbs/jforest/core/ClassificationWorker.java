@@ -13,13 +13,13 @@ public class ClassificationWorker extends Worker {
 
 	private Forest forest;
 	
-	private byte[][] data;
+	private Object data;
 	
 	private float[][][] dataForest;
 	
 	private int maxDepth;
 	
-	public ClassificationWorker(WorkerGroup parent, Forest forest, byte[][] data, float[][][] dataForest, int maxDepth) {
+	public ClassificationWorker(WorkerGroup parent, Forest forest, Object data, float[][][] dataForest, int maxDepth) {
 		super(parent);
 		this.forest = forest;
 		this.data = data;
@@ -135,6 +135,21 @@ public abstract class Dataset {
 		return samples[index];
 	}
 	
+	/**
+	 * Returns the maximum number of times a sample has been included.
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	public int getMaxSampled() throws Exception {
+		if (samples == null) init();
+		int ret = 0;
+		for(int i=0; i<samples.length; i++) {
+			if (samples[i] > ret) ret = samples[i];
+		}
+		return ret;
+	}
+	
 	/**
 	 * Returns a clone of the samples array.
 	 * 
@@ -0,0 +1,91 @@
+package de.lmu.dbs.jforest.core;
+
+/**
+ * Reusable buffers for evaluating the feature candidates of a node. Each tree instance
+ * (and so each growing thread) holds one of these, so the count and gain arrays
+ * are not allocated again for each node. The buffers grow if more features are requested
+ * than they have been created for.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class EvaluationBuffers {
+
+	/**
+	 * Class counts for values going left: [feature][threshold][class]
+	 */
+	public long[][][] countClassesLeft;
+
+	/**
+	 * Class counts for values going right: [feature][threshold][class]
+	 */
+	public long[][][] countClassesRight;
+
+	/**
+	 * Information gains: [feature][threshold]
+	 */
+	public double[][] gain;
+
+	/**
+	 * Buffer for the feature objects of a node, for use in evaluation implementations.
+	 */
+	public Object[] features;
+
+	/**
+	 * Number of threshold candidates per feature
+	 */
+	private int numOfThresholds;
+
+	/**
+	 * Number of classes
+	 */
+	private int numOfClasses;
+
+	/**
+	 * Creates the buffers.
+	 *
+	 * @param numOfFeatures
+	 * @param numOfThresholds
+	 * @param numOfClasses
+	 */
+	public EvaluationBuffers(int numOfFeatures, int numOfThresholds, int numOfClasses) {
+		this.numOfThresholds = numOfThresholds;
+		this.numOfClasses = numOfClasses;
+		allocate(numOfFeatures);
+	}
+
+	/**
+	 * Internal: (Re)allocates all buffers.
+	 *
+	 * @param numOfFeatures
+	 */
+	private void allocate(int numOfFeatures) {
+		countClassesLeft = new long[numOfFeatures][numOfThresholds][numOfClasses];
+		countClassesRight = new long[numOfFeatures][numOfThresholds][numOfClasses];
+		gain = new double[numOfFeatures][numOfThresholds];
+		features = new Object[numOfFeatures];
+	}
+
+	/**
+	 * Prepares the buffers for the evaluation of numOfFeatures features: Resets
+	 * the counts of these, growing the buffers if necessary.
+	 *
+	 * @param numOfFeatures
+	 */
+	public void reset(int numOfFeatures) {
+		if (numOfFeatures > gain.length) {
+			allocate(numOfFeatures);
+			return;
+		}
+		for(int i=0; i<numOfFeatures; i++) {
+			for(int j=0; j<numOfThresholds; j++) {
+				long[] l = countClassesLeft[i][j];
+				long[] r = countClassesRight[i][j];
+				for(int c=0; c<numOfClasses; c++) {
+					l[c] = 0;
+					r[c] = 0;
+				}
+			}
+		}
+	}
+}
@@ -23,6 +23,42 @@ public abstract class Feature implements Serializable {
 	 */
 	public double threshold;
 	
+	/**
+	 * Index of the feature in a fixed candidate pool plus one, or zero if the feature has
+	 * not been taken from a pool (see core2d.ResponseStore). Not serialized.
+	 */
+	private transient int poolSlot = 0;
+	
+	/**
+	 * Returns a discretized description of the feature parameters, one bin index per parameter,
+	 * used to learn which parameter ranges win splits (see FeatureProposal). The default 
+	 * returns null, so only the feature class is taken into account.
+	 * 
+	 * @return
+	 */
+	public int[] getParameterBins() {
+		return null;
+	}
+	
+	/**
+	 * Marks the feature as taken from a fixed candidate pool.
+	 * 
+	 * @param index index in the pool
+	 */
+	public void setPoolIndex(int index) {
+		poolSlot = index + 1;
+	}
+	
+	/**
+	 * Returns the index of the feature in its candidate pool, or -1 if it has
+	 * not been taken from a pool.
+	 * 
+	 * @return
+	 */
+	public int getPoolIndex() {
+		return poolSlot - 1;
+	}
+	
 	/**
 	 * Factory method.
 	 * 
@@ -0,0 +1,226 @@
+package de.lmu.dbs.jforest.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adaptive proposal of feature candidates. Keeps statistics of the parameters of all
+ * winner features per depth (see Feature.getParameterBins()), recorded from the trees grown so
+ * far and optionally from a prior forest. Out of an oversampled set of random candidates,
+ * the ones with frequently winning parameters are then chosen with higher probability.
+ * <br><br>
+ * The parameters are treated as independent: The weight of a candidate is the product of the
+ * smoothed relative frequencies of its feature class and each of its parameter bins.
+ * Depths with too few records fall back to the statistics of all depths. Candidates
+ * not providing parameter bins get the neutral weight 1.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class FeatureProposal {
+
+	/**
+	 * Minimum number of records at a depth to use its own statistics
+	 */
+	public static final int MIN_RECORDS = 20;
+
+	/**
+	 * Pseudo count added to each bin, to keep exploring rarely winning parameters
+	 */
+	private double prior;
+
+	/**
+	 * Statistics per depth. The last entry holds the statistics of all depths.
+	 */
+	private Stats[] stats;
+
+	/**
+	 * Statistics of the winner features of one depth.
+	 *
+	 * @author Thomas Weber
+	 *
+	 */
+	private class Stats {
+
+		/**
+		 * Number of records
+		 */
+		public long total = 0;
+
+		/**
+		 * Counts per feature class
+		 */
+		public Map<String, Long> classCounts = new HashMap<String, Long>();
+
+		/**
+		 * Counts per feature class and parameter: [parameter index] -> (bin -> count)
+		 */
+		public Map<String, List<Map<Integer, Long>>> binCounts = new HashMap<String, List<Map<Integer, Long>>>();
+
+		/**
+		 * Adds a winner feature.
+		 *
+		 * @param f
+		 */
+		public void add(Feature f) {
+			String cls = f.getClass().getName();
+			total++;
+			increment(classCounts, cls);
+			int[] bins = f.getParameterBins();
+			if (bins == null) return;
+			List<Map<Integer, Long>> c = binCounts.get(cls);
+			if (c == null) {
+				c = new ArrayList<Map<Integer, Long>>();
+				binCounts.put(cls, c);
+			}
+			for(int i=0; i<bins.length; i++) {
+				if (c.size() <= i) c.add(new HashMap<Integer, Long>());
+				increment(c.get(i), bins[i]);
+			}
+		}
+
+		/**
+		 * Returns the weight of a candidate.
+		 *
+		 * @param f
+		 * @return
+		 */
+		public double getWeight(Feature f) {
+			String cls = f.getClass().getName();
+			double ret = getFactor(classCounts, cls);
+			int[] bins = f.getParameterBins();
+			List<Map<Integer, Long>> c = binCounts.get(cls);
+			if (bins == null || c == null) return ret;
+			for(int i=0; i<bins.length && i<c.size(); i++) {
+				ret*= getFactor(c.get(i), bins[i]);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Creates a proposal object.
+	 *
+	 * @param maxDepth maximum tree depth
+	 * @param prior pseudo count added to each bin
+	 */
+	public FeatureProposal(int maxDepth, double prior) {
+		this.prior = prior;
+		stats = new Stats[maxDepth+1];
+		for(int i=0; i<stats.length; i++) {
+			stats[i] = new Stats();
+		}
+	}
+
+	/**
+	 * Records a winner feature.
+	 *
+	 * @param f
+	 * @param depth depth of the node
+	 */
+	public synchronized void record(Feature f, int depth) {
+		if (depth < stats.length-1) stats[depth].add(f);
+		stats[stats.length-1].add(f);
+	}
+
+	/**
+	 * Records all split features of a (grown or loaded) tree.
+	 *
+	 * @param node root node
+	 * @param depth depth of node
+	 */
+	public void recordTree(Node node, int depth) {
+		if (node == null || node.isLeaf() || node.feature == null) return;
+		record(node.feature, depth);
+		recordTree(node.left, depth+1);
+		recordTree(node.right, depth+1);
+	}
+
+	/**
+	 * Records all split features of all trees of a forest, i.e. of a prior forest
+	 * trained on similar data.
+	 * 
+	 * @param forest
+	 */
+	public void recordForest(Forest forest) {
+		List<RandomTree> trees = forest.getTrees();
+		for(int i=0; i<trees.size(); i++) {
+			recordTree(trees.get(i).getRootNode(), 0);
+		}
+	}
+
+	/**
+	 * Chooses num of the candidates, each with a probability according to its weight
+	 * (weighted sampling without replacement). If there are no statistics yet, the first num
+	 * candidates are returned.
+	 *
+	 * @param candidates
+	 * @param num
+	 * @param depth depth of the node
+	 * @return
+	 */
+	public List<Object> select(List<Object> candidates, int num, int depth) {
+		if (candidates.size() <= num) return candidates;
+		double[] keys = new double[candidates.size()];
+		synchronized(this) {
+			Stats s = (depth < stats.length-1 && stats[depth].total >= MIN_RECORDS) ? stats[depth] : stats[stats.length-1];
+			if (s.total == 0) return new ArrayList<Object>(candidates.subList(0, num));
+			for(int i=0; i<keys.length; i++) {
+				// Efraimidis-Spirakis: Taking the largest keys u^(1/w) samples proportionally to w
+				keys[i] = Math.log(1.0 - Math.random()) / s.getWeight((Feature)candidates.get(i));
+			}
+		}
+		List<Object> ret = new ArrayList<Object>(num);
+		for(int j=0; j<num; j++) {
+			int best = -1;
+			for(int i=0; i<keys.length; i++) {
+				if (keys[i] != Double.NEGATIVE_INFINITY && (best < 0 || keys[i] > keys[best])) best = i;
+			}
+			ret.add(candidates.get(best));
+			keys[best] = Double.NEGATIVE_INFINITY;
+		}
+		return ret;
+	}
+
+	/**
+	 * Internal: Increments a count.
+	 *
+	 * @param map
+	 * @param key
+	 */
+	private static <T> void increment(Map<T, Long> map, T key) {
+		Long c = map.get(key);
+		map.put(key, (c == null) ? 1 : c+1);
+	}
+
+	/**
+	 * Internal: Returns the smoothed frequency of key relative to the average count of the map.
+	 *
+	 * @param map
+	 * @param key
+	 * @return
+	 */
+	private <T> double getFactor(Map<T, Long> map, T key) {
+		if (map.isEmpty()) return 1;
+		long sum = 0;
+		for(Long c : map.values()) {
+			sum+= c;
+		}
+		Long c = map.get(key);
+		double mean = (double)sum / map.size();
+		return (((c == null) ? 0 : c) + prior) / (mean + prior);
+	}
+
+	/**
+	 * Returns the number of recorded winners at a depth, or of all depths if depth is negative.
+	 *
+	 * @param depth
+	 * @return
+	 */
+	public synchronized long getNumOfRecords(int depth) {
+		if (depth < 0 || depth >= stats.length-1) return stats[stats.length-1].total;
+		return stats[depth].total;
+	}
+}
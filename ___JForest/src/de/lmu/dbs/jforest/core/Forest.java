@@ -65,6 +65,11 @@ public abstract class Forest {
 	 */
 	public int nodeThreadingThreshold = -1;
 	
+	/**
+	 * Adaptive feature proposal shared by all trees, or null if disabled (see ForestParameters.adaptiveProposal)
+	 */
+	public FeatureProposal proposal = null;
+	
 	/**
 	 * Date formatter for debug output.
 	 */
@@ -73,7 +78,7 @@ public abstract class Forest {
 	/**
 	 * Grow starting time
 	 */
-	private long startTime;
+	protected long startTime;
 	
 	/**
 	 * Creates a forest with some trees.
@@ -89,6 +94,7 @@ public abstract class Forest {
 		this.nodeScheduler = new ThreadScheduler(maxNumOfNodeThreads);
 		this.evalScheduler = new ThreadScheduler(maxNumOfEvalThreads);
 		this.nodeThreadingThreshold = nodeThreadingThreshold;
+		if (params.adaptiveProposal > 0) this.proposal = new FeatureProposal(params.maxDepth, params.adaptiveProposalPrior);
 		for(int i=0; i<trees.size(); i++) {
 			trees.get(i).setForest(this);
 		}
@@ -123,10 +129,19 @@ public abstract class Forest {
 	 * @throws Exception
 	 */
 	public void grow(final Sampler<Dataset> sampler, String bootstrapFilePrefix) throws Exception {
+		// Wall clock budget of best-first growth for the whole forest
+		long deadline = (params.growthTimeLimit > 0) ? System.currentTimeMillis() + params.growthTimeLimit * 1000 : 0;
+		
+		// With node threading, trees are only complete after all node threads finished
+		boolean deferGrown = nodeScheduler.getMaxThreads() > 0;
+		List<int[][]> samplings = new ArrayList<int[][]>();
 		
 		for(int i=0; i<trees.size(); i++) {
 			System.out.println("Growing tree " + i + " to depth " + params.maxDepth);
 			startTime = System.currentTimeMillis();
+			
+			// Split the remaining time evenly among the remaining trees
+			if (deadline > 0) trees.get(i).setGrowDeadline(startTime + (deadline - startTime) / (trees.size() - i));
 
 			Sampler<Dataset> sample = sampler.getSample();
 			if (bootstrapFilePrefix != null) {
@@ -137,6 +152,16 @@ public abstract class Forest {
 			
 			trees.get(i).grow(sample, params.maxDepth);
 			//trees.get(i).grow((trees.size() == 1) ? sampler : sampler.getSample(), params.maxDepth);
+			
+			int[][] sampling = new int[sample.getPoolSize()][];
+			for(int d=0; d<sampling.length; d++) {
+				sampling[d] = sample.get(d).getSamplesClone();
+			}
+			if (deferGrown) {
+				samplings.add(sampling);
+			} else {
+				treeGrown(i, sampler, sampling);
+			}
 		}
 		if (nodeScheduler.getMaxThreads() > 0) {
 			// Multithreading is active, so wait for the results
@@ -165,9 +190,25 @@ public abstract class Forest {
 				}
 			}
 			System.out.println("Finished growing forest.");
+			
+			for(int i=0; i<samplings.size(); i++) {
+				treeGrown(i, sampler, samplings.get(i));
+			}
 		}
 	}
 	
+	/**
+	 * Called when a tree has been completely grown. Does nothing by default.
+	 * 
+	 * @param index index of the tree
+	 * @param sampler the data pool the tree has been sampled from
+	 * @param sampling sampling[d][x] is the number of times sample x of pool dataset d has been
+	 *                 drawn for the tree
+	 * @throws Exception
+	 */
+	protected void treeGrown(int index, Sampler<Dataset> sampler, int[][] sampling) throws Exception {
+	}
+	
 	/**
 	 * Classifies a whole 2d array of data values and returns the results, normalized to [0,1].
 	 * 
@@ -213,13 +254,13 @@ public abstract class Forest {
 	/**
 	 * Core function for multithreaded classifying.
 	 * 
-	 * @param data
+	 * @param data data passed to the trees, with dataForest.length frames
 	 * @param dataForest
 	 * @throws Exception 
 	 */
-	public void classifyThreaded(Worker worker, byte[][] data, float[][][] dataForest, int start, int end, int maxDepth) throws Exception {
-		for(int x=0; x<data.length; x++) {
-			if (worker != null && x%20 == 0) worker.setProgress((double)x/data.length);
+	public void classifyThreaded(Worker worker, Object data, float[][][] dataForest, int start, int end, int maxDepth) throws Exception {
+		for(int x=0; x<dataForest.length; x++) {
+			if (worker != null && x%20 == 0) worker.setProgress((double)x/dataForest.length);
 			for(int y=start; y<=end; y++) {
 				dataForest[x][y] = classify(data, x, y, maxDepth);
 			}
@@ -1,5 +1,7 @@
 package de.lmu.dbs.jforest.core;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 import org.jdom2.Element;
@@ -21,6 +23,36 @@ public class ForestParameters extends ParamLoader implements Serializable {
 	 */
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * Default of racingDelta
+	 */
+	public static final double DEFAULT_RACING_DELTA = 0.05;
+
+	/**
+	 * Default of adaptiveProposalPrior
+	 */
+	public static final double DEFAULT_ADAPTIVE_PROPOSAL_PRIOR = 1;
+
+	/**
+	 * Default of streamGracePeriod
+	 */
+	public static final int DEFAULT_STREAM_GRACE_PERIOD = 200;
+
+	/**
+	 * Default of streamDelta
+	 */
+	public static final double DEFAULT_STREAM_DELTA = 0.0000001;
+
+	/**
+	 * Default of streamTieThreshold
+	 */
+	public static final double DEFAULT_STREAM_TIE_THRESHOLD = 0.05;
+
+	/**
+	 * Default of streamMixDatasets
+	 */
+	public static final int DEFAULT_STREAM_MIX_DATASETS = 4;
+
 	/**
 	 * 
 	 */
@@ -47,6 +79,23 @@ public class ForestParameters extends ParamLoader implements Serializable {
 	 */
 	public double percentageOfRandomValuesPerFrame = -1;
 	
+	/**
+	 * If in range ]0,1], the initial values are sampled stratified instead of using 
+	 * percentageOfRandomValuesPerFrame: All labeled values (reference class not 0) of the 
+	 * sampled frames are used, background values (class 0) are picked with this probability. 
+	 * The background counts in the leafs are weighted by the actual ratio of background values 
+	 * to picked ones per dataset (about the inverse of this) to correct the probabilities.
+	 * Values below zero disable stratified sampling.
+	 */
+	public double backgroundSamplingRatio = -1;
+	
+	/**
+	 * With stratified sampling (see backgroundSamplingRatio), this excludes all background
+	 * values which are zero in the data. They are still counted for the background weight, so
+	 * the background prior is kept and the picked non-zero background values stand for them.
+	 */
+	public boolean skipZeroBackgroundValues = false;
+	
 	/**
 	 * This is the number of randomly generated feature parameter sets for each node in training.
 	 */
@@ -57,6 +106,124 @@ public class ForestParameters extends ParamLoader implements Serializable {
 	 */
 	public int thresholdCandidatesPerFeature = -1;
 	
+	/**
+	 * If greater than zero, the threshold candidates of each feature are not generated randomly, 
+	 * but taken from the quantiles of the feature responses on this amount of randomly picked 
+	 * node samples. Zero uses the random thresholds of the feature implementation.
+	 */
+	public int thresholdQuantileSamples = 0;
+	
+	/**
+	 * If greater than zero, nodes with more values than this are grown in two stages: All feature
+	 * candidates are evaluated on a random subsample of about this size first, and only the candidates
+	 * which cannot be excluded by the Hoeffding bound are evaluated on all values of the node.
+	 * Zero disables the two-stage split search.
+	 */
+	public int racingSamples = 0;
+	
+	/**
+	 * Probability of wrongly dropping a feature candidate in the two-stage split search (see racingSamples).
+	 */
+	public double racingDelta = DEFAULT_RACING_DELTA;
+	
+	/**
+	 * If greater than zero, the value lists of nodes waiting to be grown are spilled to scratch files 
+	 * on disk, as long as the used heap exceeds this fraction of the maximum heap size. They are read
+	 * back when the node is grown. Zero disables spilling.
+	 */
+	public double spillHeapWatermark = 0;
+	
+	/**
+	 * Folder for the spill scratch files (see spillHeapWatermark). If null, the system´s temporary folder is used.
+	 */
+	public String spillFolder = null;
+	
+	/**
+	 * Folder of a precomputed feature response store (see core2d.ResponseStore). If set, the feature
+	 * candidates of each node are taken from the store´s fixed candidate pool, and their responses are 
+	 * read from the store instead of being computed. If null, random features are generated and computed.
+	 * The store needs pool size * 4 bytes per spectrogram value on disk.
+	 */
+	public String responseStore = null;
+	
+	/**
+	 * If greater than zero, feature candidates are proposed adaptively (see FeatureProposal): This
+	 * many times numOfRandomFeatures random candidates are generated, and numOfRandomFeatures of them 
+	 * are chosen, preferring parameters which won often at the same depth before. Zero disables this.
+	 */
+	public int adaptiveProposal = 0;
+	
+	/**
+	 * Pseudo count for adaptive proposal (see adaptiveProposal). Higher values keep more exploration.
+	 */
+	public double adaptiveProposalPrior = DEFAULT_ADAPTIVE_PROPOSAL_PRIOR;
+	
+	/**
+	 * If true, the trees are grown best-first instead of depth-first: The frontier node with the highest 
+	 * information gain times number of values is split next. Growing of a tree stops when one of the 
+	 * growth budgets (growthTimeLimit, growthNodeLimit, growthHeapWatermark) is exhausted, the remaining 
+	 * frontier nodes are made leaves then.
+	 */
+	public boolean bestFirstGrowth = false;
+	
+	/**
+	 * Wall clock budget in seconds for growing the whole forest in best-first mode, split evenly among 
+	 * the trees not yet grown. Zero means no limit.
+	 */
+	public long growthTimeLimit = 0;
+	
+	/**
+	 * Maximum number of split nodes per tree in best-first mode. Zero means no limit.
+	 */
+	public long growthNodeLimit = 0;
+	
+	/**
+	 * In best-first mode, stop splitting as soon as the used heap exceeds this fraction of the
+	 * maximum heap size. Zero means no limit.
+	 */
+	public double growthHeapWatermark = 0;
+	
+	/**
+	 * If true, the forest is grown in streaming mode (see core2d.HoeffdingLearner2d): The training datasets
+	 * are read once, in sequence, and leaves are split when the Hoeffding bound allows it.
+	 */
+	public boolean streamingGrowth = false;
+	
+	/**
+	 * Streaming mode: Number of values a leaf collects between two split attempts.
+	 */
+	public int streamGracePeriod = DEFAULT_STREAM_GRACE_PERIOD;
+	
+	/**
+	 * Streaming mode: Probability of choosing a split other than the one which would be chosen with infinite data.
+	 */
+	public double streamDelta = DEFAULT_STREAM_DELTA;
+	
+	/**
+	 * Streaming mode: If the Hoeffding bound falls below this value, the best split is taken even if the
+	 * second best is as good (tie breaking).
+	 */
+	public double streamTieThreshold = DEFAULT_STREAM_TIE_THRESHOLD;
+	
+	/**
+	 * Streaming mode: If true, each value is presented to each tree Poisson(1) times (online bagging). 
+	 * Otherwise, all trees see all values once.
+	 */
+	public boolean streamPoissonBagging = true;
+	
+	/**
+	 * Streaming mode: Number of datasets whose values are streamed at once, in random order. The 
+	 * Hoeffding bound assumes independent values, but the values of one dataset are highly correlated 
+	 * (neighbouring frames), so the values of several datasets are interleaved.
+	 */
+	public int streamMixDatasets = DEFAULT_STREAM_MIX_DATASETS;
+	
+	/**
+	 * If true, each grown tree classifies the training frames it has not sampled, and the averaged 
+	 * posteriors are kept as out-of-bag estimate (see core2d.OutOfBagEstimate2d).
+	 */
+	public boolean outOfBagEstimate = false;
+	
 	/**
 	 * This is a plain feature instance that later is used to generate the training 
 	 * features with the getRandomFeatureSet method. It is never used for classification
@@ -106,10 +273,26 @@ public class ForestParameters extends ParamLoader implements Serializable {
 	 */
 	public void check() throws Exception {
 		if (percentageOfRandomValuesPerFrame < 0 || percentageOfRandomValuesPerFrame > 1) throw new Exception("Invalid value of percentageOfRandomValuesPerFrame: " + percentageOfRandomValuesPerFrame + " (must be in range [0,1])");
+		if (backgroundSamplingRatio == 0 || backgroundSamplingRatio > 1) throw new Exception("Invalid value of backgroundSamplingRatio: " + backgroundSamplingRatio + " (must be in range ]0,1], or negative to disable)");
 		if (numOfRandomFeatures < 1) throw new Exception("Invalid numOfRandomFeatures, must be >= 1: " + numOfRandomFeatures);
 		if (thresholdCandidatesPerFeature < 1) throw new Exception("Invalid thresholdCandidatesPerFeature, must be >= 1: " + thresholdCandidatesPerFeature);
 		if (forestSize < 1) throw new Exception("Forest must have at least one tree: " + forestSize);
 		if (maxDepth < 1) throw new Exception("Maximum tree depth has to be at least 1: " + maxDepth);
+		if (thresholdQuantileSamples < 0) throw new Exception("Invalid thresholdQuantileSamples, must be >= 0: " + thresholdQuantileSamples);
+		if (racingSamples < 0) throw new Exception("Invalid racingSamples, must be >= 0: " + racingSamples);
+		if (racingDelta <= 0 || racingDelta >= 1) throw new Exception("Invalid racingDelta: " + racingDelta + " (must be in range ]0,1[)");
+		if (adaptiveProposal < 0) throw new Exception("Invalid adaptiveProposal, must be >= 0: " + adaptiveProposal);
+		if (adaptiveProposalPrior <= 0) throw new Exception("Invalid adaptiveProposalPrior, must be > 0: " + adaptiveProposalPrior);
+		if (spillHeapWatermark < 0 || spillHeapWatermark >= 1) throw new Exception("Invalid spillHeapWatermark: " + spillHeapWatermark + " (must be in range [0,1[)");
+		if (growthTimeLimit < 0) throw new Exception("Invalid growthTimeLimit, must be >= 0: " + growthTimeLimit);
+		if (growthNodeLimit < 0) throw new Exception("Invalid growthNodeLimit, must be >= 0: " + growthNodeLimit);
+		if (growthHeapWatermark < 0 || growthHeapWatermark >= 1) throw new Exception("Invalid growthHeapWatermark: " + growthHeapWatermark + " (must be in range [0,1[)");
+		if (streamGracePeriod < 1) throw new Exception("Invalid streamGracePeriod, must be >= 1: " + streamGracePeriod);
+		if (streamDelta <= 0 || streamDelta >= 1) throw new Exception("Invalid streamDelta: " + streamDelta + " (must be in range ]0,1[)");
+		if (streamTieThreshold < 0) throw new Exception("Invalid streamTieThreshold, must be >= 0: " + streamTieThreshold);
+		if (streamMixDatasets < 1) throw new Exception("Invalid streamMixDatasets, must be >= 1: " + streamMixDatasets);
+		if (streamingGrowth && bestFirstGrowth) throw new Exception("streamingGrowth and bestFirstGrowth cannot be combined");
+		if (!bestFirstGrowth && (growthTimeLimit > 0 || growthNodeLimit > 0 || growthHeapWatermark > 0)) throw new Exception("Growth budgets are only supported with bestFirstGrowth");
 	}
 	
 	/**
@@ -136,14 +319,59 @@ public class ForestParameters extends ParamLoader implements Serializable {
 		forestSize = Integer.parseInt(forest.getAttributeValue("forestSize"));
 		maxDepth = Integer.parseInt(forest.getAttributeValue("maxDepth"));
 		percentageOfRandomValuesPerFrame = Double.parseDouble(forest.getAttributeValue("percentageOfRandomValuesPerFrame"));
+		if (forest.getAttributeValue("backgroundSamplingRatio") != null) backgroundSamplingRatio = Double.parseDouble(forest.getAttributeValue("backgroundSamplingRatio"));
+		if (forest.getAttributeValue("skipZeroBackgroundValues") != null) skipZeroBackgroundValues = Boolean.parseBoolean(forest.getAttributeValue("skipZeroBackgroundValues"));
 		numOfRandomFeatures = Integer.parseInt(forest.getAttributeValue("numOfRandomFeatures"));
 		entropyThreshold = Double.parseDouble(forest.getAttributeValue("entropyThreshold"));
 		thresholdCandidatesPerFeature = Integer.parseInt(forest.getAttributeValue("thresholdCandidatesPerFeature"));
+		if (forest.getAttributeValue("thresholdQuantileSamples") != null) thresholdQuantileSamples = Integer.parseInt(forest.getAttributeValue("thresholdQuantileSamples"));
+		if (forest.getAttributeValue("racingSamples") != null) racingSamples = Integer.parseInt(forest.getAttributeValue("racingSamples"));
+		if (forest.getAttributeValue("racingDelta") != null) racingDelta = Double.parseDouble(forest.getAttributeValue("racingDelta"));
+		if (forest.getAttributeValue("spillHeapWatermark") != null) spillHeapWatermark = Double.parseDouble(forest.getAttributeValue("spillHeapWatermark"));
+		if (forest.getAttributeValue("spillFolder") != null) spillFolder = forest.getAttributeValue("spillFolder");
+		if (forest.getAttributeValue("responseStore") != null) responseStore = forest.getAttributeValue("responseStore");
+		if (forest.getAttributeValue("adaptiveProposal") != null) adaptiveProposal = Integer.parseInt(forest.getAttributeValue("adaptiveProposal"));
+		if (forest.getAttributeValue("adaptiveProposalPrior") != null) adaptiveProposalPrior = Double.parseDouble(forest.getAttributeValue("adaptiveProposalPrior"));
+		if (forest.getAttributeValue("bestFirstGrowth") != null) bestFirstGrowth = Boolean.parseBoolean(forest.getAttributeValue("bestFirstGrowth"));
+		if (forest.getAttributeValue("growthTimeLimit") != null) growthTimeLimit = Long.parseLong(forest.getAttributeValue("growthTimeLimit"));
+		if (forest.getAttributeValue("growthNodeLimit") != null) growthNodeLimit = Long.parseLong(forest.getAttributeValue("growthNodeLimit"));
+		if (forest.getAttributeValue("growthHeapWatermark") != null) growthHeapWatermark = Double.parseDouble(forest.getAttributeValue("growthHeapWatermark"));
+		if (forest.getAttributeValue("streamingGrowth") != null) streamingGrowth = Boolean.parseBoolean(forest.getAttributeValue("streamingGrowth"));
+		if (forest.getAttributeValue("streamGracePeriod") != null) streamGracePeriod = Integer.parseInt(forest.getAttributeValue("streamGracePeriod"));
+		if (forest.getAttributeValue("streamDelta") != null) streamDelta = Double.parseDouble(forest.getAttributeValue("streamDelta"));
+		if (forest.getAttributeValue("streamTieThreshold") != null) streamTieThreshold = Double.parseDouble(forest.getAttributeValue("streamTieThreshold"));
+		if (forest.getAttributeValue("streamPoissonBagging") != null) streamPoissonBagging = Boolean.parseBoolean(forest.getAttributeValue("streamPoissonBagging"));
+		if (forest.getAttributeValue("streamMixDatasets") != null) streamMixDatasets = Integer.parseInt(forest.getAttributeValue("streamMixDatasets"));
+		if (forest.getAttributeValue("outOfBagEstimate") != null) outOfBagEstimate = Boolean.parseBoolean(forest.getAttributeValue("outOfBagEstimate"));
 
 		String clsName = forest.getAttributeValue("featureFactoryClass");
 		featureFactory = (Feature)Class.forName(clsName).getConstructor().newInstance();
 	}
 	
+	/**
+	 * Internal: Field initializers are not run on deserialization, so the fields which are missing 
+	 * in parameters saved by older versions are zero. These are set to their defaults here, to keep
+	 * existing forests loadable.
+	 * 
+	 * @param in
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (backgroundSamplingRatio == 0) backgroundSamplingRatio = -1;
+		if (racingDelta == 0) racingDelta = DEFAULT_RACING_DELTA;
+		if (adaptiveProposalPrior == 0) adaptiveProposalPrior = DEFAULT_ADAPTIVE_PROPOSAL_PRIOR;
+		if (streamGracePeriod == 0) {
+			// Streaming parameters missing: Older versions had no streaming mode
+			streamGracePeriod = DEFAULT_STREAM_GRACE_PERIOD;
+			streamDelta = DEFAULT_STREAM_DELTA;
+			streamTieThreshold = DEFAULT_STREAM_TIE_THRESHOLD;
+			streamPoissonBagging = true;
+		}
+		if (streamMixDatasets == 0) streamMixDatasets = DEFAULT_STREAM_MIX_DATASETS;
+	}
+	
 	/**
 	 * Packs most parameters into a readable string.
 	 * 
@@ -154,8 +382,17 @@ public class ForestParameters extends ParamLoader implements Serializable {
 		ret+= "  Forest size at training:               " + forestSize + "\n";
 		ret+= "  Depth:                                 " + maxDepth + "\n";
 		ret+= "  Percentage of random values per frame: " + percentageOfRandomValuesPerFrame + "\n";
+		if (backgroundSamplingRatio > 0) ret+= "  Stratified background sampling ratio:  " + backgroundSamplingRatio + (skipZeroBackgroundValues ? " (skipping zero values)" : "") + "\n";
 		ret+= "  Number of random features candidates:  " + numOfRandomFeatures + "\n";
 		ret+= "  Threshold candidates per candidate:    " + thresholdCandidatesPerFeature + "\n";
+		ret+= "  Threshold quantile samples:            " + thresholdQuantileSamples + "\n";
+		ret+= "  Racing samples (two-stage search):     " + racingSamples + " (delta: " + racingDelta + ")\n";
+		if (spillHeapWatermark > 0) ret+= "  Spill heap watermark:                  " + spillHeapWatermark + " (folder: " + ((spillFolder != null) ? spillFolder : System.getProperty("java.io.tmpdir")) + ")\n";
+		if (adaptiveProposal > 0) ret+= "  Adaptive proposal oversampling:        " + adaptiveProposal + " (prior: " + adaptiveProposalPrior + ")\n";
+		if (bestFirstGrowth) ret+= "  Best-first growth budgets:             " + ((growthTimeLimit > 0) ? growthTimeLimit + " sec" : "no time limit") + ", " + ((growthNodeLimit > 0) ? growthNodeLimit + " splits/tree" : "no node limit") + ", " + ((growthHeapWatermark > 0) ? "heap watermark " + growthHeapWatermark : "no heap limit") + "\n";
+		if (streamingGrowth) ret+= "  Streaming growth:                      grace period " + streamGracePeriod + ", delta " + streamDelta + ", tie threshold " + streamTieThreshold + ", " + streamMixDatasets + " datasets mixed" + (streamPoissonBagging ? ", online bagging" : "") + "\n";
+		if (outOfBagEstimate) ret+= "  Out-of-bag estimate:                   " + outOfBagEstimate + "\n";
+		if (responseStore != null) ret+= "  Precomputed feature response store:    " + responseStore + "\n";
 		ret+= "  Used feature implementation:           " + featureFactory.getClass().getName() + "\n";
 		ret+= "  Entropy threshold:                     " + entropyThreshold + "\n";
 		return ret;
@@ -9,6 +9,7 @@ import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import de.lmu.dbs.jforest.sampler.Sampler;
 import de.lmu.dbs.jforest.util.Logfile;
@@ -130,6 +131,79 @@ public abstract class RandomTree extends ScheduledThread {
 	 */
 	protected long newThreadCount;
 	
+	/**
+	 * Buffers for node evaluation, reused for all nodes grown by this instance.
+	 */
+	protected EvaluationBuffers evaluationBuffers = null;
+	
+	/**
+	 * Wall clock time (millis) at which best-first growing of this tree stops, or zero for no limit.
+	 */
+	protected long growDeadline = 0;
+	
+	/**
+	 * Frontier node waiting to be split in best-first growing. Its split has already been 
+	 * searched, the priority is the information gain times the number of values.
+	 * 
+	 * @author Thomas Weber
+	 *
+	 */
+	protected class FrontierNode implements Comparable<FrontierNode> {
+		
+		/**
+		 * The node to split, its feature has already been set by findSplit()
+		 */
+		public Node node;
+		
+		/**
+		 * Values of the node, cleared when it is split or made a leaf
+		 */
+		public List<Classification> classification;
+		
+		/**
+		 * Number of values of the node
+		 */
+		public long count;
+		
+		/**
+		 * 0: root node, 1: left, 2: right
+		 */
+		public int mode;
+		
+		/**
+		 * Depth of the node
+		 */
+		public int depth;
+		
+		/**
+		 * Information gain of the split times number of values
+		 */
+		public double priority;
+		
+		/**
+		 * 
+		 * @param node
+		 * @param classification
+		 * @param count
+		 * @param mode
+		 * @param depth
+		 * @param priority
+		 */
+		public FrontierNode(Node node, List<Classification> classification, long count, int mode, int depth, double priority) {
+			this.node = node;
+			this.classification = classification;
+			this.count = count;
+			this.mode = mode;
+			this.depth = depth;
+			this.priority = priority;
+		}
+
+		@Override
+		public int compareTo(FrontierNode o) {
+			return Double.compare(o.priority, priority); // Highest priority first
+		}
+	}
+	
 	/**
 	 * Create a tree (as factory).
 	 * 
@@ -246,6 +320,18 @@ public abstract class RandomTree extends ScheduledThread {
 	 */
 	protected abstract List<Classification> getPreClassification(Sampler<Dataset> sampler) throws Exception;
 
+	/**
+	 * Returns a random subsample of about num values of the given classification (used
+	 * for the two-stage split search).
+	 * 
+	 * @param classification
+	 * @param count number of values in classification
+	 * @param num
+	 * @return
+	 * @throws Exception
+	 */
+	protected abstract List<Classification> getSubsample(List<Classification> classification, long count, int num) throws Exception;
+
 	/**
 	 * Build first classification array (from bootstrapping samples and random values per sampled frame)
 	 * 
@@ -370,7 +456,134 @@ public abstract class RandomTree extends ScheduledThread {
 		for(int i=0; i<classification.size(); i++) {
 			initialCount+= classification.get(i).getSize();
 		}
-		growRec(this, sampler, classification, initialCount, tree, 0, 0, maxDepth, true);
+		if (params.bestFirstGrowth) {
+			growBestFirst(sampler, classification, initialCount, maxDepth);
+		} else {
+			growRec(this, sampler, classification, initialCount, tree, 0, 0, maxDepth, true);
+		}
+	}
+
+	/**
+	 * Sets the wall clock time (millis) at which best-first growing stops. Zero means no limit.
+	 * 
+	 * @param deadline
+	 */
+	public void setGrowDeadline(long deadline) {
+		growDeadline = deadline;
+	}
+	
+	/**
+	 * Internal: Grows the tree best-first. The frontier node with the highest information gain
+	 * times number of values is split next, until the frontier is empty or one of the growth 
+	 * budgets is exhausted. In the latter case, all remaining frontier nodes are made leaves.
+	 * Node threading is not used in this mode, the evaluation threads are.
+	 * 
+	 * @param sampler
+	 * @param classification
+	 * @param count
+	 * @param maxDepth
+	 * @throws Exception
+	 */
+	protected void growBestFirst(final Sampler<Dataset> sampler, List<Classification> classification, final long count, final int maxDepth) throws Exception {
+		PriorityQueue<FrontierNode> frontier = new PriorityQueue<FrontierNode>();
+		long splits = 0;
+		String stop = null;
+		
+		addToFrontier(frontier, sampler, classification, count, tree, 0, 0, maxDepth, null);
+		while(!frontier.isEmpty()) {
+			FrontierNode f = frontier.poll();
+			if (stop == null) stop = getBudgetStop(splits);
+			if (stop != null) {
+				// Budget exhausted: Discard the split found for the node and make it a leaf
+				makeFrontierLeaf(sampler, f);
+				continue;
+			}
+			
+			String pre = getLogPrefix(f.depth);
+			long[] counts = new long[2];
+			List<Classification> classificationNextL = new ArrayList<Classification>();
+			List<Classification> classificationNextR = new ArrayList<Classification>();
+			if (!applySplit(sampler, f.classification, classificationNextL, classificationNextR, f.node, f.mode, f.depth, counts, pre)) continue;
+			if (forest.proposal != null) forest.proposal.record(f.node.feature, f.depth);
+			f.classification = null;
+			splits++;
+			
+			f.node.left = new Node();
+			addToFrontier(frontier, sampler, classificationNextL, counts[0], f.node.left, 1, f.depth+1, maxDepth, getBudgetStop(splits));
+			f.node.right = new Node();
+			addToFrontier(frontier, sampler, classificationNextR, counts[1], f.node.right, 2, f.depth+1, maxDepth, getBudgetStop(splits));
+		}
+		
+		String msg = "Tree " + num + ": Best-first growth finished with " + splits + " splits" + ((stop != null) ? ", stopped by " + stop : "");
+		System.out.println(msg);
+		log.write(msg);
+		log.flush();
+	}
+	
+	/**
+	 * Internal: Searches the split of a new node and adds it to the frontier. Nodes at maximum 
+	 * depth, with insufficient gain, or created after a budget has been exhausted become leaves.
+	 * 
+	 * @param frontier
+	 * @param sampler
+	 * @param classification
+	 * @param count
+	 * @param node
+	 * @param mode
+	 * @param depth
+	 * @param maxDepth
+	 * @param stop exhausted budget, or null
+	 * @throws Exception
+	 */
+	private void addToFrontier(PriorityQueue<FrontierNode> frontier, final Sampler<Dataset> sampler, List<Classification> classification, final long count, final Node node, final int mode, final int depth, final int maxDepth, String stop) throws Exception {
+		String pre = getLogPrefix(depth);
+		if (depth >= maxDepth || stop != null) {
+			node.probabilities = calculateLeaf(sampler, classification, mode, depth);
+			if (params.logNodeInfo) log.write(pre + ((stop != null) ? "Budget exhausted (" + stop + ")" : "Reached max depth") + ", Leaf probabilities " + ArrayUtils.toString(node.probabilities, false));
+			return;
+		}
+		double gain = findSplit(this, sampler, classification, count, node, mode, depth, pre);
+		if (gain < 0) return;
+		frontier.add(new FrontierNode(node, classification, count, mode, depth, gain * count));
+	}
+	
+	/**
+	 * Internal: Makes a frontier node a leaf.
+	 * 
+	 * @param sampler
+	 * @param f
+	 * @throws Exception
+	 */
+	private void makeFrontierLeaf(final Sampler<Dataset> sampler, FrontierNode f) throws Exception {
+		f.node.feature = null;
+		f.node.probabilities = calculateLeaf(sampler, f.classification, f.mode, f.depth);
+		if (params.logNodeInfo) log.write(getLogPrefix(f.depth) + "Budget exhausted, Leaf probabilities " + ArrayUtils.toString(f.node.probabilities, false));
+		f.classification = null;
+	}
+	
+	/**
+	 * Internal: Returns a description of the exhausted growth budget, or null if all budgets are left.
+	 * 
+	 * @param splits number of split nodes so far
+	 * @return
+	 */
+	private String getBudgetStop(long splits) {
+		if (growDeadline > 0 && System.currentTimeMillis() >= growDeadline) return "time limit";
+		if (params.growthNodeLimit > 0 && splits >= params.growthNodeLimit) return "node limit of " + params.growthNodeLimit;
+		if (params.growthHeapWatermark > 0 && ClassificationSpill.isAboveWatermark(params.growthHeapWatermark)) return "heap watermark (" + getHeapMB() + " MB)";
+		return null;
+	}
+	
+	/**
+	 * Internal: Returns the node log prefix for a depth.
+	 * 
+	 * @param depth
+	 * @return
+	 */
+	private String getLogPrefix(int depth) {
+		String pre = "T" + num + ":  ";
+		for(int i=0; i<depth; i++) pre+="-  ";
+		return pre;
 	}
 
 	/**
@@ -407,30 +620,112 @@ public abstract class RandomTree extends ScheduledThread {
 			}
 		}
 		
+		// Find the best split, or make the node a leaf
+		if (findSplit(root, sampler, classification, count, node, mode, depth, pre) < 0) return;
+		
+		// Split values by winner feature for deeper branches
+		long[] counts = new long[2];
+		List<Classification> classificationNextL = new ArrayList<Classification>();
+		List<Classification> classificationNextR = new ArrayList<Classification>();
+		if (!applySplit(sampler, classification, classificationNextL, classificationNextR, node, mode, depth, counts, pre)) return;
+		if (root.forest.proposal != null) root.forest.proposal.record(node.feature, depth);
+		classification = null;
+		
+		// The right values wait for the whole left subtree: Spill them to disk if the heap is getting full
+		ClassificationSpill spill = null;
+		if (params.spillHeapWatermark > 0 && ClassificationSpill.isAboveWatermark(params.spillHeapWatermark)) {
+			spill = ClassificationSpill.spill(classificationNextR, params.spillFolder);
+			if (spill != null && params.logNodeInfo) log.write(pre + "Spilled " + counts[1] + " right values to disk (" + spill.getBytes() + " bytes)");
+		}
+		
+		// Recursion to left and right
+		node.left = new Node();
+		growRec(root, sampler, classificationNextL, counts[0], node.left, 1, depth+1, maxDepth, true);
+		if (spill != null) spill.restore(classificationNextR);
+		node.right = new Node();
+		growRec(root, sampler, classificationNextR, counts[1], node.right, 2, depth+1, maxDepth, true);
+	}
+
+	/**
+	 * Internal: Searches the best split of a node among random feature candidates. If the information 
+	 * gain is sufficient, node.feature is set to the winner. Otherwise, the node is made a leaf.
+	 * 
+	 * @param root
+	 * @param sampler
+	 * @param classification
+	 * @param count
+	 * @param node
+	 * @param mode
+	 * @param depth
+	 * @param pre log prefix
+	 * @return information gain of the winner, or -1 if the node has been made a leaf
+	 * @throws Exception
+	 */
+	protected double findSplit(RandomTree root, final Sampler<Dataset> sampler, List<Classification> classification, final long count, final Node node, final int mode, final int depth, String pre) throws Exception {
 		// Get random feature parameter sets
-		List<Object> paramSet = params.featureFactory.getRandomFeatureSet(params);
+		List<Object> paramSet = getFeatureCandidates(root, depth);
 		int numOfFeatures = paramSet.size();
 
-		// Generate random thresholds for each feature param set
-		float[][] thresholds = new float[numOfFeatures][];
-		for(int i=0; i<thresholds.length; i++) {
-			thresholds[i] = ((Feature)paramSet.get(i)).getRandomThresholds(params.thresholdCandidatesPerFeature);
+		// Generate thresholds for each feature param set
+		float[][] thresholds = getThresholdCandidates(sampler, paramSet, classification, count);
+
+		// Two-stage split search: Drop the hopeless candidates on a subsample first
+		double[] racingGains = null;
+		if (params.racingSamples > 0 && count > params.racingSamples) {
+			List<Classification> subsample = getSubsample(classification, count, params.racingSamples);
+			long subCount = 0;
+			for(int i=0; i<subsample.size(); i++) {
+				subCount+= subsample.get(i).getSize();
+			}
+			EvaluationBuffers sb = getEvaluationBuffers(numOfFeatures);
+			evaluateFeaturesThreaded(root, sampler, paramSet, subsample, subCount, mode, thresholds, sb.countClassesLeft, sb.countClassesRight, node, depth);
+			double[][] subGain = getGainsByEntropy(numOfFeatures, sb.countClassesLeft, sb.countClassesRight, sb.gain);
+			
+			double[] best = new double[numOfFeatures];
+			double leader = -Double.MAX_VALUE;
+			for(int i=0; i<numOfFeatures; i++) {
+				best[i] = -Double.MAX_VALUE;
+				for(int j=0; j<params.thresholdCandidatesPerFeature; j++) {
+					if (subGain[i][j] > best[i]) best[i] = subGain[i][j];
+				}
+				if (best[i] > leader) leader = best[i];
+			}
+			double epsilon = getHoeffdingBound(numOfClasses, params.racingDelta, subCount);
+			List<Object> survivors = new ArrayList<Object>();
+			List<float[]> survivorThresholds = new ArrayList<float[]>();
+			List<Double> survivorGains = new ArrayList<Double>();
+			for(int i=0; i<numOfFeatures; i++) {
+				if (best[i] + epsilon >= leader - epsilon) {
+					survivors.add(paramSet.get(i));
+					survivorThresholds.add(thresholds[i]);
+					survivorGains.add(best[i]);
+				}
+			}
+			if (params.logNodeInfo) log.write(pre + "Racing: " + survivors.size() + " of " + numOfFeatures + " candidates survived on " + subCount + " of " + count + " values, epsilon: " + decimalFormat.format(epsilon));
+			paramSet = survivors;
+			numOfFeatures = survivors.size();
+			thresholds = survivorThresholds.toArray(new float[numOfFeatures][]);
+			racingGains = new double[numOfFeatures];
+			for(int i=0; i<numOfFeatures; i++) {
+				racingGains[i] = survivorGains.get(i);
+			}
 		}
 
 		// Evaluate the features
-		long[][][] countClassesLeft = new long[numOfFeatures][params.thresholdCandidatesPerFeature][numOfClasses];
-		long[][][] countClassesRight = new long[numOfFeatures][params.thresholdCandidatesPerFeature][numOfClasses];
+		EvaluationBuffers buffers = getEvaluationBuffers(numOfFeatures);
+		long[][][] countClassesLeft = buffers.countClassesLeft;
+		long[][][] countClassesRight = buffers.countClassesRight;
 		evaluateFeaturesThreaded(root, sampler, paramSet, classification, count, mode, thresholds, countClassesLeft, countClassesRight, node, depth);		
 
 		// Calculate info gain upon each combination of feature/threshold 
-		double[][] gain = getGainsByEntropy(paramSet.size(), countClassesLeft, countClassesRight);
+		double[][] gain = getGainsByEntropy(numOfFeatures, countClassesLeft, countClassesRight, buffers.gain);
 		
 		// Get maximum gain feature/threshold combination
 		double max = -Double.MAX_VALUE;
 		int winner = 0;
 		int winnerThreshold = 0;
 		double min = Double.MAX_VALUE; // TMP just used for stats
-		Statistic2d gainStat = new Statistic2d(); // TMP gain statistics for gain/threshold diagrams
+		Statistic2d gainStat = (params.saveGainThresholdDiagrams > depth) ? new Statistic2d() : null; // TMP gain statistics for gain/threshold diagrams
 		for(int i=0; i<numOfFeatures; i++) {
 			for(int j=0; j<params.thresholdCandidatesPerFeature; j++) {
 				if(gain[i][j] > max) {
@@ -445,6 +740,9 @@ public abstract class RandomTree extends ScheduledThread {
 		
 		// Log //////////////////////////////////////////
 		root.infoGain.add(gain[winner][winnerThreshold]);
+		if (params.logNodeInfo && racingGains != null) {
+			log.write(pre + "Racing gain approximation: Subsample: " + decimalFormat.format(racingGains[winner]) + ", full: " + decimalFormat.format(max) + ", error: " + decimalFormat.format(racingGains[winner] - max));
+		}
 		if (params.logNodeInfo) {
 			// General node info
 			log.write(pre + "------------------------");
@@ -472,7 +770,7 @@ public abstract class RandomTree extends ScheduledThread {
 				for(int i=0; i<paramSet.size(); i++) {
 					// Get max info gain of this feature candidate
 					double maxFG = -Double.MAX_VALUE;
-					for(int j=0; j<gain[i].length; j++) {
+					for(int j=0; j<params.thresholdCandidatesPerFeature; j++) {
 						if (gain[i][j] > maxFG) maxFG = gain[i][j];
 					}
 					log.write(pre + "Feature " + i + ": " + paramSet.get(i) + "; max info gain: " + maxFG);
@@ -502,42 +800,90 @@ public abstract class RandomTree extends ScheduledThread {
 			node.feature = (Feature)paramSet.get(winner);
 			node.feature.threshold = thresholds[winner][winnerThreshold];
 			if (params.logNodeInfo) log.write(pre + "Feature threshold: " + node.feature.threshold + "; Class: " + node.feature.getClass().getName() + ", Coeffs: " + node.feature);
+			return gain[winner][winnerThreshold];
 		} else {
 			// No, make this node a leaf and return
 			node.probabilities = calculateLeaf(sampler, classification, mode, depth);
 			if (params.logNodeInfo) log.write(pre + "Info gain insufficient, Leaf probabilities: " + ArrayUtils.toString(node.probabilities, false));
-			return;
+			return -1;
 		}
-		
-		// Split values by winner feature for deeper branches
-		long[] counts = new long[2];
-		List<Classification> classificationNextL = new ArrayList<Classification>();
-		List<Classification> classificationNextR = new ArrayList<Classification>();
-		splitValues(sampler, classification, classificationNextL, classificationNextR, mode, node, counts);
+	}
+
+	/**
+	 * Internal: Splits the values of a node by its feature. If one side would get no values, 
+	 * the node is made a leaf instead. Otherwise, the node´s classifications are cleared afterwards.
+	 * 
+	 * @param sampler
+	 * @param classification
+	 * @param classificationLeft list to add the left values to
+	 * @param classificationRight list to add the right values to
+	 * @param node
+	 * @param mode
+	 * @param depth
+	 * @param counts receives the number of values going left [0] and right [1]
+	 * @param pre log prefix
+	 * @return true if the node has been split, false if it has been made a leaf
+	 * @throws Exception
+	 */
+	protected boolean applySplit(final Sampler<Dataset> sampler, List<Classification> classification, List<Classification> classificationLeft, List<Classification> classificationRight, final Node node, final int mode, final int depth, long[] counts, String pre) throws Exception {
+		splitValues(sampler, classification, classificationLeft, classificationRight, mode, node, counts);
 		
 		// If one side has 0 values to classify, make this node a leaf and return
 		if (counts[0] == 0 || counts[1] == 0) {
 			node.probabilities = calculateLeaf(sampler, classification, mode, depth);
 			if (params.logNodeInfo) log.write(pre + "One side zero -> leaf; Probabilities: " + ArrayUtils.toString(node.probabilities, true));
 			log.flush();
-			return;
+			return false;
 		}
 		
 		// Flush log file changes to disk to preserve them if crashes happen
 		log.flush();
 
-		// Shred classifications for garbage collector before recursion
+		// Shred classifications for garbage collector
 		for(int c=0; c<classification.size(); c++) {
 			classification.get(c).clear();
 		}
 		classification.clear(); 
-		classification = null;
-		
-		// Recursion to left and right
-		node.left = new Node();
-		growRec(root, sampler, classificationNextL, counts[0], node.left, 1, depth+1, maxDepth, true);
-		node.right = new Node();
-		growRec(root, sampler, classificationNextR, counts[1], node.right, 2, depth+1, maxDepth, true);
+		return true;
+	}
+
+	/**
+	 * Returns the feature candidates for a node. The default implementation generates
+	 * random features with the feature factory. With adaptive proposal, more candidates are
+	 * generated and chosen by the forest´s FeatureProposal.
+	 * 
+	 * @param root
+	 * @param depth
+	 * @return
+	 * @throws Exception
+	 */
+	protected List<Object> getFeatureCandidates(RandomTree root, int depth) throws Exception {
+		if (root.forest.proposal == null) return params.featureFactory.getRandomFeatureSet(params);
+		List<Object> candidates = new ArrayList<Object>();
+		while(candidates.size() < params.numOfRandomFeatures * params.adaptiveProposal) {
+			candidates.addAll(params.featureFactory.getRandomFeatureSet(params));
+		}
+		return root.forest.proposal.select(candidates, params.numOfRandomFeatures, depth);
+	}
+	
+	/**
+	 * Returns the threshold candidates for each feature of paramSet. The default implementation
+	 * uses the random thresholds of the features. Override this to derive the candidates
+	 * from the nodes data (see ForestParameters.thresholdQuantileSamples).
+	 * 
+	 * @param sampler
+	 * @param paramSet
+	 * @param classification
+	 * @param count
+	 * @return
+	 * @throws Exception
+	 */
+	protected float[][] getThresholdCandidates(Sampler<Dataset> sampler, List<Object> paramSet, List<Classification> classification, long count) throws Exception {
+		float[][] thresholds = new float[paramSet.size()][];
+		for(int i=0; i<thresholds.length; i++) {
+			thresholds[i] = ((Feature)paramSet.get(i)).getRandomThresholds(params.thresholdCandidatesPerFeature);
+		}
+		return thresholds;
 	}
 
 	/**
@@ -581,12 +927,37 @@ public abstract class RandomTree extends ScheduledThread {
 		}
 	}
 	
+	/**
+	 * Returns the evaluation buffers of this tree instance, prepared for numOfFeatures
+	 * features. As each growing thread has its own tree instance, these are never shared
+	 * between concurrently grown nodes.
+	 * 
+	 * @param numOfFeatures
+	 * @return
+	 */
+	protected EvaluationBuffers getEvaluationBuffers(int numOfFeatures) {
+		if (evaluationBuffers == null) {
+			evaluationBuffers = new EvaluationBuffers(Math.max(numOfFeatures, params.numOfRandomFeatures), params.thresholdCandidatesPerFeature, numOfClasses);
+		} else {
+			evaluationBuffers.reset(numOfFeatures);
+		}
+		return evaluationBuffers;
+	}
+	
 	/**
 	 * Info gain calculation upon shannon entropy, Kinect formula.
 	 * 
 	 */
 	protected double[][] getGainsByEntropy(int paramSetSize, long[][][] countClassesLeft, long[][][] countClassesRight) {
-		double[][] gain = new double[paramSetSize][params.thresholdCandidatesPerFeature];
+		return getGainsByEntropy(paramSetSize, countClassesLeft, countClassesRight, new double[paramSetSize][params.thresholdCandidatesPerFeature]);
+	}
+
+	/**
+	 * Info gain calculation upon shannon entropy, Kinect formula. The gains are
+	 * written to the given array, which is returned.
+	 * 
+	 */
+	protected double[][] getGainsByEntropy(int paramSetSize, long[][][] countClassesLeft, long[][][] countClassesRight, double[][] gain) {
 		// Get overall sum of classes
 		int numOfClasses = countClassesLeft[0][0].length;
 		long[] classes = new long[numOfClasses];
@@ -614,6 +985,21 @@ public abstract class RandomTree extends ScheduledThread {
 		return gain;
 	}
 
+	/**
+	 * Returns the Hoeffding bound for information gains (range log2(numOfClasses)) 
+	 * estimated from n values, holding with probability 1-delta.
+	 * 
+	 * @param numOfClasses
+	 * @param delta
+	 * @param n
+	 * @return
+	 */
+	public static double getHoeffdingBound(final int numOfClasses, final double delta, final long n) {
+		if (n <= 0) return Double.MAX_VALUE;
+		double range = Math.log(numOfClasses) / LOG2;
+		return range * Math.sqrt(Math.log(1.0/delta) / (2.0*n));
+	}
+
 	/**
 	 * Calculates shannon entropy for a binary alphabet (two possible values),  
 	 * while a and b represent the count of each of the two "letters". 
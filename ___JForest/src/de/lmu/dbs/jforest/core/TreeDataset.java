@@ -84,6 +84,15 @@ public abstract class TreeDataset extends Dataset {
 	 * @return
 	 */
 	public abstract boolean isLoaded();
+	
+	/**
+	 * Releases the data of the dataset. Implementations have to make sure isLoaded() 
+	 * returns false afterwards, so it is loaded again when needed next time.
+	 */
+	public synchronized void release() {
+		data = null;
+		reference = null;
+	}
 
 	/**
 	 * Returns the number of samples in the dataset.
@@ -1,47 +1,228 @@
 package de.lmu.dbs.jforest.core2d;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+
 import de.lmu.dbs.jforest.core.Classification;
 
 /**
  * Classification object for 2d data.
- * 
+ * <br><br>
+ * Each value is packed into one int, holding the x index (frame) in the upper bits,
+ * followed by the y index (bin) and the bootstrap count (weight) of the value in the lowest bits.
+ * The bit widths are determined from the dataset dimensions on creation, and are inherited
+ * by all classifications derived from this one.
+ *
  * @author Thomas Weber
  *
  */
 public class Classification2d extends Classification {
 
-	public int[] xIndex;
-	
-	public int[] yIndex;
-	
-	public Classification2d(int size) {
-		xIndex = new int[size];
-		yIndex = new int[size];
+	/**
+	 * Packed values: x | y | weight
+	 */
+	public int[] values;
+
+	/**
+	 * Shift of the x index
+	 */
+	public final int xShift;
+
+	/**
+	 * Shift of the y index (equals the number of weight bits)
+	 */
+	public final int yShift;
+
+	/**
+	 * Mask for the y index (after shifting)
+	 */
+	public final int yMask;
+
+	/**
+	 * Mask for the weight
+	 */
+	public final int weightMask;
+
+	/**
+	 * Number of background values (reference class 0) each contained background value stands for.
+	 * This is 1 unless the classification has been sampled stratified, see
+	 * TreeDataset2d.getStratifiedClassification(). Inherited by all derived classifications.
+	 */
+	public float backgroundWeight = 1;
+
+	/**
+	 * Creates a classification with a packing layout suitable for the given dimensions.
+	 *
+	 * @param size number of values
+	 * @param length maximum x index + 1
+	 * @param height maximum y index + 1
+	 * @param maxWeight maximum bootstrap count of a value
+	 * @throws Exception if the dimensions do not fit into 32 bits
+	 */
+	public Classification2d(int size, int length, int height, int maxWeight) throws Exception {
+		int xBits = getBits(length-1);
+		int yBits = getBits(height-1);
+		int wBits = getBits(maxWeight);
+		if (xBits + yBits + wBits > 32) throw new Exception("Dataset too large for packed values: " + length + "x" + height + ", max. weight " + maxWeight);
+		values = new int[size];
+		yShift = wBits;
+		xShift = yBits + wBits;
+		yMask = (1 << yBits) - 1;
+		weightMask = (1 << wBits) - 1;
+	}
+
+	/**
+	 * Creates a classification with the same packing layout as another one.
+	 *
+	 * @param size number of values
+	 * @param layout
+	 */
+	public Classification2d(int size, Classification2d layout) {
+		values = new int[size];
+		xShift = layout.xShift;
+		yShift = layout.yShift;
+		yMask = layout.yMask;
+		weightMask = layout.weightMask;
+		backgroundWeight = layout.backgroundWeight;
+	}
+
+	/**
+	 * Returns the number of bits needed to store values in range [0, max].
+	 *
+	 * @param max
+	 * @return
+	 */
+	private static int getBits(int max) {
+		if (max < 1) return 1;
+		return 32 - Integer.numberOfLeadingZeros(max);
 	}
-	
+
+	/**
+	 * Packs a value.
+	 *
+	 * @param x
+	 * @param y
+	 * @param weight
+	 * @return
+	 */
+	public final int pack(final int x, final int y, final int weight) {
+		return (x << xShift) | (y << yShift) | weight;
+	}
+
+	/**
+	 * Returns the x index of value i.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public final int getX(final int i) {
+		return values[i] >>> xShift;
+	}
+
+	/**
+	 * Returns the y index of value i.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public final int getY(final int i) {
+		return (values[i] >>> yShift) & yMask;
+	}
+
+	/**
+	 * Returns the weight (bootstrap count) of value i.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public final int getWeight(final int i) {
+		return values[i] & weightMask;
+	}
+
 	@Override
 	public void clear() {
-		xIndex = null;
-		yIndex = null;
+		values = null;
 	}
 
 	@Override
 	public int getSize() {
-		return xIndex.length;
+		return values.length;
 	}
 
 	/**
 	 * Generates a byte array with the classified pixels (x/y) set to 1.
-	 * 
+	 *
 	 * @param w
 	 * @param h
 	 * @return
 	 */
 	public byte[][] toByteArray(int w, int h) {
 		byte[][] ret = new byte[w][h];
-		for (int i=0; i<xIndex.length; i++) {
-			ret[xIndex[i]][yIndex[i]] = 1;
+		for (int i=0; i<values.length; i++) {
+			ret[getX(i)][getY(i)] = 1;
 		}
 		return ret;
 	}
+
+	/**
+	 * Classifications 2d can be compressed.
+	 * 
+	 * @return
+	 */
+	@Override
+	public boolean isCompressible() {
+		return true;
+	}
+
+	/**
+	 * Writes the values delta encoded as zigzag varints. This is meant for storing 
+	 * classifications of nodes which are not processed at the moment. out should be buffered.
+	 *
+	 * @param out
+	 * @throws Exception
+	 */
+	@Override
+	public void compress(final OutputStream out) throws Exception {
+		long last = 0;
+		for(int i=0; i<values.length; i++) {
+			long v = values[i] & 0xFFFFFFFFL;
+			long d = v - last;
+			last = v;
+			long z = (d << 1) ^ (d >> 63);
+			while((z & ~0x7FL) != 0) {
+				out.write((int)((z & 0x7F) | 0x80));
+				z >>>= 7;
+			}
+			out.write((int)z);
+		}
+	}
+
+	/**
+	 * Restores the values from data written by compress(OutputStream), keeping the packing layout.
+	 * in should be buffered.
+	 * 
+	 * @param in
+	 * @param size number of values
+	 * @throws Exception
+	 */
+	@Override
+	public void restore(final InputStream in, final int size) throws Exception {
+		int[] v = new int[size];
+		long last = 0;
+		for(int i=0; i<size; i++) {
+			long z = 0;
+			int shift = 0;
+			while(true) {
+				int b = in.read();
+				if (b < 0) throw new Exception("Unexpected end of compressed classification data");
+				z |= (long)(b & 0x7F) << shift;
+				if ((b & 0x80) == 0) break;
+				shift+= 7;
+			}
+			long d = (z >>> 1) ^ -(z & 1);
+			last+= d;
+			v[i] = (int)last;
+		}
+		values = v;
+	}
 }
@@ -26,4 +26,84 @@ public abstract class Feature2d extends Feature {
 	 */
 	public abstract float evaluate(final byte[][] data, final int x, final int y) throws Exception;
 
+	/**
+	 * Feature function for data held in a Spectrogram. This default implementation evaluates
+	 * the byte[][] copy of the spectrogram (see Spectrogram.toArray()), so existing features keep
+	 * working. The copy is created on the first call and cached with the spectrogram, which costs
+	 * as much heap as the data itself. Features should override this and access the spectrogram
+	 * directly (i.e. with get(x, y)).
+	 * 
+	 * @param data data sample
+	 * @param x coordinate in data sample
+	 * @param y coordinate in data sample
+	 * @return
+	 * @throws Exception
+	 */
+	public float evaluate(final Spectrogram data, final int x, final int y) throws Exception {
+		return evaluate(data.toArray(), x, y);
+	}
+
+	/**
+	 * Batch version of the feature function: Evaluates the values [from, to[ of
+	 * the classification and writes the results to out[0..to-from-1]. The results have to be 
+	 * the same as evaluate(data, x, y) would deliver for each value. 
+	 * <br><br>
+	 * This default implementation simply calls evaluate for each value. Override it
+	 * to provide faster implementations, i.e. with hoisted bounds checks.
+	 * 
+	 * @param data data sample
+	 * @param cla packed classification values
+	 * @param from first value index (inclusive)
+	 * @param to last value index (exclusive)
+	 * @param out result buffer
+	 * @throws Exception
+	 */
+	public void evaluateBatch(final byte[][] data, final Classification2d cla, final int from, final int to, final float[] out) throws Exception {
+		final int[] values = cla.values;
+		for(int c=from; c<to; c++) {
+			int v = values[c];
+			out[c-from] = evaluate(data, v >>> cla.xShift, (v >>> cla.yShift) & cla.yMask);
+		}
+	}
+
+	/**
+	 * Batch version of the feature function for data given either as byte[][] array or
+	 * as Spectrogram. Calls the corresponding evaluateBatch implementation.
+	 * 
+	 * @param data data sample (byte[][] or Spectrogram)
+	 * @param cla packed classification values
+	 * @param from first value index (inclusive)
+	 * @param to last value index (exclusive)
+	 * @param out result buffer
+	 * @throws Exception
+	 */
+	public final void evaluateBatchOn(final Object data, final Classification2d cla, final int from, final int to, final float[] out) throws Exception {
+		if (data instanceof Spectrogram) {
+			evaluateBatch((Spectrogram)data, cla, from, to, out);
+		} else {
+			evaluateBatch((byte[][])data, cla, from, to, out);
+		}
+	}
+	
+	/**
+	 * Batch version of the feature function for data held in a Spectrogram, see
+	 * evaluateBatch(byte[][], ...). This default implementation calls evaluate(Spectrogram, x, y)
+	 * for each value. Features used with off heap data should override both, so the 
+	 * data is never copied to the heap.
+	 * 
+	 * @param data data sample
+	 * @param cla packed classification values
+	 * @param from first value index (inclusive)
+	 * @param to last value index (exclusive)
+	 * @param out result buffer
+	 * @throws Exception
+	 */
+	public void evaluateBatch(final Spectrogram data, final Classification2d cla, final int from, final int to, final float[] out) throws Exception {
+		final int[] values = cla.values;
+		for(int c=from; c<to; c++) {
+			int v = values[c];
+			out[c-from] = evaluate(data, v >>> cla.xShift, (v >>> cla.yShift) & cla.yMask);
+		}
+	}
+
 }
@@ -34,6 +34,11 @@ public abstract class FeatureComposite2d extends Feature2d {
 		throw new Exception(this.getClass().getName() + ": This is just a factory feature, dont use it to classify.");
 	}
 
+	@Override
+	public float evaluate(Spectrogram data, int x, int y) throws Exception {
+		throw new Exception(this.getClass().getName() + ": This is just a factory feature, dont use it to classify.");
+	}
+
 	@Override
 	public Feature getInstance(ForestParameters params) throws Exception {
 		int i = RandomUtils.randomInt(factories.size()-1);
@@ -1,12 +1,17 @@
 package de.lmu.dbs.jforest.core2d;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 
 import de.lmu.dbs.jforest.core.ClassificationWorker;
 import de.lmu.dbs.jforest.core.ClassificationWorkerGroup;
+import de.lmu.dbs.jforest.core.Dataset;
 import de.lmu.dbs.jforest.core.Forest;
 import de.lmu.dbs.jforest.core.ForestParameters;
 import de.lmu.dbs.jforest.core.RandomTree;
+import de.lmu.dbs.jforest.sampler.Sampler;
 import de.lmu.dbs.jforest.util.Logfile;
 import de.lmu.dbs.jforest.util.workergroup.ThreadScheduler;
 
@@ -18,6 +23,11 @@ import de.lmu.dbs.jforest.util.workergroup.ThreadScheduler;
  */
 public class Forest2d extends Forest {
 
+	/**
+	 * Out-of-bag estimate collected while growing, or null (see ForestParameters.outOfBagEstimate)
+	 */
+	private OutOfBagEstimate2d outOfBag = null;
+
 	/**
 	 * 
 	 * @throws Exception
@@ -40,6 +50,64 @@ public class Forest2d extends Forest {
 		super(trees, params, log, maxNumOfEvalThreads, maxNumOfNodeThreads, nodeThreadingThreshold);
 	}
 
+	/**
+	 * Adds the out-of-bag posteriors of the grown tree, if enabled.
+	 * 
+	 */
+	@Override
+	protected void treeGrown(int index, Sampler<Dataset> sampler, int[][] sampling) throws Exception {
+		if (!getParams().outOfBagEstimate) return;
+		RandomTree2d tree = (RandomTree2d)trees.get(index);
+		if (outOfBag == null) outOfBag = new OutOfBagEstimate2d(sampler.getData(), tree.numOfClasses);
+		outOfBag.add(tree, sampling);
+		System.out.println(timeStampFormatter.format(new Date()) + ": Added out-of-bag posteriors of tree " + index);
+	}
+	
+	/**
+	 * Returns the out-of-bag estimate collected while growing, or null if 
+	 * not enabled (see ForestParameters.outOfBagEstimate).
+	 * 
+	 * @return
+	 */
+	public OutOfBagEstimate2d getOutOfBagEstimate() {
+		return outOfBag;
+	}
+	
+	/**
+	 * Grows the forest in streaming mode (see HoeffdingLearner2d): The datasets of the sampler´s
+	 * pool are read once, in random order, and released after learning them. Groups of 
+	 * streamMixDatasets datasets are learned at once, with their values interleaved randomly. 
+	 * No out-of-bag estimate is collected in this mode.
+	 * 
+	 * @param sampler data provider, its pool is used without bootstrapping
+	 * @throws Exception
+	 */
+	public void growStreaming(final Sampler<Dataset> sampler) throws Exception {
+		startTime = System.currentTimeMillis();
+		for(int i=0; i<trees.size(); i++) {
+			((RandomTree2d)trees.get(i)).logMeta(sampler);
+		}
+		HoeffdingLearner2d learner = new HoeffdingLearner2d(this);
+		List<Integer> order = new ArrayList<Integer>();
+		for(int i=0; i<sampler.getPoolSize(); i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order);
+		for(int i=0; i<order.size(); i+= getParams().streamMixDatasets) {
+			List<TreeDataset2d> datasets = new ArrayList<TreeDataset2d>();
+			for(int j=i; j<order.size() && j<i+getParams().streamMixDatasets; j++) {
+				datasets.add((TreeDataset2d)sampler.get(order.get(j)));
+			}
+			learner.learn(datasets);
+			for(int j=0; j<datasets.size(); j++) {
+				datasets.get(j).release();
+			}
+			System.out.println(timeStampFormatter.format(new Date()) + ": Streamed datasets " + (i+datasets.size()) + "/" + sampler.getPoolSize() + ", " + learner.getNumOfValues() + " values, " + learner.getNumOfSplits() + " splits");
+		}
+		learner.finish();
+		System.out.println("Finished growing forest in streaming mode.");
+	}
+
 	/**
 	 * Classifies a whole 2d array of data values and returns the results, normalized to [0,1].
 	 * 
@@ -53,17 +121,25 @@ public class Forest2d extends Forest {
 	
 	/**
 	 * Classifies a whole 2d array of data values and returns the results, normalized to [0,1],
-	 * multithreaded if numOfThreads > 1.
+	 * multithreaded if numOfThreads > 1. Spectrogram data is passed to the trees as it is, 
+	 * without copying it to a byte[][] array.
 	 * 
-	 * @param dataO
+	 * @param data byte[][] or Spectrogram
 	 * @return
 	 * @throws Exception
 	 */
-	public float[][][] classify2d(Object dataO, int numOfThreads, boolean verbose, int maxDepth) throws Exception {
+	public float[][][] classify2d(Object data, int numOfThreads, boolean verbose, int maxDepth) throws Exception {
 		check();	
-		byte[][] data = (byte[][])dataO;
-		float[][][] dataForest = new float[data.length][data[0].length][];
-		int numOfWork = data[0].length;
+		int frames, bins;
+		if (data instanceof Spectrogram) {
+			frames = ((Spectrogram)data).getFrames();
+			bins = ((Spectrogram)data).getBins();
+		} else {
+			frames = ((byte[][])data).length;
+			bins = ((byte[][])data)[0].length;
+		}
+		float[][][] dataForest = new float[frames][bins][];
+		int numOfWork = bins;
 
 		// No multithreading
 		if (numOfThreads <= 1) {
@@ -73,7 +149,7 @@ public class Forest2d extends Forest {
 		}
 		
 		// Checks
-		if (numOfWork < numOfThreads) throw new Exception("Too few work for classification threads: " + data.length);
+		if (numOfWork < numOfThreads) throw new Exception("Too few work for classification threads: " + frames);
 		
 		// Multithreading
 		ThreadScheduler ts = new ThreadScheduler(numOfThreads);
@@ -0,0 +1,471 @@
+package de.lmu.dbs.jforest.core2d;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import de.lmu.dbs.jforest.core.Classification;
+import de.lmu.dbs.jforest.core.ForestParameters;
+import de.lmu.dbs.jforest.core.Node;
+import de.lmu.dbs.jforest.core.RandomTree;
+import de.lmu.dbs.jforest.util.ArrayUtils;
+
+/**
+ * Streaming learner for forests of RandomTree2d (Hoeffding trees). The datasets are read once,
+ * in groups, and can be released afterwards. The Hoeffding bound assumes independent values, but
+ * neighbouring values of a dataset are highly correlated. So the values of all datasets of a 
+ * group are streamed in random order.
+ * <br><br>
+ * Each leaf keeps class counts of its values for a set of feature candidates and thresholds (the
+ * thresholds are the first responses of the candidate seen at the leaf). Every streamGracePeriod values,
+ * the leaf is split if the Hoeffding bound guarantees (with probability 1-streamDelta) that its best
+ * candidate is better than the best one of all other candidates, or if the bound falls below
+ * streamTieThreshold. If streamPoissonBagging is set, each value is presented to each tree Poisson(1)
+ * times (online bagging), instead of bootstrapping the datasets.
+ * <br><br>
+ * After the last dataset, finish() sets the probabilities of all leaves, so the trees can be
+ * saved and used like grown ones.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class HoeffdingLearner2d {
+
+	/**
+	 * The trees to learn
+	 */
+	private List<RandomTree> trees;
+
+	/**
+	 * Parameters
+	 */
+	private ForestParameters params;
+
+	/**
+	 * Statistics of the active leaves of each tree
+	 */
+	private List<Map<Node, LeafStats>> leaves = new ArrayList<Map<Node, LeafStats>>();
+
+	/**
+	 * Random generator for online bagging and shuffling
+	 */
+	private Random random = new Random();
+
+	/**
+	 * Number of values learned so far
+	 */
+	private long numOfValues = 0;
+
+	/**
+	 * Number of splits so far
+	 */
+	private long numOfSplits = 0;
+
+	/**
+	 * Number of background values learned so far
+	 */
+	private long backgroundLearned = 0;
+
+	/**
+	 * Number of background values of the datasets the learned ones stand for (stratified sampling)
+	 */
+	private double backgroundRepresented = 0;
+
+	/**
+	 * Sufficient statistics of an active leaf.
+	 *
+	 * @author Thomas Weber
+	 *
+	 */
+	private class LeafStats {
+
+		/**
+		 * Depth of the leaf
+		 */
+		public int depth;
+
+		/**
+		 * Class counts of all values of the leaf
+		 */
+		public long[] classes;
+
+		/**
+		 * Feature candidates, or null if the leaf is at maximum depth
+		 */
+		public List<Object> candidates = null;
+
+		/**
+		 * Threshold candidates per feature candidate
+		 */
+		public float[][] thresholds;
+
+		/**
+		 * Number of threshold candidates collected per feature candidate
+		 */
+		public int[] numOfThresholds;
+
+		/**
+		 * Class counts of the values counted per feature candidate, [candidate][class]
+		 */
+		public long[][] counted;
+
+		/**
+		 * Class counts of the values going left, [candidate][threshold][class]
+		 */
+		public long[][][] countLeft;
+
+		/**
+		 * Values since the last split attempt
+		 */
+		public long sinceCheck = 0;
+	}
+
+	/**
+	 * Creates a learner for the (empty) trees of a forest.
+	 *
+	 * @param forest
+	 * @throws Exception
+	 */
+	public HoeffdingLearner2d(Forest2d forest) throws Exception {
+		this.trees = forest.getTrees();
+		this.params = forest.getParams();
+		for(int i=0; i<trees.size(); i++) {
+			RandomTree2d tree = (RandomTree2d)trees.get(i);
+			Map<Node, LeafStats> l = new HashMap<Node, LeafStats>();
+			l.put(tree.getRootNode(), newLeaf(tree, 0, new long[tree.numOfClasses]));
+			leaves.add(l);
+		}
+	}
+
+	/**
+	 * Learns the values of some datasets, sampled like for growing (see ForestParameters). 
+	 * The values of each dataset are shuffled, and the datasets are interleaved randomly (the 
+	 * next dataset is chosen with a probability proportional to its remaining values), so
+	 * all values are learned in uniformly random order.
+	 *
+	 * @param datasets
+	 * @throws Exception
+	 */
+	public void learn(List<TreeDataset2d> datasets) throws Exception {
+		int n = datasets.size();
+		Object[] data = new Object[n];
+		Object[] ref = new Object[n];
+		Classification2d[] cla = new Classification2d[n];
+		int[][] order = new int[n][];
+		int[] remaining = new int[n];
+		long all = 0;
+		for(int i=0; i<n; i++) {
+			TreeDataset2d dataset = datasets.get(i);
+			data[i] = dataset.getData();
+			ref[i] = dataset.getReference();
+			Classification c;
+			if (params.backgroundSamplingRatio > 0) {
+				c = dataset.getStratifiedClassification(params.backgroundSamplingRatio, params.skipZeroBackgroundValues);
+			} else {
+				c = dataset.getInitialClassification((int)(params.percentageOfRandomValuesPerFrame * dataset.getHeight()));
+			}
+			cla[i] = (Classification2d)c;
+			order[i] = getShuffledIndices(cla[i].getSize());
+			remaining[i] = order[i].length;
+			all+= remaining[i];
+		}
+
+		for(long left=all; left>0; left--) {
+			// Choose a dataset proportionally to its remaining values
+			long r = (long)(random.nextDouble() * left);
+			int i = 0;
+			while(r >= remaining[i]) {
+				r-= remaining[i];
+				i++;
+			}
+			remaining[i]--;
+			int v = order[i][remaining[i]];
+			if (TreeDataset2d.getValue(ref[i], cla[i].getX(v), cla[i].getY(v)) == 0) {
+				backgroundLearned++;
+				backgroundRepresented+= cla[i].backgroundWeight;
+			}
+			learnValue(data[i], ref[i], cla[i].getX(v), cla[i].getY(v));
+		}
+		numOfValues+= all;
+	}
+
+	/**
+	 * Internal: Learns one value in all trees.
+	 *
+	 * @param data
+	 * @param ref
+	 * @param x
+	 * @param y
+	 * @throws Exception
+	 */
+	private void learnValue(Object data, Object ref, int x, int y) throws Exception {
+		int cls = TreeDataset2d.getValue(ref, x, y);
+		for(int t=0; t<trees.size(); t++) {
+			int k = params.streamPoissonBagging ? getPoisson() : 1;
+			if (k == 0) continue;
+			RandomTree2d tree = (RandomTree2d)trees.get(t);
+			Node node = tree.getRootNode();
+			while(!node.isLeaf()) {
+				node = (evaluate((Feature2d)node.feature, data, x, y) >= node.feature.threshold) ? node.left : node.right;
+			}
+			LeafStats s = leaves.get(t).get(node);
+			update(s, data, x, y, cls, k);
+			if (s.candidates != null && s.sinceCheck >= params.streamGracePeriod) attemptSplit(tree, leaves.get(t), node, s);
+		}
+	}
+
+	/**
+	 * Internal: Returns the indices [0..size[ in random order (Fisher-Yates).
+	 *
+	 * @param size
+	 * @return
+	 */
+	private int[] getShuffledIndices(int size) {
+		int[] ret = new int[size];
+		for(int i=0; i<size; i++) {
+			ret[i] = i;
+		}
+		for(int i=size-1; i>0; i--) {
+			int j = random.nextInt(i+1);
+			int tmp = ret[i];
+			ret[i] = ret[j];
+			ret[j] = tmp;
+		}
+		return ret;
+	}
+
+	/**
+	 * Sets the probabilities of all leaves. Afterwards, the trees are complete.
+	 *
+	 * @throws Exception
+	 */
+	public void finish() throws Exception {
+		for(int t=0; t<trees.size(); t++) {
+			for(Map.Entry<Node, LeafStats> e : leaves.get(t).entrySet()) {
+				e.getKey().probabilities = getProbabilities(e.getValue().classes);
+			}
+			leaves.get(t).clear();
+		}
+	}
+
+	/**
+	 * Internal: Adds a value to the statistics of a leaf.
+	 *
+	 * @param s
+	 * @param data
+	 * @param x
+	 * @param y
+	 * @param cls class of the value
+	 * @param k weight of the value
+	 * @throws Exception
+	 */
+	private void update(LeafStats s, Object data, int x, int y, int cls, int k) throws Exception {
+		s.classes[cls]+= k;
+		s.sinceCheck+= k;
+		if (s.candidates == null) return;
+		int tcpf = params.thresholdCandidatesPerFeature;
+		for(int i=0; i<s.candidates.size(); i++) {
+			float ev = evaluate((Feature2d)s.candidates.get(i), data, x, y);
+			if (s.numOfThresholds[i] < tcpf) {
+				// Still collecting threshold candidates
+				if (ev > -Float.MAX_VALUE) s.thresholds[i][s.numOfThresholds[i]++] = ev;
+				continue;
+			}
+			s.counted[i][cls]+= k;
+			for(int j=0; j<tcpf; j++) {
+				if (ev >= s.thresholds[i][j]) s.countLeft[i][j][cls]+= k;
+			}
+		}
+	}
+
+	/**
+	 * Internal: Splits a leaf if the Hoeffding bound allows it.
+	 *
+	 * @param tree
+	 * @param treeLeaves
+	 * @param node
+	 * @param s
+	 * @throws Exception
+	 */
+	private void attemptSplit(RandomTree2d tree, Map<Node, LeafStats> treeLeaves, Node node, LeafStats s) throws Exception {
+		s.sinceCheck = 0;
+		int numOfClasses = tree.numOfClasses;
+		long[] right = new long[numOfClasses];
+		double best = -Double.MAX_VALUE;
+		double second = -Double.MAX_VALUE;
+		int bestI = -1;
+		int bestJ = -1;
+		for(int i=0; i<s.candidates.size(); i++) {
+			if (s.numOfThresholds[i] < params.thresholdCandidatesPerFeature) continue;
+			long all = sum(s.counted[i]);
+			if (all == 0) continue;
+			double entropyAll = RandomTree.getEntropy(s.counted[i]);
+			double candBest = -Double.MAX_VALUE;
+			int candJ = -1;
+			for(int j=0; j<s.thresholds[i].length; j++) {
+				long[] left = s.countLeft[i][j];
+				for(int c=0; c<numOfClasses; c++) {
+					right[c] = s.counted[i][c] - left[c];
+				}
+				long amountLeft = sum(left);
+				if (amountLeft == 0 || amountLeft == all) continue;
+				double gain = entropyAll - ((double)amountLeft/all)*RandomTree.getEntropy(left) - ((double)(all-amountLeft)/all)*RandomTree.getEntropy(right);
+				if (gain > candBest) {
+					candBest = gain;
+					candJ = j;
+				}
+			}
+			if (candJ < 0) continue;
+			if (candBest > best) {
+				second = best;
+				best = candBest;
+				bestI = i;
+				bestJ = candJ;
+			} else if (candBest > second) {
+				second = candBest;
+			}
+		}
+		if (bestI < 0 || best <= params.entropyThreshold) return;
+		if (second == -Double.MAX_VALUE) second = 0;
+
+		long n = sum(s.counted[bestI]);
+		double epsilon = RandomTree.getHoeffdingBound(numOfClasses, params.streamDelta, n);
+		if (best - second <= epsilon && epsilon >= params.streamTieThreshold) return;
+
+		// Split: The children start with the class counts of their side
+		Feature2d feature = (Feature2d)s.candidates.get(bestI);
+		feature.threshold = s.thresholds[bestI][bestJ];
+		long[] left = s.countLeft[bestI][bestJ].clone();
+		long[] rightCounts = new long[numOfClasses];
+		for(int c=0; c<numOfClasses; c++) {
+			rightCounts[c] = s.counted[bestI][c] - left[c];
+		}
+		node.feature = feature;
+		node.left = new Node();
+		node.right = new Node();
+		treeLeaves.remove(node);
+		treeLeaves.put(node.left, newLeaf(tree, s.depth+1, left));
+		treeLeaves.put(node.right, newLeaf(tree, s.depth+1, rightCounts));
+		numOfSplits++;
+
+		tree.infoGain.add(best);
+		if (tree.forest != null && tree.forest.proposal != null) tree.forest.proposal.record(feature, s.depth);
+		if (params.logNodeInfo) {
+			String pre = "T" + tree.num + ":  ";
+			for(int i=0; i<s.depth; i++) pre+="-  ";
+			tree.log.write(pre + "Split after " + n + " values, gain " + best + " (second: " + second + ", bound: " + epsilon + "); Threshold: " + feature.threshold + "; Class counts left: " + ArrayUtils.toString(left) + ", right: " + ArrayUtils.toString(rightCounts) + "; Coeffs: " + feature);
+		}
+	}
+
+	/**
+	 * Internal: Creates the statistics of a new leaf.
+	 *
+	 * @param tree
+	 * @param depth
+	 * @param classes initial class counts
+	 * @return
+	 * @throws Exception
+	 */
+	private LeafStats newLeaf(RandomTree2d tree, int depth, long[] classes) throws Exception {
+		LeafStats s = new LeafStats();
+		s.depth = depth;
+		s.classes = classes;
+		if (depth >= params.maxDepth) return s;
+		s.candidates = tree.getFeatureCandidates(tree, depth);
+		int n = s.candidates.size();
+		int tcpf = params.thresholdCandidatesPerFeature;
+		s.thresholds = new float[n][tcpf];
+		s.numOfThresholds = new int[n];
+		s.counted = new long[n][tree.numOfClasses];
+		s.countLeft = new long[n][tcpf][tree.numOfClasses];
+		return s;
+	}
+
+	/**
+	 * Internal: Returns leaf probabilities from class counts, like RandomTree2d.calculateLeaf().
+	 * The background counts are corrected by the mean background weight of all values learned so far,
+	 * as the leaf counts do not keep track of the datasets.
+	 *
+	 * @param classes
+	 * @return
+	 */
+	private float[] getProbabilities(long[] classes) {
+		float[] l = new float[classes.length];
+		for(int c=0; c<classes.length; c++) {
+			l[c] = classes[c];
+		}
+		if (params.backgroundSamplingRatio > 0 && backgroundLearned > 0) l[0]*= (float)(backgroundRepresented / backgroundLearned);
+		float all = 0;
+		for(int c=0; c<l.length; c++) {
+			all+= l[c];
+		}
+		for(int c=0; c<l.length; c++) {
+			l[c] = (all > 0) ? l[c] / all : 1.0f / l.length;
+		}
+		return l;
+	}
+
+	/**
+	 * Internal: Evaluates a feature on either data representation.
+	 *
+	 * @param feature
+	 * @param data
+	 * @param x
+	 * @param y
+	 * @return
+	 * @throws Exception
+	 */
+	private static float evaluate(Feature2d feature, Object data, int x, int y) throws Exception {
+		return (data instanceof Spectrogram) ? feature.evaluate((Spectrogram)data, x, y) : feature.evaluate((byte[][])data, x, y);
+	}
+
+	/**
+	 * Internal: Returns a Poisson(1) distributed random number (Knuth).
+	 *
+	 * @return
+	 */
+	private int getPoisson() {
+		double l = Math.exp(-1);
+		double p = random.nextDouble();
+		int k = 0;
+		while(p > l) {
+			k++;
+			p*= random.nextDouble();
+		}
+		return k;
+	}
+
+	/**
+	 * Internal: Sum of counts.
+	 *
+	 * @param counts
+	 * @return
+	 */
+	private static long sum(long[] counts) {
+		long ret = 0;
+		for(int i=0; i<counts.length; i++) {
+			ret+= counts[i];
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the number of values learned so far (without bagging weights).
+	 *
+	 * @return
+	 */
+	public long getNumOfValues() {
+		return numOfValues;
+	}
+
+	/**
+	 * Returns the number of splits so far, in all trees.
+	 *
+	 * @return
+	 */
+	public long getNumOfSplits() {
+		return numOfSplits;
+	}
+}
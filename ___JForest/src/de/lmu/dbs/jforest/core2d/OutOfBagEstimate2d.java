@@ -0,0 +1,289 @@
+package de.lmu.dbs.jforest.core2d;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.lmu.dbs.jforest.core.Dataset;
+
+/**
+ * Out-of-bag posteriors of a forest, collected while growing: Each tree classifies the frames
+ * of the training datasets it has not sampled, and the results are averaged per value.
+ * This gives validation results on the training data without a separate test pass.
+ * <br><br>
+ * Only frames which are out of bag for at least one tree are covered, and only these hold 
+ * posterior sums (one row per covered frame, allocated when the frame is out of bag for the first time).
+ * The covered frames of a dataset are returned as contiguous segments by getCoveredSegments(), so 
+ * code working on neighbouring frames (i.e. onset/offset tests with a time window) never sees 
+ * frames which are not adjacent in the dataset.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class OutOfBagEstimate2d {
+
+	/**
+	 * The data pool the trees have been sampled from
+	 */
+	private List<Dataset> pool;
+
+	/**
+	 * Number of classes
+	 */
+	private int numOfClasses;
+
+	/**
+	 * Sums of the tree posteriors per dataset and frame, [dataset][x][y * numOfClasses + class].
+	 * Rows of frames which have not been out of bag yet are null.
+	 */
+	private float[][][] sums;
+
+	/**
+	 * Number of trees which had each frame out of bag, per dataset
+	 */
+	private int[][] counts;
+
+	/**
+	 * Number of trees added
+	 */
+	private int numOfTrees = 0;
+
+	/**
+	 *
+	 * @param pool the data pool the trees have been sampled from
+	 * @param numOfClasses
+	 */
+	public OutOfBagEstimate2d(List<Dataset> pool, int numOfClasses) {
+		this.pool = pool;
+		this.numOfClasses = numOfClasses;
+		this.sums = new float[pool.size()][][];
+		this.counts = new int[pool.size()][];
+	}
+
+	/**
+	 * Adds the posteriors of a completely grown tree for all frames it has not sampled.
+	 * Each dataset is loaded once, and released afterwards if it had not been loaded before.
+	 * Data held in a Spectrogram is classified directly, without an array copy.
+	 *
+	 * @param tree
+	 * @param sampling sampling[d][x] is the number of times frame x of pool dataset d has been
+	 *                 sampled for the tree
+	 * @throws Exception
+	 */
+	public void add(RandomTree2d tree, int[][] sampling) throws Exception {
+		if (sampling.length != pool.size()) throw new Exception("Sampling of " + sampling.length + " datasets does not match the pool size " + pool.size());
+		for(int d=0; d<pool.size(); d++) {
+			TreeDataset2d dataset = (TreeDataset2d)pool.get(d);
+			boolean wasLoaded = dataset.isLoaded();
+			Object data = dataset.getData();
+			int len = dataset.getLength();
+			int hei = dataset.getHeight();
+			if (sampling[d].length != len) throw new Exception("Sampling array of dataset " + d + " has length " + sampling[d].length + ", expected " + len);
+			if (sums[d] == null) {
+				sums[d] = new float[len][];
+				counts[d] = new int[len];
+			}
+			for(int x=0; x<len; x++) {
+				if (sampling[d][x] > 0) continue;
+				if (sums[d][x] == null) sums[d][x] = new float[hei * numOfClasses];
+				float[] s = sums[d][x];
+				for(int y=0; y<hei; y++) {
+					float[] p = tree.classify(data, x, y, -1);
+					int base = y * numOfClasses;
+					for(int c=0; c<numOfClasses; c++) {
+						s[base + c]+= p[c];
+					}
+				}
+				counts[d][x]++;
+			}
+			if (!wasLoaded) dataset.release();
+		}
+		numOfTrees++;
+	}
+
+	/**
+	 * Returns the number of frames of a dataset which are out of bag for at least one tree.
+	 *
+	 * @param d pool index of the dataset
+	 * @return
+	 */
+	public int getNumOfCoveredFrames(int d) {
+		if (counts[d] == null) return 0;
+		int ret = 0;
+		for(int x=0; x<counts[d].length; x++) {
+			if (counts[d][x] > 0) ret++;
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the contiguous runs of covered frames of a dataset, as {first frame, last frame + 1}.
+	 * Runs shorter than minLength are omitted.
+	 *
+	 * @param d pool index of the dataset
+	 * @param minLength minimum number of frames of a segment
+	 * @return
+	 */
+	public List<int[]> getCoveredSegments(int d, int minLength) {
+		List<int[]> ret = new ArrayList<int[]>();
+		if (counts[d] == null) return ret;
+		int len = counts[d].length;
+		int x = 0;
+		while(x < len) {
+			if (counts[d][x] == 0) {
+				x++;
+				continue;
+			}
+			int from = x;
+			while(x < len && counts[d][x] > 0) x++;
+			if (x - from >= minLength) ret.add(new int[] {from, x});
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the averaged out-of-bag posteriors [frame][bin][class] of a segment of covered frames.
+	 *
+	 * @param d pool index of the dataset
+	 * @param segment {first frame, last frame + 1}, see getCoveredSegments()
+	 * @return
+	 * @throws Exception
+	 */
+	public float[][][] getPosteriors(int d, int[] segment) throws Exception {
+		int hei = -1;
+		float[][][] ret = new float[segment[1] - segment[0]][][];
+		for(int x=segment[0]; x<segment[1]; x++) {
+			if (counts[d][x] == 0) throw new Exception("Frame " + x + " of dataset " + d + " is not covered");
+			float[] s = sums[d][x];
+			if (hei < 0) hei = s.length / numOfClasses;
+			float n = counts[d][x];
+			float[][] f = new float[hei][numOfClasses];
+			for(int y=0; y<hei; y++) {
+				int base = y * numOfClasses;
+				for(int c=0; c<numOfClasses; c++) {
+					f[y][c] = s[base + c] / n;
+				}
+			}
+			ret[x - segment[0]] = f;
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the reference of a segment of frames of a dataset.
+	 *
+	 * @param d pool index of the dataset
+	 * @param segment {first frame, last frame + 1}, see getCoveredSegments()
+	 * @return
+	 * @throws Exception
+	 */
+	public byte[][] getReference(int d, int[] segment) throws Exception {
+		TreeDataset2d dataset = (TreeDataset2d)pool.get(d);
+		boolean wasLoaded = dataset.isLoaded();
+		Object ref = dataset.getReference();
+		int hei = dataset.getHeight();
+		byte[][] ret = new byte[segment[1] - segment[0]][hei];
+		for(int x=segment[0]; x<segment[1]; x++) {
+			for(int y=0; y<hei; y++) {
+				ret[x - segment[0]][y] = TreeDataset2d.getValue(ref, x, y);
+			}
+		}
+		if (!wasLoaded) dataset.release();
+		return ret;
+	}
+
+	/**
+	 * Returns the confusion matrix [reference class][predicted class] of all covered values,
+	 * predicting the class with the highest posterior.
+	 *
+	 * @return
+	 * @throws Exception
+	 */
+	public long[][] getConfusionMatrix() throws Exception {
+		long[][] ret = new long[numOfClasses][numOfClasses];
+		for(int d=0; d<pool.size(); d++) {
+			if (counts[d] == null) continue;
+			TreeDataset2d dataset = (TreeDataset2d)pool.get(d);
+			boolean wasLoaded = dataset.isLoaded();
+			Object ref = dataset.getReference();
+			for(int x=0; x<counts[d].length; x++) {
+				if (counts[d][x] == 0) continue;
+				float[] s = sums[d][x];
+				for(int y=0; y<s.length / numOfClasses; y++) {
+					int base = y * numOfClasses;
+					int best = 0;
+					for(int c=1; c<numOfClasses; c++) {
+						if (s[base + c] > s[base + best]) best = c;
+					}
+					ret[TreeDataset2d.getValue(ref, x, y)][best]++;
+				}
+			}
+			if (!wasLoaded) dataset.release();
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the fraction of all frames which are out of bag for at least one tree.
+	 *
+	 * @return
+	 */
+	public double getCoverage() {
+		long all = 0;
+		long covered = 0;
+		for(int d=0; d<counts.length; d++) {
+			if (counts[d] == null) continue;
+			all+= counts[d].length;
+			covered+= getNumOfCoveredFrames(d);
+		}
+		return (all > 0) ? (double)covered / all : 0;
+	}
+
+	/**
+	 * Returns the number of trees added so far.
+	 *
+	 * @return
+	 */
+	public int getNumOfTrees() {
+		return numOfTrees;
+	}
+
+	/**
+	 * Returns the pool size.
+	 *
+	 * @return
+	 */
+	public int getPoolSize() {
+		return pool.size();
+	}
+
+	/**
+	 * Returns a summary of the out-of-bag results: Coverage, accuracy and per class
+	 * precision and recall.
+	 *
+	 * @return
+	 * @throws Exception
+	 */
+	public String getStatsString() throws Exception {
+		long[][] cm = getConfusionMatrix();
+		long all = 0;
+		long correct = 0;
+		for(int r=0; r<numOfClasses; r++) {
+			for(int p=0; p<numOfClasses; p++) {
+				all+= cm[r][p];
+				if (r == p) correct+= cm[r][p];
+			}
+		}
+		String ret = "Out-of-bag estimate of " + numOfTrees + " trees, frame coverage: " + getCoverage() + "\n";
+		ret+= "  Accuracy: " + ((all > 0) ? (double)correct / all : 0) + " (" + all + " values)\n";
+		for(int c=0; c<numOfClasses; c++) {
+			long predicted = 0;
+			long actual = 0;
+			for(int i=0; i<numOfClasses; i++) {
+				predicted+= cm[i][c];
+				actual+= cm[c][i];
+			}
+			ret+= "  Class " + c + ": Precision " + ((predicted > 0) ? (double)cm[c][c] / predicted : 0) + ", Recall " + ((actual > 0) ? (double)cm[c][c] / actual : 0) + "\n";
+		}
+		return ret;
+	}
+}
@@ -3,6 +3,7 @@ package de.lmu.dbs.jforest.core2d;
 import java.awt.Color;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import de.lmu.dbs.jforest.util.Logfile;
@@ -15,6 +16,7 @@ import de.lmu.dbs.jforest.core.RandomTreeWorker;
 import de.lmu.dbs.jforest.core.TreeDataset;
 import de.lmu.dbs.jforest.sampler.Sampler;
 import de.lmu.dbs.jforest.util.ArrayToImage;
+import de.lmu.dbs.jforest.util.RandomUtils;
 import de.lmu.dbs.jforest.core.ForestParameters;
 
 /**
@@ -26,6 +28,16 @@ import de.lmu.dbs.jforest.core.ForestParameters;
  */
 public class RandomTree2d extends RandomTree {
 
+	/**
+	 * Number of values evaluated in one batch by the features.
+	 */
+	public static final int BATCH_SIZE = 4096;
+
+	/**
+	 * Precomputed feature responses, see getResponseStore()
+	 */
+	private ResponseStore responseStore = null;
+
 	/**
 	 * Creates a blank tree, used as a factory.
 	 * 
@@ -85,9 +97,36 @@ public class RandomTree2d extends RandomTree {
 	 * @throws Exception
 	 */
 	public float[] classify(final Object data, final int x, final int y, int maxDepth) throws Exception {
+		if (data instanceof Spectrogram) return classifyRec((Spectrogram)data, tree, 0, x, y, maxDepth);
 		return classifyRec((byte[][])data, tree, 0, 0, x, y, maxDepth);
 	}
 	
+	/**
+	 * Internal classification method for data held in a Spectrogram. The features access
+	 * the spectrogram directly, so no array copy is created.
+	 * 
+	 * @param data
+	 * @param node current node to process
+	 * @param depth
+	 * @param x
+	 * @param y
+	 * @param maxDepth
+	 * @return
+	 * @throws Exception
+	 */
+	protected float[] classifyRec(final Spectrogram data, final Node node, int depth, final int x, final int y, int maxDepth) throws Exception {
+		if (node.isLeaf()) return node.probabilities;
+		if (maxDepth > 0 && depth >= maxDepth) {
+			if (node.probabilities == null) throw new Exception("T" + num + ": Cannot classify to maxdepth " + maxDepth + ", expand the tree first");
+			return node.probabilities;
+		}
+		if (((Feature2d)node.feature).evaluate(data, x, y) >= node.feature.threshold) {
+			return classifyRec(data, node.left, depth+1, x, y, maxDepth);
+		} else {
+			return classifyRec(data, node.right, depth+1, x, y, maxDepth);
+		}
+	}
+	
 	/**
 	 * Internal classification method.
 	 * 
@@ -129,6 +168,11 @@ public class RandomTree2d extends RandomTree {
 		List<Classification> classification = new ArrayList<Classification>(); // Classification arrays for each dataset in the sampler, same index as in sampler
 		for(int i=0; i<sampler.getPoolSize(); i++) {
 			TreeDataset2d d = (TreeDataset2d)sampler.get(i);
+			if (params.backgroundSamplingRatio > 0) {
+				// Stratified: All labeled values, some background
+				classification.add(d.getStratifiedClassification(params.backgroundSamplingRatio, params.skipZeroBackgroundValues));
+				continue;
+			}
 			int vpf = (int)(params.percentageOfRandomValuesPerFrame * d.getHeight()); // values per frame
 			Classification cl = d.getInitialClassification(vpf); // Drop some of the values by classifying them to -1
 			classification.add(cl);
@@ -179,6 +223,36 @@ public class RandomTree2d extends RandomTree {
 		return classification;
 	}
 	
+	/**
+	 * Returns a random subsample of about num values of the given classification. Each
+	 * value is kept with probability num/count, order is preserved.
+	 * 
+	 * @param classification
+	 * @param count number of values in classification
+	 * @param num
+	 * @return
+	 * @throws Exception
+	 */
+	protected List<Classification> getSubsample(List<Classification> classification, long count, int num) throws Exception {
+		double p = (double)num / count;
+		List<Classification> ret = new ArrayList<Classification>();
+		for(int i=0; i<classification.size(); i++) {
+			Classification2d cla = (Classification2d)classification.get(i);
+			int claSize = cla.getSize();
+			int[] keep = new int[claSize];
+			int n = 0;
+			for(int c=0; c<claSize; c++) {
+				if (Math.random() < p) keep[n++] = c;
+			}
+			Classification2d sub = new Classification2d(n, cla);
+			for(int c=0; c<n; c++) {
+				sub.values[c] = cla.values[keep[c]];
+			}
+			ret.add(sub);
+		}
+		return ret;
+	}
+	
 	/**
 	 * Splits the training data set of one node.
 	 * 
@@ -192,49 +266,117 @@ public class RandomTree2d extends RandomTree {
 	public void splitValues(Sampler<Dataset> sampler, List<Classification> classification, List<Classification> classificationLeft, List<Classification> classificationRight, int mode, Node node, long[] counts) throws Exception {
 		Feature2d feature = (Feature2d)node.feature;
 		int poolSize = sampler.getPoolSize();
+		float[] responses = new float[BATCH_SIZE];
 		for(int i=0; i<poolSize; i++) {
 			Classification2d cla = (Classification2d)classification.get(i);
 			TreeDataset dataset = (TreeDataset)sampler.get(i);
-			byte[][] data = (byte[][])dataset.getData();
+			ResponseTable table = getResponseTable(dataset, feature);
+			Object data = (table == null) ? dataset.getData() : null;
 
+			// Evaluate once: left values are collected from the front, right ones from the back 
+			int claSize = cla.getSize();
+			int[] split = new int[claSize];
 			int l = 0;
-			int r = 0;
-			for(int c=0; c<cla.getSize(); c++) {
-				if (feature.evaluate(data, cla.xIndex[c], cla.yIndex[c]) >= feature.threshold) {
-					counts[0]++;
-					l++;
-				} else {
-					counts[1]++;
-					r++;
+			int r = claSize;
+			for(int start=0; start<claSize; start+=BATCH_SIZE) {
+				int end = Math.min(start+BATCH_SIZE, claSize);
+				evaluateBatch(feature, table, data, cla, start, end, responses);
+				for(int c=start; c<end; c++) {
+					if (responses[c-start] >= feature.threshold) {
+						split[l++] = cla.values[c];
+					} else {
+						split[--r] = cla.values[c];
+					}
 				}
 			}
 			
-			Classification2d claNextL = new Classification2d(l);
-			Classification2d claNextR = new Classification2d(r);
-			
-			int indexL = 0;
-			int indexR = 0;
-			for(int c=0; c<cla.getSize(); c++) {
-				if (feature.evaluate(data, cla.xIndex[c], cla.yIndex[c]) >= feature.threshold) {
-					claNextL.xIndex[indexL] = cla.xIndex[c];
-					claNextL.yIndex[indexL] = cla.yIndex[c];
-					indexL++;
-				} else {
-					claNextR.xIndex[indexR] = cla.xIndex[c];
-					claNextR.yIndex[indexR] = cla.yIndex[c];
-					indexR++;
-				}
+			Classification2d claNextL = new Classification2d(l, cla);
+			Classification2d claNextR = new Classification2d(claSize-r, cla);
+			System.arraycopy(split, 0, claNextL.values, 0, l);
+			for(int c=0; c<claNextR.values.length; c++) {
+				claNextR.values[c] = split[claSize-1-c]; // Preserve order
 			}
+			counts[0]+= claNextL.getSize();
+			counts[1]+= claNextR.getSize();
 			classificationLeft.add(claNextL);
 			classificationRight.add(claNextR);
-			
-			// Checks
-			if (l+r != cla.getSize()) throw new Exception("ERROR: Code 1");
-			if (indexL != l) throw new Exception("ERROR: Code 2");
-			if (indexR != r) throw new Exception("ERROR: Code 3");
 		}
 	}
 	
+	/**
+	 * Returns the threshold candidates for each feature. If thresholdQuantileSamples is set 
+	 * in the parameters, each feature is evaluated on a small random subsample of the node´s
+	 * values, and the thresholds are taken from the quantiles of the sorted responses. This way,
+	 * no candidates are wasted in regions where no responses exist. Responses of -Float.MAX_VALUE 
+	 * (feature not applicable) are ignored.
+	 * 
+	 * @param sampler
+	 * @param paramSet
+	 * @param classification
+	 * @param count
+	 * @return
+	 * @throws Exception
+	 */
+	@Override
+	protected float[][] getThresholdCandidates(Sampler<Dataset> sampler, List<Object> paramSet, List<Classification> classification, long count) throws Exception {
+		if (params.thresholdQuantileSamples <= 0 || count <= 0) return super.getThresholdCandidates(sampler, paramSet, classification, count);
+		int tcpf = params.thresholdCandidatesPerFeature;
+		int numOfSamples = (int)Math.min(params.thresholdQuantileSamples, count);
+		
+		// Pick random values of the node
+		Object[] data = new Object[numOfSamples];
+		ResponseTable[] tables = new ResponseTable[numOfSamples];
+		ResponseStore store = getResponseStore();
+		int[] ps = new int[numOfSamples];
+		int[] xs = new int[numOfSamples];
+		int[] ys = new int[numOfSamples];
+		for(int s=0; s<numOfSamples; s++) {
+			long r = RandomUtils.randomLong(count-1);
+			int p = 0;
+			while(r >= classification.get(p).getSize()) {
+				r-= classification.get(p).getSize();
+				p++;
+			}
+			Classification2d cla = (Classification2d)classification.get(p);
+			if (store != null) {
+				tables[s] = store.getTable((TreeDataset2d)sampler.get(p));
+			} else {
+				data[s] = ((TreeDataset)sampler.get(p)).getData();
+			}
+			ps[s] = p;
+			xs[s] = cla.getX((int)r);
+			ys[s] = cla.getY((int)r);
+		}
+		
+		// Evaluate and take quantiles
+		float[][] thresholds = new float[paramSet.size()][];
+		float[] responses = new float[numOfSamples];
+		for(int i=0; i<thresholds.length; i++) {
+			Feature2d feature = (Feature2d)paramSet.get(i);
+			int n = 0;
+			for(int s=0; s<numOfSamples; s++) {
+				float ev;
+				if (tables[s] != null && feature.getPoolIndex() >= 0) {
+					ev = tables[s].get(feature.getPoolIndex(), xs[s], ys[s]);
+				} else {
+					Object d = (data[s] != null) ? data[s] : ((TreeDataset)sampler.get(ps[s])).getData();
+					ev = (d instanceof Spectrogram) ? feature.evaluate((Spectrogram)d, xs[s], ys[s]) : feature.evaluate((byte[][])d, xs[s], ys[s]);
+				}
+				if (ev > -Float.MAX_VALUE) responses[n++] = ev;
+			}
+			if (n == 0) {
+				thresholds[i] = feature.getRandomThresholds(tcpf);
+				continue;
+			}
+			Arrays.sort(responses, 0, n);
+			thresholds[i] = new float[tcpf];
+			for(int j=0; j<tcpf; j++) {
+				thresholds[i][j] = responses[(int)(((long)(j+1) * n) / (tcpf+1))];
+			}
+		}
+		return thresholds;
+	}
+
 	/**
 	 * Returns the amount of jobs to split between the evaluation threads.
 	 * 
@@ -264,46 +406,141 @@ public class RandomTree2d extends RandomTree {
 	 */
 	public void evaluateFeatures(RandomTreeWorker worker, Sampler<Dataset> sampler, int minIndex, int maxIndex, List<Object> paramSet, List<Classification> classification, int mode, Object thresholds, long[][][] countClassesLeft, long[][][] countClassesRight) throws Exception {
 		int numOfFeatures = paramSet.size();
-		Feature2d[] features = new Feature2d[numOfFeatures];
+		Object[] features = (evaluationBuffers != null && evaluationBuffers.features.length >= numOfFeatures) ? evaluationBuffers.features : new Object[numOfFeatures];
 		for(int i=minIndex; i<=maxIndex; i++) {
-			features[i] = (Feature2d)paramSet.get(i);
+			features[i] = paramSet.get(i);
 		}
 		float[][] thresholdsArray = (float[][])thresholds;
 		int poolSize = sampler.getPoolSize();
-		int tcpf = params.thresholdCandidatesPerFeature;
+		ThresholdCounter counter = ThresholdCounter.getInstance();
+		float[] responses = new float[BATCH_SIZE];
+		int[] classes = new int[BATCH_SIZE];
+		int[] weights = new int[BATCH_SIZE];
 		
 		for(int poolIndex=0; poolIndex<poolSize; poolIndex++) {
 			if (worker != null) worker.setProgress((double)poolIndex/poolSize);
 			
 			// Each dataset...load data and reference
 			TreeDataset dataset = (TreeDataset)sampler.get(poolIndex);
-			byte[][] data = (byte[][])dataset.getData();
-			byte[][] ref = (byte[][])dataset.getReference();
+			ResponseTable table = (getResponseStore() != null) ? getResponseStore().getTable((TreeDataset2d)dataset) : null;
+			Object data = (table == null) ? dataset.getData() : null;
+			Object ref = dataset.getReference();
 			Classification2d cla = (Classification2d)classification.get(poolIndex);
 			int claSize = cla.getSize();
 
-			// get feature results
-			for(int c=0; c<claSize; c++) {
-				int x = cla.xIndex[c];
-				int y = cla.yIndex[c];
-				int bootstrapCount = dataset.getSampled(cla.xIndex[c]);
+			// get feature results batch by batch
+			for(int start=0; start<claSize; start+=BATCH_SIZE) {
+				int end = Math.min(start+BATCH_SIZE, claSize);
+				int n = end - start;
+				getClasses(ref, cla, start, n, classes, weights);
 				for(int k=minIndex; k<=maxIndex; k++) {
-					float ev = features[k].evaluate(data, x, y);
-					for(int g=0; g<tcpf; g++) {
-						if (ev >= thresholdsArray[k][g]) {
-							// Left
-							countClassesLeft[k][g][ref[x][y]]+= bootstrapCount;
-						} else {
-							// Right
-							countClassesRight[k][g][ref[x][y]]+= bootstrapCount;
-						}
-					}
+					Feature2d feature = (Feature2d)features[k];
+					if (data == null && feature.getPoolIndex() < 0) data = dataset.getData();
+					evaluateBatch(feature, table, data, cla, start, end, responses);
+					counter.count(responses, classes, weights, n, thresholdsArray[k], countClassesLeft[k], countClassesRight[k]);
 				}
 			}
 		}
 		if (worker != null) worker.setProgress(1.0);
 	}
 	
+	/**
+	 * Internal: Evaluates a feature for a batch of values. Features from the candidate pool are
+	 * read from the response table (if given), all others are computed on the data (byte[][] or Spectrogram).
+	 * 
+	 * @param feature
+	 * @param table response table of the dataset, or null
+	 * @param data
+	 * @param cla
+	 * @param from
+	 * @param to
+	 * @param out
+	 * @throws Exception
+	 */
+	private static void evaluateBatch(final Feature2d feature, final ResponseTable table, final Object data, final Classification2d cla, final int from, final int to, final float[] out) throws Exception {
+		if (table != null && feature.getPoolIndex() >= 0) {
+			table.evaluateBatch(feature.getPoolIndex(), cla, from, to, out);
+		} else {
+			feature.evaluateBatchOn(data, cla, from, to, out);
+		}
+	}
+	
+	/**
+	 * Returns the precomputed feature response store if ForestParameters.responseStore is set, 
+	 * or null otherwise.
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	protected ResponseStore getResponseStore() throws Exception {
+		if (responseStore == null && params != null && params.responseStore != null) {
+			responseStore = ResponseStore.open(params.responseStore, params);
+		}
+		return responseStore;
+	}
+	
+	/**
+	 * Internal: Returns the response table of a dataset if the feature is taken
+	 * from the candidate pool, null otherwise.
+	 * 
+	 * @param dataset
+	 * @param feature
+	 * @return
+	 * @throws Exception
+	 */
+	private ResponseTable getResponseTable(TreeDataset dataset, Feature2d feature) throws Exception {
+		if (feature.getPoolIndex() < 0 || getResponseStore() == null) return null;
+		return getResponseStore().getTable((TreeDataset2d)dataset);
+	}
+	
+	/**
+	 * Returns the feature candidates for a node: Taken from the candidate pool if a response
+	 * store is used, randomly generated otherwise.
+	 * 
+	 * @param root
+	 * @param depth
+	 * @return
+	 * @throws Exception
+	 */
+	@Override
+	protected List<Object> getFeatureCandidates(RandomTree root, int depth) throws Exception {
+		ResponseStore store = getResponseStore();
+		if (store == null) return super.getFeatureCandidates(root, depth);
+		if (root.forest.proposal == null) return store.getCandidates(params.numOfRandomFeatures);
+		List<Object> candidates = store.getCandidates(Math.min(store.getPoolSize(), params.numOfRandomFeatures * params.adaptiveProposal));
+		return root.forest.proposal.select(candidates, params.numOfRandomFeatures, depth);
+	}
+	
+	/**
+	 * Internal: Gathers the reference classes and weights of a batch of values. The
+	 * reference may be a byte[][] array or a Spectrogram.
+	 * 
+	 * @param ref
+	 * @param cla
+	 * @param from
+	 * @param n
+	 * @param classes
+	 * @param weights
+	 */
+	private static void getClasses(final Object ref, final Classification2d cla, final int from, final int n, final int[] classes, final int[] weights) {
+		final int[] values = cla.values;
+		if (ref instanceof Spectrogram) {
+			final Spectrogram refS = (Spectrogram)ref;
+			for(int c=0; c<n; c++) {
+				int v = values[from+c];
+				classes[c] = refS.get(v >>> cla.xShift, (v >>> cla.yShift) & cla.yMask);
+				weights[c] = v & cla.weightMask;
+			}
+		} else {
+			final byte[][] refA = (byte[][])ref;
+			for(int c=0; c<n; c++) {
+				int v = values[from+c];
+				classes[c] = refA[v >>> cla.xShift][(v >>> cla.yShift) & cla.yMask];
+				weights[c] = v & cla.weightMask;
+			}
+		}
+	}
+	
 	/**
 	 * Calculates leaf probability.
 	 * 
@@ -320,16 +557,35 @@ public class RandomTree2d extends RandomTree {
 		// See how much was judged right
 		for(int i=0; i<sampler.getPoolSize(); i++) {
 			TreeDataset dataset = (TreeDataset)sampler.get(i);
-			byte[][] ref = (byte[][])dataset.getReference();
+			Object ref = dataset.getReference();
 			Classification2d cla = (Classification2d)classification.get(i);
 			int claSize = cla.getSize();
+			long background = 0;
 			
 			for(int c=0; c<claSize; c++) {
-				int bootstrapCount = dataset.getSampled(cla.xIndex[c]);
-				l[ref[cla.xIndex[c]][cla.yIndex[c]]]+= bootstrapCount;
+				int v = TreeDataset2d.getValue(ref, cla.getX(c), cla.getY(c));
+				if (v == 0) {
+					background+= cla.getWeight(c);
+				} else {
+					l[v]+= cla.getWeight(c);
+				}
 			}
+			// Stratified sampling: Each picked background value stands for backgroundWeight values of the dataset
+			l[0]+= background * cla.backgroundWeight;
 			all+= claSize;
 		}
+		if (params != null && params.backgroundSamplingRatio > 0) {
+			float sum = 0;
+			for(int c=0; c<numOfClasses; c++) {
+				sum+= l[c];
+			}
+			if (sum > 0) {
+				for(int c=0; c<numOfClasses; c++) {
+					l[c] /= sum;
+				}
+			}
+			return l;
+		}
 		for(int c=0; c<numOfClasses; c++) {
 			l[c] /= (float)all;
 		}
@@ -392,6 +648,18 @@ public class RandomTree2d extends RandomTree {
 		img.save(new File(filename));
 	}
 
+	/**
+	 * Write some growing params to the tree log file, including the
+	 * threshold counting implementation used.
+	 * 
+	 * @throws Exception 
+	 */
+	@Override
+	protected void logMeta(Sampler<Dataset> sampler) throws Exception {
+		super.logMeta(sampler);
+		log.write("Threshold counting: " + ThresholdCounter.getInstance().getDescription() + "\n");
+	}
+
 	/**
 	 * Returns a new instance of the tree.
 	 * 
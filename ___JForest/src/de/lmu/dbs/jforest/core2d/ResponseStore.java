@@ -0,0 +1,305 @@
+package de.lmu.dbs.jforest.core2d;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.lmu.dbs.jforest.core.ForestParameters;
+import de.lmu.dbs.jforest.util.FileIO;
+
+/**
+ * On disk store of precomputed feature responses, for repeated trainings on the same data.
+ * <br><br>
+ * The store holds a fixed pool of randomly generated feature candidates, and for each dataset
+ * a memory mapped ResponseTable with the responses of all pool features on all values. The tables
+ * are keyed by a hash of the dataset´s data file content, and are bound to the pool by its hash.
+ * If ForestParameters.responseStore is set, RandomTree2d takes the node candidates from the pool
+ * and reads their responses from the tables, so growing becomes a pure counting pass.
+ * <br><br>
+ * Each table needs pool size * frames * bins * 4 bytes on disk. The tables stay mapped as long as
+ * they hold less than MAX_MAPPED_REGIONS regions in total; beyond that, the least recently used ones 
+ * are dropped and unmapped by the garbage collector. The content hash of each data file is computed 
+ * once per run, and no file is read while the store is locked.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class ResponseStore {
+
+	/**
+	 * File name of the candidate pool
+	 */
+	public static final String POOL_FILENAME = "pool.dat";
+
+	/**
+	 * File suffix of response tables
+	 */
+	public static final String FILE_SUFFIX_RESPONSES = ".resp";
+
+	/**
+	 * Maximum number of mapped regions of all tables (the default limit of mappings per process 
+	 * on Linux, vm.max_map_count, is 65530)
+	 */
+	public static final int MAX_MAPPED_REGIONS = 16384;
+
+	/**
+	 * Opened stores, by folder
+	 */
+	private static Map<String, ResponseStore> stores = new HashMap<String, ResponseStore>();
+
+	/**
+	 * Store folder
+	 */
+	private File folder;
+
+	/**
+	 * Candidate pool
+	 */
+	private List<Feature2d> pool;
+
+	/**
+	 * Serialized pool features, used to create independent copies
+	 */
+	private byte[][] poolBytes;
+
+	/**
+	 * MD5 hash of the pool file
+	 */
+	private byte[] poolHash;
+
+	/**
+	 * Mapped tables, by absolute data file path, in access order
+	 */
+	private LinkedHashMap<String, ResponseTable> tables = new LinkedHashMap<String, ResponseTable>(16, 0.75f, true);
+
+	/**
+	 * Number of mapped regions of all tables
+	 */
+	private int mappedRegions = 0;
+
+	/**
+	 * Table files, by absolute data file path
+	 */
+	private Map<String, File> files = new ConcurrentHashMap<String, File>();
+
+	/**
+	 * Internal: Loads the pool of a store folder.
+	 *
+	 * @param folder
+	 * @throws Exception
+	 */
+	private ResponseStore(File folder) throws Exception {
+		this.folder = folder;
+		File pf = new File(folder, POOL_FILENAME);
+		if (!pf.exists()) throw new Exception("No response store found in " + folder.getAbsolutePath());
+		FileIO<ArrayList<Feature2d>> io = new FileIO<ArrayList<Feature2d>>();
+		pool = io.load(pf.getAbsolutePath());
+		poolHash = getHash(pf);
+		poolBytes = new byte[pool.size()][];
+		for(int i=0; i<pool.size(); i++) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bos);
+			out.writeObject(pool.get(i));
+			out.close();
+			poolBytes[i] = bos.toByteArray();
+		}
+	}
+
+	/**
+	 * Creates a new store in folder, with a pool of poolSize features generated by the
+	 * feature factory of params. If the folder already holds a store, it is opened instead,
+	 * so building can be continued for further datasets.
+	 *
+	 * @param folder
+	 * @param params
+	 * @param poolSize
+	 * @return
+	 * @throws Exception
+	 */
+	public static synchronized ResponseStore create(String folder, ForestParameters params, int poolSize) throws Exception {
+		File dir = new File(folder);
+		File pf = new File(dir, POOL_FILENAME);
+		if (!pf.exists()) {
+			if (!dir.exists() && !dir.mkdirs()) throw new Exception("Could not create response store folder " + dir.getAbsolutePath());
+			ArrayList<Feature2d> p = new ArrayList<Feature2d>();
+			while(p.size() < poolSize) {
+				List<Object> f = params.featureFactory.getRandomFeatureSet(params);
+				for(int i=0; i<f.size() && p.size() < poolSize; i++) {
+					p.add((Feature2d)f.get(i));
+				}
+			}
+			FileIO<ArrayList<Feature2d>> io = new FileIO<ArrayList<Feature2d>>();
+			io.save(pf.getAbsolutePath(), p);
+		}
+		return open(folder, params);
+	}
+
+	/**
+	 * Opens an existing store. Stores are opened once and shared by all trees.
+	 *
+	 * @param folder
+	 * @param params the pool has to consist of features of the same class as params.featureFactory, and
+	 *               must be at least params.numOfRandomFeatures large
+	 * @return
+	 * @throws Exception
+	 */
+	public static synchronized ResponseStore open(String folder, ForestParameters params) throws Exception {
+		String key = new File(folder).getAbsolutePath();
+		ResponseStore ret = stores.get(key);
+		if (ret == null) {
+			ret = new ResponseStore(new File(key));
+			stores.put(key, ret);
+		}
+		if (ret.pool.size() > 0 && ret.pool.get(0).getClass() != params.featureFactory.getClass()) {
+			throw new Exception("Response store " + key + " has been built for " + ret.pool.get(0).getClass().getName() + ", not for " + params.featureFactory.getClass().getName());
+		}
+		if (ret.pool.size() < params.numOfRandomFeatures) {
+			throw new Exception("Response store " + key + " holds " + ret.pool.size() + " candidates, less than numOfRandomFeatures: " + params.numOfRandomFeatures);
+		}
+		return ret;
+	}
+
+	/**
+	 * Computes and saves the response table for a dataset, if not yet existing.
+	 *
+	 * @param dataset
+	 * @return true if the table has been built, false if it existed already
+	 * @throws Exception
+	 */
+	public boolean build(TreeDataset2d dataset) throws Exception {
+		File f = getFile(dataset);
+		if (f.exists()) return false;
+		ResponseTable.build(f, poolHash, pool, dataset);
+		return true;
+	}
+
+	/**
+	 * Returns the response table of a dataset.
+	 *
+	 * @param dataset
+	 * @return
+	 * @throws Exception if the table has not been built
+	 */
+	public ResponseTable getTable(TreeDataset2d dataset) throws Exception {
+		String key = dataset.getDataFile().getAbsolutePath();
+		synchronized(this) {
+			ResponseTable ret = tables.get(key);
+			if (ret != null) return ret;
+		}
+		// Map outside the lock. If another thread maps the same table meanwhile, the first one is kept.
+		File f = getFile(dataset);
+		if (!f.exists()) throw new Exception("No precomputed responses for " + key + " in response store " + folder.getAbsolutePath());
+		ResponseTable table = ResponseTable.map(f, poolHash);
+		if (table.getFrames() != dataset.getLength() || table.getBins() != dataset.getHeight()) throw new Exception("Response table dimensions do not match dataset " + key);
+		synchronized(this) {
+			ResponseTable ret = tables.get(key);
+			if (ret != null) return ret;
+			tables.put(key, table);
+			mappedRegions+= table.getNumOfRegions();
+			Iterator<ResponseTable> it = tables.values().iterator();
+			while(mappedRegions > MAX_MAPPED_REGIONS && tables.size() > 1) {
+				mappedRegions-= it.next().getNumOfRegions();
+				it.remove();
+			}
+			return table;
+		}
+	}
+
+	/**
+	 * Returns num distinct randomly chosen pool features. Each one is an independent
+	 * copy (so thresholds can be set on it), marked with its pool index.
+	 *
+	 * @param num
+	 * @return
+	 * @throws Exception
+	 */
+	public List<Object> getCandidates(int num) throws Exception {
+		int[] idx = new int[pool.size()];
+		for(int i=0; i<idx.length; i++) {
+			idx[i] = i;
+		}
+		List<Object> ret = new ArrayList<Object>(num);
+		for(int i=0; i<num; i++) {
+			int j = i + (int)(Math.random() * (idx.length - i));
+			int t = idx[i];
+			idx[i] = idx[j];
+			idx[j] = t;
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(poolBytes[idx[i]]));
+			Feature2d f = (Feature2d)in.readObject();
+			in.close();
+			f.setPoolIndex(idx[i]);
+			ret.add(f);
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the size of the candidate pool.
+	 *
+	 * @return
+	 */
+	public int getPoolSize() {
+		return pool.size();
+	}
+
+	/**
+	 * Internal: Returns the table file of a dataset, named by the hash of its data file.
+	 * The hash is computed on first access only.
+	 *
+	 * @param dataset
+	 * @return
+	 * @throws Exception
+	 */
+	private File getFile(TreeDataset2d dataset) throws Exception {
+		String key = dataset.getDataFile().getAbsolutePath();
+		File ret = files.get(key);
+		if (ret != null) return ret;
+		byte[] h = getHash(dataset.getDataFile());
+		StringBuilder s = new StringBuilder();
+		for(int i=0; i<h.length; i++) {
+			s.append(String.format("%02x", h[i]));
+		}
+		ret = new File(folder, s.toString() + FILE_SUFFIX_RESPONSES);
+		files.put(key, ret);
+		return ret;
+	}
+
+	/**
+	 * Internal: Returns the MD5 hash of a file´s content.
+	 *
+	 * @param file
+	 * @return
+	 * @throws Exception
+	 */
+	private static byte[] getHash(File file) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[1 << 16];
+			int n;
+			while((n = in.read(buf)) > 0) {
+				md.update(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return md.digest();
+	}
+
+	@Override
+	public String toString() {
+		return "Response store " + folder.getAbsolutePath() + ": " + pool.size() + " pool candidates";
+	}
+}
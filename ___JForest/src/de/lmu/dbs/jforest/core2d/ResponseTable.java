@@ -0,0 +1,238 @@
+package de.lmu.dbs.jforest.core2d;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Precomputed responses of all features of a candidate pool for all values of one dataset,
+ * stored in a memory mapped file (see ResponseStore).
+ * <br><br>
+ * File format: A header (magic, number of features, frames, bins, 16 bytes pool hash), followed by
+ * the float responses [feature][frame][bin]. So a table needs pool size * 4 bytes per value on disk.
+ * <br><br>
+ * The file is mapped in a few large regions of up to MAX_REGION_SIZE bytes, each holding the responses
+ * of several complete features, to keep the number of mappings low (see vm.max_map_count on Linux).
+ * The responses are not quantized, as the thresholds chosen on them have to work the same way 
+ * on the features evaluated at classification time.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class ResponseTable {
+
+	/**
+	 * Magic number of response files ("RESP")
+	 */
+	private static final int FILE_MAGIC = 0x52455350;
+
+	/**
+	 * Size of the file header in bytes
+	 */
+	private static final int FILE_HEADER_SIZE = 32;
+
+	/**
+	 * Maximum size of a mapped region in bytes
+	 */
+	public static final long MAX_REGION_SIZE = 1L << 30;
+
+	/**
+	 * Mapped regions, each holding the responses of featuresPerRegion features, 
+	 * [(feature % featuresPerRegion) * frames * bins + frame * bins + bin]
+	 */
+	private final FloatBuffer[] regions;
+
+	/**
+	 * Number of features per region
+	 */
+	private final int featuresPerRegion;
+
+	/**
+	 * Number of frames (x)
+	 */
+	private final int frames;
+
+	/**
+	 * Number of bins (y)
+	 */
+	private final int bins;
+
+	/**
+	 * Internal: Creates a table on mapped regions.
+	 *
+	 * @param regions
+	 * @param featuresPerRegion
+	 * @param frames
+	 * @param bins
+	 */
+	private ResponseTable(FloatBuffer[] regions, int featuresPerRegion, int frames, int bins) {
+		this.regions = regions;
+		this.featuresPerRegion = featuresPerRegion;
+		this.frames = frames;
+		this.bins = bins;
+	}
+
+	/**
+	 * Computes the responses of all pool features on a dataset and saves them to file.
+	 * The file is written (without mapping it) under a temporary name and renamed afterwards.
+	 *
+	 * @param file
+	 * @param poolHash hash of the candidate pool (16 bytes)
+	 * @param pool
+	 * @param dataset
+	 * @throws Exception
+	 */
+	public static void build(File file, byte[] poolHash, List<Feature2d> pool, TreeDataset2d dataset) throws Exception {
+		Object data = dataset.getData();
+		int len = dataset.getLength();
+		int hei = dataset.getHeight();
+		long featureBytes = (long)len * hei * 4;
+		if (featureBytes > Integer.MAX_VALUE) throw new Exception("Dataset too large for response table: " + len + "x" + hei);
+
+		// One classification holding all values of a frame
+		Classification2d cla = new Classification2d(hei, len, hei, 0);
+		float[] out = new float[hei];
+		ByteBuffer frame = ByteBuffer.allocate(hei * 4);
+
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(FILE_HEADER_SIZE + featureBytes * pool.size());
+			raf.writeInt(FILE_MAGIC);
+			raf.writeInt(pool.size());
+			raf.writeInt(len);
+			raf.writeInt(hei);
+			raf.write(poolHash, 0, 16);
+			FileChannel ch = raf.getChannel();
+			for(int f=0; f<pool.size(); f++) {
+				Feature2d feature = pool.get(f);
+				long pos = FILE_HEADER_SIZE + featureBytes * f;
+				for(int x=0; x<len; x++) {
+					for(int y=0; y<hei; y++) {
+						cla.values[y] = cla.pack(x, y, 0);
+					}
+					feature.evaluateBatchOn(data, cla, 0, hei, out);
+					frame.clear();
+					frame.asFloatBuffer().put(out, 0, hei);
+					while(frame.hasRemaining()) {
+						pos+= ch.write(frame, pos);
+					}
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		if (file.exists()) file.delete();
+		if (!tmp.renameTo(file)) throw new Exception("Could not rename " + tmp.getAbsolutePath() + " to " + file.getAbsolutePath());
+	}
+
+	/**
+	 * Maps a response file.
+	 *
+	 * @param file
+	 * @param poolHash hash of the candidate pool the file has to be built for
+	 * @return
+	 * @throws Exception
+	 */
+	public static ResponseTable map(File file, byte[] poolHash) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.readInt() != FILE_MAGIC) throw new Exception("No response file: " + file.getAbsolutePath());
+			int num = raf.readInt();
+			int len = raf.readInt();
+			int hei = raf.readInt();
+			byte[] hash = new byte[16];
+			raf.readFully(hash);
+			if (!Arrays.equals(hash, Arrays.copyOf(poolHash, 16))) throw new Exception("Response file " + file.getAbsolutePath() + " has been built for another candidate pool");
+			long featureBytes = (long)len * hei * 4;
+			int perRegion = (int)Math.max(1, Math.min(num, MAX_REGION_SIZE / featureBytes));
+			FileChannel ch = raf.getChannel();
+			FloatBuffer[] r = new FloatBuffer[(num + perRegion - 1) / perRegion];
+			for(int i=0; i<r.length; i++) {
+				int n = Math.min(perRegion, num - i * perRegion);
+				ByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, FILE_HEADER_SIZE + featureBytes * i * perRegion, featureBytes * n);
+				r[i] = b.asFloatBuffer();
+			}
+			return new ResponseTable(r, perRegion, len, hei);
+		} finally {
+			raf.close(); // The mappings stay valid
+		}
+	}
+
+	/**
+	 * Returns the response of a pool feature at x/y.
+	 *
+	 * @param feature pool index
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public final float get(final int feature, final int x, final int y) {
+		return regions[feature / featuresPerRegion].get(getOffset(feature) + x * bins + y);
+	}
+
+	/**
+	 * Internal: Returns the offset of the responses of a feature in its region.
+	 *
+	 * @param feature pool index
+	 * @return
+	 */
+	private int getOffset(final int feature) {
+		return (feature % featuresPerRegion) * frames * bins;
+	}
+
+	/**
+	 * Reads the responses of a pool feature for the values [from, to[ of the classification
+	 * to out[0..to-from-1], like Feature2d.evaluateBatch() would compute them.
+	 *
+	 * @param feature pool index
+	 * @param cla
+	 * @param from
+	 * @param to
+	 * @param out
+	 */
+	public void evaluateBatch(final int feature, final Classification2d cla, final int from, final int to, final float[] out) {
+		final FloatBuffer r = regions[feature / featuresPerRegion];
+		final int offset = getOffset(feature);
+		final int[] values = cla.values;
+		final int xShift = cla.xShift;
+		final int yShift = cla.yShift;
+		final int yMask = cla.yMask;
+		final int b = bins;
+		for(int c=from; c<to; c++) {
+			int v = values[c];
+			out[c-from] = r.get(offset + (v >>> xShift) * b + ((v >>> yShift) & yMask));
+		}
+	}
+
+	/**
+	 * Returns the number of mapped regions.
+	 *
+	 * @return
+	 */
+	public int getNumOfRegions() {
+		return regions.length;
+	}
+
+	/**
+	 * Returns the number of frames (x dimension).
+	 *
+	 * @return
+	 */
+	public int getFrames() {
+		return frames;
+	}
+
+	/**
+	 * Returns the number of bins (y dimension).
+	 *
+	 * @return
+	 */
+	public int getBins() {
+		return bins;
+	}
+}
@@ -0,0 +1,387 @@
+package de.lmu.dbs.jforest.core2d;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 2d byte data (i.e. a quantized spectrogram) in one contiguous block of memory,
+ * instead of a jagged byte[][] array. The backing store can be a heap array, a direct
+ * buffer or a memory mapped file, the layout can be frame major (all bins of a frame are
+ * neighbours) or bin major (all frames of a bin are neighbours).
+ * <br><br>
+ * x always denotes the frame, y the bin, as with byte[][] data. Use toArray() to
+ * get a byte[][] copy for code which is not migrated yet.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class Spectrogram {
+
+	/**
+	 * Layout: Bins of a frame are contiguous: index = x * bins + y
+	 */
+	public static final int FRAME_MAJOR = 0;
+
+	/**
+	 * Layout: Frames of a bin are contiguous: index = y * frames + x
+	 */
+	public static final int BIN_MAJOR = 1;
+
+	/**
+	 * Magic number of spectrogram files ("SPEC")
+	 */
+	private static final int FILE_MAGIC = 0x53504543;
+
+	/**
+	 * Size of the file header in bytes: magic, frames, bins, layout
+	 */
+	public static final int FILE_HEADER_SIZE = 16;
+
+	/**
+	 * Number of frames (x)
+	 */
+	private final int frames;
+
+	/**
+	 * Number of bins (y)
+	 */
+	private final int bins;
+
+	/**
+	 * Layout, see FRAME_MAJOR and BIN_MAJOR
+	 */
+	private final int layout;
+
+	/**
+	 * Backing store
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * Heap array of the buffer, or null if off heap
+	 */
+	private final byte[] array;
+
+	/**
+	 * Index of the buffer´s first value in array
+	 */
+	private final int arrayOffset;
+
+	/**
+	 * Cached byte[][] copy, see toArray()
+	 */
+	private byte[][] arrayCopy = null;
+
+	/**
+	 * Creates a spectrogram on a given buffer. The buffer´s position 0 is the first value.
+	 *
+	 * @param buffer
+	 * @param frames
+	 * @param bins
+	 * @param layout
+	 * @throws Exception
+	 */
+	public Spectrogram(ByteBuffer buffer, int frames, int bins, int layout) throws Exception {
+		if (layout != FRAME_MAJOR && layout != BIN_MAJOR) throw new Exception("Invalid spectrogram layout: " + layout);
+		if (buffer.capacity() < (long)frames * bins) throw new Exception("Buffer too small for " + frames + "x" + bins + " spectrogram: " + buffer.capacity());
+		this.buffer = buffer;
+		this.frames = frames;
+		this.bins = bins;
+		this.layout = layout;
+		this.array = buffer.hasArray() ? buffer.array() : null;
+		this.arrayOffset = buffer.hasArray() ? buffer.arrayOffset() : 0;
+	}
+
+	/**
+	 * Creates an empty spectrogram on the heap.
+	 *
+	 * @param frames
+	 * @param bins
+	 * @param layout
+	 * @return
+	 * @throws Exception
+	 */
+	public static Spectrogram allocate(int frames, int bins, int layout) throws Exception {
+		return new Spectrogram(ByteBuffer.allocate(frames * bins), frames, bins, layout);
+	}
+
+	/**
+	 * Creates an empty spectrogram in native memory (outside of the Java heap).
+	 *
+	 * @param frames
+	 * @param bins
+	 * @param layout
+	 * @return
+	 * @throws Exception
+	 */
+	public static Spectrogram allocateDirect(int frames, int bins, int layout) throws Exception {
+		return new Spectrogram(ByteBuffer.allocateDirect(frames * bins), frames, bins, layout);
+	}
+
+	/**
+	 * Creates a spectrogram on the heap, holding a copy of data.
+	 *
+	 * @param data
+	 * @param layout
+	 * @return
+	 * @throws Exception
+	 */
+	public static Spectrogram fromArray(byte[][] data, int layout) throws Exception {
+		Spectrogram ret = allocate(data.length, data[0].length, layout);
+		for(int x=0; x<data.length; x++) {
+			ret.setFrame(x, data[x]);
+		}
+		return ret;
+	}
+
+	/**
+	 * Saves the spectrogram to a file, which can be mapped with map() afterwards.
+	 *
+	 * @param file
+	 * @throws Exception
+	 */
+	public void save(File file) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			raf.writeInt(FILE_MAGIC);
+			raf.writeInt(frames);
+			raf.writeInt(bins);
+			raf.writeInt(layout);
+			FileChannel ch = raf.getChannel();
+			ByteBuffer b = buffer.duplicate();
+			b.clear();
+			b.limit(frames * bins);
+			while(b.hasRemaining()) ch.write(b);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Maps a spectrogram file (see save()) into memory. The data stays in the
+	 * file, the operating system pages it in and out as needed.
+	 *
+	 * @param file
+	 * @param writable if true, changes are written to the file
+	 * @return
+	 * @throws Exception
+	 */
+	public static Spectrogram map(File file, boolean writable) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+		try {
+			if (raf.readInt() != FILE_MAGIC) throw new Exception("No spectrogram file: " + file.getAbsolutePath());
+			int frames = raf.readInt();
+			int bins = raf.readInt();
+			int layout = raf.readInt();
+			ByteBuffer b = raf.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, FILE_HEADER_SIZE, (long)frames * bins);
+			return new Spectrogram(b, frames, bins, layout);
+		} finally {
+			raf.close(); // The mapping stays valid
+		}
+	}
+
+	/**
+	 * Returns the index of a value in the backing store.
+	 *
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public final int getIndex(final int x, final int y) {
+		return (layout == FRAME_MAJOR) ? x * bins + y : y * frames + x;
+	}
+
+	/**
+	 * Returns value x/y.
+	 *
+	 * @param x frame
+	 * @param y bin
+	 * @return
+	 */
+	public final byte get(final int x, final int y) {
+		int i = getIndex(x, y);
+		return (array != null) ? array[arrayOffset + i] : buffer.get(i);
+	}
+
+	/**
+	 * Sets value x/y.
+	 *
+	 * @param x frame
+	 * @param y bin
+	 * @param value
+	 */
+	public final void set(final int x, final int y, final byte value) {
+		int i = getIndex(x, y);
+		if (array != null) {
+			array[arrayOffset + i] = value;
+		} else {
+			buffer.put(i, value);
+		}
+	}
+
+	/**
+	 * Copies all bins of frame x to out.
+	 *
+	 * @param x
+	 * @param out array of length getBins() at least
+	 */
+	public void getFrame(final int x, final byte[] out) {
+		if (layout == FRAME_MAJOR) {
+			copyOut(x * bins, out, bins);
+		} else {
+			for(int y=0; y<bins; y++) {
+				out[y] = get(x, y);
+			}
+		}
+	}
+
+	/**
+	 * Sets all bins of frame x.
+	 *
+	 * @param x
+	 * @param in
+	 */
+	public void setFrame(final int x, final byte[] in) {
+		if (layout == FRAME_MAJOR) {
+			copyIn(x * bins, in, bins);
+		} else {
+			for(int y=0; y<bins; y++) {
+				set(x, y, in[y]);
+			}
+		}
+	}
+
+	/**
+	 * Copies all frames of bin y to out.
+	 *
+	 * @param y
+	 * @param out array of length getFrames() at least
+	 */
+	public void getBin(final int y, final byte[] out) {
+		if (layout == BIN_MAJOR) {
+			copyOut(y * frames, out, frames);
+		} else {
+			for(int x=0; x<frames; x++) {
+				out[x] = get(x, y);
+			}
+		}
+	}
+
+	/**
+	 * Sets all frames of bin y.
+	 *
+	 * @param y
+	 * @param in
+	 */
+	public void setBin(final int y, final byte[] in) {
+		if (layout == BIN_MAJOR) {
+			copyIn(y * frames, in, frames);
+		} else {
+			for(int x=0; x<frames; x++) {
+				set(x, y, in[x]);
+			}
+		}
+	}
+
+	/**
+	 * Internal: Bulk copy from the backing store.
+	 *
+	 * @param index
+	 * @param out
+	 * @param len
+	 */
+	private void copyOut(int index, byte[] out, int len) {
+		if (array != null) {
+			System.arraycopy(array, arrayOffset + index, out, 0, len);
+		} else {
+			ByteBuffer b = buffer.duplicate();
+			b.clear();
+			b.position(index);
+			b.get(out, 0, len);
+		}
+	}
+
+	/**
+	 * Internal: Bulk copy to the backing store.
+	 *
+	 * @param index
+	 * @param in
+	 * @param len
+	 */
+	private void copyIn(int index, byte[] in, int len) {
+		if (array != null) {
+			System.arraycopy(in, 0, array, arrayOffset + index, len);
+		} else {
+			ByteBuffer b = buffer.duplicate();
+			b.clear();
+			b.position(index);
+			b.put(in, 0, len);
+		}
+	}
+
+	/**
+	 * Adapter for code working with jagged arrays: Returns the data as byte[][]
+	 * ([frame][bin]). The copy is created once and cached, so changes made after the
+	 * first call are not reflected.
+	 *
+	 * @return
+	 */
+	public synchronized byte[][] toArray() {
+		if (arrayCopy == null) {
+			byte[][] ret = new byte[frames][bins];
+			for(int x=0; x<frames; x++) {
+				getFrame(x, ret[x]);
+			}
+			arrayCopy = ret;
+		}
+		return arrayCopy;
+	}
+
+	/**
+	 * Returns the number of frames (x dimension).
+	 *
+	 * @return
+	 */
+	public int getFrames() {
+		return frames;
+	}
+
+	/**
+	 * Returns the number of bins (y dimension).
+	 *
+	 * @return
+	 */
+	public int getBins() {
+		return bins;
+	}
+
+	/**
+	 * Returns the layout (FRAME_MAJOR or BIN_MAJOR).
+	 *
+	 * @return
+	 */
+	public int getLayout() {
+		return layout;
+	}
+
+	/**
+	 * Returns the backing buffer.
+	 *
+	 * @return
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Returns true if the data is stored outside of the Java heap (direct buffer or mapped file).
+	 *
+	 * @return
+	 */
+	public boolean isOffHeap() {
+		return array == null;
+	}
+}
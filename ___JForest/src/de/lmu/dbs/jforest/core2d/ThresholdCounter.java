@@ -0,0 +1,80 @@
+package de.lmu.dbs.jforest.core2d;
+
+/**
+ * Counts the class weights of a batch of feature responses left and right of each 
+ * threshold candidate. This is the plain scalar implementation. If the Java Vector API is 
+ * available at runtime (JVM option --add-modules jdk.incubator.vector), getInstance() 
+ * returns the vectorized implementation VectorThresholdCounter instead, which delivers 
+ * the same counts.
+ * 
+ * @author Thomas Weber
+ *
+ */
+public class ThresholdCounter {
+
+	/**
+	 * Name of the vectorized implementation, loaded by reflection.
+	 */
+	private static final String VECTOR_IMPLEMENTATION = "de.lmu.dbs.jforest.core2d.VectorThresholdCounter";
+	
+	/**
+	 * Shared instance, see getInstance().
+	 */
+	private static ThresholdCounter instance = null;
+	
+	/**
+	 * Returns the fastest implementation available in this JVM.
+	 * 
+	 * @return
+	 */
+	public static synchronized ThresholdCounter getInstance() {
+		if (instance == null) {
+			try {
+				instance = (ThresholdCounter)Class.forName(VECTOR_IMPLEMENTATION).getConstructor().newInstance();
+			} catch (Throwable e) {
+				// Vector API not present: Use scalar code
+				instance = new ThresholdCounter();
+			}
+		}
+		return instance;
+	}
+	
+	/**
+	 * Adds the weights of the responses to the class counts: If a response is greater or equal 
+	 * than thresholds[g], the weight goes to left[g][class], otherwise to right[g][class]. 
+	 * 
+	 * @param responses feature responses
+	 * @param classes reference class of each response
+	 * @param weights weight (bootstrap count) of each response
+	 * @param n number of responses to process
+	 * @param thresholds threshold candidates
+	 * @param left class counts left, one array per threshold
+	 * @param right class counts right, one array per threshold
+	 */
+	public void count(final float[] responses, final int[] classes, final int[] weights, final int n, final float[] thresholds, final long[][] left, final long[][] right) {
+		final int numOfThresholds = thresholds.length;
+		for(int c=0; c<n; c++) {
+			float ev = responses[c];
+			int cl = classes[c];
+			int w = weights[c];
+			for(int g=0; g<numOfThresholds; g++) {
+				if (ev >= thresholds[g]) {
+					// Left
+					left[g][cl]+= w;
+				} else {
+					// Right
+					right[g][cl]+= w;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns a short description of the implementation for logging.
+	 * 
+	 * @return
+	 */
+	public String getDescription() {
+		return "scalar";
+	}
+}
@@ -1,5 +1,7 @@
 package de.lmu.dbs.jforest.core2d;
 
+import gnu.trove.list.array.TIntArrayList;
+
 import java.io.File;
 import cern.jet.random.sampling.RandomSampler;
 import de.lmu.dbs.jforest.core.Classification;
@@ -13,6 +15,11 @@ import de.lmu.dbs.jforest.core.TreeDataset;
  */
 public abstract class TreeDataset2d extends TreeDataset {
 
+	/**
+	 * Spectrogram copy of byte[][] data, see getSpectrogram()
+	 */
+	private Spectrogram spectrogram = null;
+
 	public TreeDataset2d(File dataFile, File referenceFile) throws Exception {
 		super(dataFile, referenceFile);
 	}
@@ -25,6 +32,7 @@ public abstract class TreeDataset2d extends TreeDataset {
 	 */
 	public int getLength() throws Exception {
 		if (!isLoaded()) load();
+		if (data instanceof Spectrogram) return ((Spectrogram)data).getFrames();
 		return ((byte[][])data).length;
 	}
 	
@@ -36,9 +44,64 @@ public abstract class TreeDataset2d extends TreeDataset {
 	 */
 	public int getHeight() throws Exception {
 		if (!isLoaded()) load();
+		if (data instanceof Spectrogram) return ((Spectrogram)data).getBins();
 		return ((byte[][])data)[0].length;
 	}
 	
+	/**
+	 * Returns the data as byte[][] array. If the data is held in a Spectrogram, its
+	 * (cached) array copy is returned.
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	public byte[][] getDataArray() throws Exception {
+		Object d = getData();
+		if (d instanceof Spectrogram) return ((Spectrogram)d).toArray();
+		return (byte[][])d;
+	}
+	
+	/**
+	 * Returns the reference as byte[][] array. If the reference is held in a Spectrogram, its
+	 * (cached) array copy is returned.
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	public byte[][] getReferenceArray() throws Exception {
+		Object r = getReference();
+		if (r instanceof Spectrogram) return ((Spectrogram)r).toArray();
+		return (byte[][])r;
+	}
+	
+	/**
+	 * Returns the data as Spectrogram. If the data is held in a byte[][] array,
+	 * it is copied to a frame major heap spectrogram once.
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	public synchronized Spectrogram getSpectrogram() throws Exception {
+		Object d = getData();
+		if (d instanceof Spectrogram) return (Spectrogram)d;
+		if (spectrogram == null) spectrogram = Spectrogram.fromArray((byte[][])d, Spectrogram.FRAME_MAJOR);
+		return spectrogram;
+	}
+	
+	/**
+	 * Returns value x/y of a data or reference plane, which may be a byte[][] array
+	 * or a Spectrogram.
+	 * 
+	 * @param plane
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public static byte getValue(final Object plane, final int x, final int y) {
+		if (plane instanceof Spectrogram) return ((Spectrogram)plane).get(x, y);
+		return ((byte[][])plane)[x][y];
+	}
+	
 	/**
 	 * Returns the initial classification array for this dataset.
 	 * 
@@ -54,13 +117,13 @@ public abstract class TreeDataset2d extends TreeDataset {
 				cnt+=hei;
 			}
 		}
-		Classification2d ret = new Classification2d(cnt);
+		Classification2d ret = new Classification2d(cnt, len, hei, getMaxSampled());
 		int index = 0;
 		for(int f=0; f<len; f++) {
 			if (isSampled(f)) {
+				int w = getSampled(f);
 				for(int g=0; g<hei; g++) {
-					ret.xIndex[index] = f;
-					ret.yIndex[index] = g;
+					ret.values[index] = ret.pack(f, g, w);
 					index++;
 				}
 			}
@@ -68,6 +131,50 @@ public abstract class TreeDataset2d extends TreeDataset {
 		return ret;
 	}
 	
+	/**
+	 * Returns a stratified initial classification array for this dataset.
+	 * <br><br>
+	 * All labeled values (reference class other than 0) of the sampled frames are taken,
+	 * background values (class 0) are picked randomly with probability backgroundRatio. 
+	 * <br><br>
+	 * The backgroundWeight of the returned classification is set to the actual ratio of all background
+	 * values in the sampled frames to the picked ones (both weighted by their bootstrap count). This 
+	 * restores the true background prior in the leaves, also when zero values are skipped, 
+	 * which would otherwise shift the leaf posteriors towards the labeled classes.
+	 * 
+	 * @param backgroundRatio probability for each background value to be picked
+	 * @param skipZero if true, background values which are zero in the data are never picked
+	 * @return
+	 * @throws Exception 
+	 */
+	public synchronized Classification getStratifiedClassification(double backgroundRatio, boolean skipZero) throws Exception {
+		if (!isLoaded()) load();
+		Object dataC = data;
+		Object refC = reference;
+		int len = getLength();
+		int hei = getHeight();
+		Classification2d ret = new Classification2d(0, len, hei, getMaxSampled());
+		TIntArrayList vals = new TIntArrayList();
+		long bgAll = 0;
+		long bgPicked = 0;
+		for(int x=0; x<len; x++) {
+			if (!isSampled(x)) continue;
+			int w = getSampled(x);
+			for(int y=0; y<hei; y++) {
+				if (getValue(refC, x, y) == 0) {
+					bgAll+= w;
+					if (skipZero && getValue(dataC, x, y) == 0) continue;
+					if (Math.random() >= backgroundRatio) continue;
+					bgPicked+= w;
+				}
+				vals.add(ret.pack(x, y, w));
+			}
+		}
+		ret.values = vals.toArray();
+		if (bgPicked > 0) ret.backgroundWeight = (float)((double)bgAll / bgPicked);
+		return ret;
+	}
+
 	/**
 	 * Returns the initial classification array for this dataset.
 	 * <br><br>
@@ -80,29 +187,37 @@ public abstract class TreeDataset2d extends TreeDataset {
 	 */
 	public synchronized Classification getInitialClassification(int valuesPerFrame) throws Exception {
 		if (!isLoaded()) load();
-		byte[][] dataC = (byte[][])data;
-		if (valuesPerFrame >= dataC[0].length) {
+		int len = getLength();
+		int hei = getHeight();
+		if (valuesPerFrame >= hei) {
 			// All sampled frames should be in completely
 			return getInitialClassification(); 
 		}
 		// Get sample without replacement
-		long[] array = new long[valuesPerFrame*dataC.length];
+		long[] array = new long[valuesPerFrame*len];
 		RandomSampler.sample(
-				valuesPerFrame*dataC.length, // n 
-				dataC.length*dataC[0].length, // N
-				valuesPerFrame*dataC.length, // count 
+				valuesPerFrame*len, // n 
+				(long)len*hei, // N
+				valuesPerFrame*len, // count 
 				0, // low 
 				array, 
 				0, 
 				null);
-		Classification2d ret = new Classification2d(array.length);
+		Classification2d ret = new Classification2d(array.length, len, hei, getMaxSampled());
 		int index = 0;
 		for(int i=0; i<array.length; i++) {
-			ret.xIndex[index] = (int)array[i] % dataC.length;
-			if (!isSampled(ret.xIndex[index])) continue;
-			ret.yIndex[index] = (int)Math.floor(array[i] / dataC.length);
+			int x = (int)(array[i] % len);
+			if (!isSampled(x)) continue;
+			int y = (int)(array[i] / len);
+			ret.values[index] = ret.pack(x, y, getSampled(x));
 			index++;
 		}
+		if (index < array.length) {
+			// Cut off the values of unsampled frames
+			int[] v = new int[index];
+			System.arraycopy(ret.values, 0, v, 0, index);
+			ret.values = v;
+		}
 		return ret;
 	}
 
@@ -0,0 +1,128 @@
+package de.lmu.dbs.jforest.core2d;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vectorized version of ThresholdCounter, using the Java Vector API. For each response,
+ * all thresholds are compared lane-wise and the weight is added to the class accumulators 
+ * under the resulting mask. The accumulators are floats, which is exact as long as the 
+ * weights of one call sum up to less than 2^24 (otherwise the scalar code is used). The right 
+ * counts are derived from the class totals, so the results equal the scalar implementation exactly.
+ * <br><br>
+ * Needs the JVM option --add-modules jdk.incubator.vector, otherwise 
+ * ThresholdCounter.getInstance() falls back to the scalar code.
+ * 
+ * @author Thomas Weber
+ *
+ */
+public class VectorThresholdCounter extends ThresholdCounter {
+
+	/**
+	 * Maximum weight sum of one call that can be accumulated exactly in float precision
+	 */
+	private static final int MAX_EXACT_SUM = 1 << 24;
+	
+	/**
+	 * Float species (determines the vector width). This has to be a static final constant 
+	 * for the JIT compiler to generate vector instructions. The width can be set in bits with
+	 * the system property jforest.vectorBits, default is the preferred width of the platform.
+	 */
+	private static final VectorSpecies<Float> species = getSpecies(Integer.getInteger("jforest.vectorBits", 0));
+	
+	/**
+	 * Accumulator buffers for each thread: [class][threshold]
+	 */
+	private final ThreadLocal<float[][]> accumulators = new ThreadLocal<float[][]>();
+	
+	/**
+	 * Returns the float species for a vector width in bits (0: preferred).
+	 * 
+	 * @param bits
+	 * @return
+	 */
+	private static VectorSpecies<Float> getSpecies(int bits) {
+		if (bits <= 0) return FloatVector.SPECIES_PREFERRED;
+		return VectorSpecies.of(float.class, VectorShape.forBitSize(bits));
+	}
+	
+	/**
+	 * Adds the weights of the responses to the class counts: If a response is greater or equal 
+	 * than thresholds[g], the weight goes to left[g][class], otherwise to right[g][class]. 
+	 * 
+	 * @param responses feature responses
+	 * @param classes reference class of each response
+	 * @param weights weight (bootstrap count) of each response
+	 * @param n number of responses to process
+	 * @param thresholds threshold candidates
+	 * @param left class counts left, one array per threshold
+	 * @param right class counts right, one array per threshold
+	 */
+	@Override
+	public void count(final float[] responses, final int[] classes, final int[] weights, final int n, final float[] thresholds, final long[][] left, final long[][] right) {
+		final int numOfClasses = left[0].length;
+		final int numOfThresholds = thresholds.length;
+		
+		// Class totals
+		long[] totals = new long[numOfClasses];
+		long all = 0;
+		for(int c=0; c<n; c++) {
+			totals[classes[c]]+= weights[c];
+			all+= weights[c];
+		}
+		if (all >= MAX_EXACT_SUM) {
+			super.count(responses, classes, weights, n, thresholds, left, right);
+			return;
+		}
+		
+		float[][] acc = accumulators.get();
+		if (acc == null || acc.length < numOfClasses || acc[0].length < numOfThresholds) {
+			acc = new float[numOfClasses][numOfThresholds];
+			accumulators.set(acc);
+		} else {
+			for(int cl=0; cl<numOfClasses; cl++) {
+				for(int g=0; g<numOfThresholds; g++) {
+					acc[cl][g] = 0;
+				}
+			}
+		}
+		
+		final int lanes = species.length();
+		final int bound = species.loopBound(numOfThresholds);
+		for(int c=0; c<n; c++) {
+			final float ev = responses[c];
+			final float w = weights[c];
+			final float[] a = acc[classes[c]];
+			for(int g=0; g<bound; g+=lanes) {
+				VectorMask<Float> m = FloatVector.fromArray(species, thresholds, g).compare(VectorOperators.LE, ev);
+				FloatVector.fromArray(species, a, g).add(w, m).intoArray(a, g);
+			}
+			for(int g=bound; g<numOfThresholds; g++) {
+				if (ev >= thresholds[g]) a[g]+= w;
+			}
+		}
+		
+		for(int g=0; g<numOfThresholds; g++) {
+			long[] l = left[g];
+			long[] r = right[g];
+			for(int cl=0; cl<numOfClasses; cl++) {
+				long sum = (long)acc[cl][g];
+				l[cl]+= sum;
+				r[cl]+= totals[cl] - sum;
+			}
+		}
+	}
+	
+	/**
+	 * Returns a short description of the implementation for logging.
+	 * 
+	 * @return
+	 */
+	@Override
+	public String getDescription() {
+		return "vector (" + species.vectorBitSize() + " bit)";
+	}
+}
@@ -0,0 +1,80 @@
+package de.lmu.dbs.jforest.examples;
+
+import de.lmu.dbs.jforest.core2d.ThresholdCounter;
+
+/**
+ * Compares the scalar and the vectorized threshold counting implementation on random data, 
+ * and checks that both deliver the same counts. The vector width is fixed per JVM, so run 
+ * this once for each width to compare, i.e.:
+ * <br><br>
+ * java --add-modules jdk.incubator.vector -Djforest.vectorBits=256 de.lmu.dbs.jforest.examples.ThresholdCounterBenchmark
+ * 
+ * @author Thomas Weber
+ *
+ */
+public class ThresholdCounterBenchmark {
+
+	public static void main(String[] args) {
+		int n = 4096;
+		int numOfThresholds = 100;
+		int numOfClasses = 3;
+		int runs = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+		
+		float[] responses = new float[n];
+		int[] classes = new int[n];
+		int[] weights = new int[n];
+		for(int i=0; i<n; i++) {
+			responses[i] = (Math.random() < 0.3) ? -Float.MAX_VALUE : (float)(Math.random() - 0.5) * 4000000;
+			classes[i] = (int)(Math.random() * numOfClasses);
+			weights[i] = (int)(Math.random() * 3);
+		}
+		float[] thresholds = new float[numOfThresholds];
+		for(int i=0; i<numOfThresholds; i++) {
+			thresholds[i] = (float)(Math.random() - 0.5) * 4000000;
+		}
+		
+		ThresholdCounter scalar = new ThresholdCounter();
+		ThresholdCounter vector = ThresholdCounter.getInstance();
+		if (vector.getClass() == ThresholdCounter.class) {
+			System.out.println("Vector API not available, start the JVM with --add-modules jdk.incubator.vector");
+			return;
+		}
+		
+		long[][] refLeft = new long[numOfThresholds][numOfClasses];
+		long[][] refRight = new long[numOfThresholds][numOfClasses];
+		scalar.count(responses, classes, weights, n, thresholds, refLeft, refRight);
+		long[][] left = new long[numOfThresholds][numOfClasses];
+		long[][] right = new long[numOfThresholds][numOfClasses];
+		vector.count(responses, classes, weights, n, thresholds, left, right);
+		boolean equal = true;
+		for(int g=0; g<numOfThresholds; g++) {
+			for(int c=0; c<numOfClasses; c++) {
+				if (left[g][c] != refLeft[g][c] || right[g][c] != refRight[g][c]) equal = false;
+			}
+		}
+
+		double scalarTime = measure(scalar, responses, classes, weights, n, thresholds, runs);
+		double vectorTime = measure(vector, responses, classes, weights, n, thresholds, runs);
+		System.out.println("scalar: " + scalarTime + " ms per batch");
+		System.out.println(vector.getDescription() + ": " + vectorTime + " ms per batch");
+		System.out.println("Speedup: " + (scalarTime / vectorTime) + ", equal results: " + equal);
+	}
+	
+	/**
+	 * Returns the average time of one count() call in milliseconds, after warmup.
+	 * 
+	 * @return
+	 */
+	private static double measure(ThresholdCounter counter, float[] responses, int[] classes, int[] weights, int n, float[] thresholds, int runs) {
+		long[][] left = new long[thresholds.length][3];
+		long[][] right = new long[thresholds.length][3];
+		for(int i=0; i<runs; i++) {
+			counter.count(responses, classes, weights, n, thresholds, left, right);
+		}
+		long start = System.nanoTime();
+		for(int i=0; i<runs; i++) {
+			counter.count(responses, classes, weights, n, thresholds, left, right);
+		}
+		return (System.nanoTime() - start) / 1000000.0 / runs;
+	}
+}
@@ -36,8 +36,13 @@ package de.lmu.dbs.jspectrum;
  */
 
 import java.io.File;
-
-import de.lmu.dbs.jspectrum.util.FileIO;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import rasmus.interpreter.sampled.util.FFT;
 
@@ -72,7 +77,11 @@ import rasmus.interpreter.sampled.util.FFT;
  * - performance optimization in calc function(s)
  * - added calcMagnitude function, optimized for ready-to-use output format (non-complex)<br>
  * - added divideFFT parameter to lower FFT window (to increase performance)<br>
- * - buffer generated kernels to file(s) (if bufferLocation folder path is given)<br>
+ * - buffer generated kernels to a binary file (if bufferLocation folder path is given)<br>
+ * - thread safe calc functions using external FFT objects (see createFFT())<br>
+ * - sparse kernels in CSR layout, multiplied with blocks of frames (see calcMagnitudes(..))<br>
+ * - optional single precision kernel multiply<br>
+ * - parallel kernel generation<br>
  * <br><br>
  * 
  * @author Karl Helgason, P. J. Leonard, Thomas Weber
@@ -100,15 +109,37 @@ public class ConstantQTransform implements Transform {
 	private double[] freqs;
 
 	/**
-	 * Kernels
+	 * Kernels, only used while generating. See kernelValues.
 	 */
 	private double[][] qKernel;
 
 	/**
-	 * Kernel indices
+	 * Kernel indices, only used while generating. See kernelIndexes.
 	 */
 	private int[][] qKernel_indexes;
 
+	/**
+	 * Non-zero kernel values of all bins in CSR layout: The complex values (real and 
+	 * imaginary interleaved) of bin i are at [2*kernelRows[i], 2*kernelRows[i+1][.
+	 */
+	private double[] kernelValues;
+
+	/**
+	 * Single precision copy of kernelValues, if float precision is enabled.
+	 */
+	private float[] kernelValuesFloat = null;
+
+	/**
+	 * FFT buffer index of each non-zero kernel value: The value l is multiplied
+	 * with the FFT coefficient at kernelIndexes[l].
+	 */
+	private int[] kernelIndexes;
+
+	/**
+	 * Row pointers: The non-zero values of bin i are [kernelRows[i], kernelRows[i+1][.
+	 */
+	private int[] kernelRows;
+
 	/**
 	 * FFT calculator object
 	 */
@@ -156,10 +187,32 @@ public class ConstantQTransform implements Transform {
 	
 	private boolean buffered = false;
 	
+	/**
+	 * Kernel buffer file name prefix
+	 */
 	public static final String BUFFER_PREFIX = "cqt_";
-	public static final String BUFFER_POSTFIX_KERNELS = "_kernels";
-	public static final String BUFFER_POSTFIX_INDEX = "_index";
-	public static final String BUFFER_POSTFIX_FREQS = "_freqs";
+	
+	/**
+	 * Kernel buffer file name suffix
+	 */
+	public static final String BUFFER_SUFFIX = ".kernels";
+	
+	/**
+	 * Magic number of kernel buffer files ("CQTK")
+	 */
+	private static final int BUFFER_MAGIC = 0x4351544B;
+	
+	/**
+	 * Kernel buffer file format version
+	 */
+	private static final int BUFFER_VERSION = 1;
+	
+	/**
+	 * Size of the kernel buffer file header in bytes: magic, version, number of bins, FFT length, 
+	 * number of non-zero kernel values, 16 bytes parameter hash, padding. Followed by the bin 
+	 * frequencies, row pointers, indexes and values of the CSR kernels.
+	 */
+	private static final int BUFFER_HEADER_SIZE = 40;
 	
 	/**
 	 * 
@@ -272,76 +325,173 @@ public class ConstantQTransform implements Transform {
 			buffered = true;
 			return;
 		}
+		calculateKernels();
+		buildSparseKernels();
+		writeBuffer();
+	}
+
+	/**
+	 * Generates the kernels. The bins are independent, so they are calculated in parallel by
+	 * all available processors, each thread using its own FFT object and buffers.
+	 * 
+	 * @throws Exception
+	 */
+	private void calculateKernels() throws Exception {
 		qKernel = new double[k][];
 		qKernel_indexes = new int[k][];
 		freqs = new double[k];
-		// Calculate Constant Q kernels
-		double[] temp = new double[fftlen * 2];
-		double[] ctemp = new double[fftlen * 2];
-		int[] cindexes = new int[fftlen];
 		for (int i = 0; i < k; i++) {
-			double[] sKernel = temp;
 			// Calculate the frequency of current bin
 			freqs[i] = minFreq * Math.pow(2, i / binsPerOctave);
-			double len = q * sampleRate / freqs[i];
-			for (int j = 0; j < fftlen / 2; j++) {
-				double aa;
-				aa = (double) (j + 0.5) / len;
-				if (aa < .5) {
-					double a = 2.0 * Math.PI * aa;
-					double window = 0.5 * (1.0 + Math.cos(a)); // Hanning
-					window /= len;
-					// Calculate kernel
-					double x = 2.0 * Math.PI * freqs[i] * (j + 0.5D) / sampleRate;
-					sKernel[fftlen + j * 2] = window * Math.cos(x);
-					sKernel[fftlen + j * 2 + 1] = window * Math.sin(x);
-				} else {
-					sKernel[fftlen + j * 2] = 0.0;
-					sKernel[fftlen + j * 2 + 1] = 0.0;
+		}
+		final AtomicInteger next = new AtomicInteger(0);
+		int n = Math.min(Runtime.getRuntime().availableProcessors(), k);
+		Thread[] threads = new Thread[n];
+		final RuntimeException[] errors = new RuntimeException[n];
+		for (int t = 0; t < n; t++) {
+			final int index = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						FFT fft = createFFT();
+						double[] temp = new double[fftlen * 2];
+						double[] ctemp = new double[fftlen * 2];
+						int[] cindexes = new int[fftlen];
+						int i;
+						while ((i = next.getAndIncrement()) < k) {
+							calculateKernel(i, fft, temp, ctemp, cindexes);
+						}
+					} catch (RuntimeException e) {
+						errors[index] = e;
+					}
 				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < n; t++) {
+			threads[t].join();
+		}
+		for (int t = 0; t < n; t++) {
+			if (errors[t] != null) throw errors[t];
+		}
+	}
+
+	/**
+	 * Generates the kernel of one bin.
+	 * 
+	 * @param i bin
+	 * @param fft FFT object of the calling thread
+	 * @param temp work buffer, length 2 * fftlen
+	 * @param ctemp work buffer, length 2 * fftlen
+	 * @param cindexes work buffer, length fftlen
+	 */
+	private void calculateKernel(int i, FFT fft, double[] temp, double[] ctemp, int[] cindexes) {
+		double[] sKernel = temp;
+		double len = q * sampleRate / freqs[i];
+		for (int j = 0; j < fftlen / 2; j++) {
+			double aa;
+			aa = (double) (j + 0.5) / len;
+			if (aa < .5) {
+				double a = 2.0 * Math.PI * aa;
+				double window = 0.5 * (1.0 + Math.cos(a)); // Hanning
+				window /= len;
+				// Calculate kernel
+				double x = 2.0 * Math.PI * freqs[i] * (j + 0.5D) / sampleRate;
+				sKernel[fftlen + j * 2] = window * Math.cos(x);
+				sKernel[fftlen + j * 2 + 1] = window * Math.sin(x);
+			} else {
+				sKernel[fftlen + j * 2] = 0.0;
+				sKernel[fftlen + j * 2 + 1] = 0.0;
 			}
-			// reflect to genereate first half
-			int halfway = fftlen / 2;
-			for (int j = 0; j < halfway; j++) {
-				int i1 = halfway - j - 1;
-				int i2 = halfway + j;
-				sKernel[i1 * 2] = sKernel[2 * i2];
-				sKernel[i1 * 2 + 1] = -sKernel[2 * i2 + 1];
-			}
-			// Perform FFT on kernel
-			fft.calc(sKernel, -1);
-			// Remove all zeros from kernel to improve performance
-			double[] cKernel = ctemp;
-			int k = 0;
-			for (int j = 0, j2 = sKernel.length - 2; j < sKernel.length / 2; j += 2, j2 -= 2) {
-				double absval = Math.sqrt(sKernel[j] * sKernel[j]
-						+ sKernel[j + 1] * sKernel[j + 1]);
-				absval += Math.sqrt(sKernel[j2] * sKernel[j2] + sKernel[j2 + 1]
-						* sKernel[j2 + 1]);
-				if (absval > threshold) {
-					cindexes[k] = j;
-					cKernel[2 * k] = sKernel[j] + sKernel[j2];
-					cKernel[2 * k + 1] = sKernel[j + 1] + sKernel[j2 + 1];
-					k++;
-				}
+		}
+		// reflect to genereate first half
+		int halfway = fftlen / 2;
+		for (int j = 0; j < halfway; j++) {
+			int i1 = halfway - j - 1;
+			int i2 = halfway + j;
+			sKernel[i1 * 2] = sKernel[2 * i2];
+			sKernel[i1 * 2 + 1] = -sKernel[2 * i2 + 1];
+		}
+		// Perform FFT on kernel
+		fft.calc(sKernel, -1);
+		// Remove all zeros from kernel to improve performance
+		double[] cKernel = ctemp;
+		int k = 0;
+		for (int j = 0, j2 = sKernel.length - 2; j < sKernel.length / 2; j += 2, j2 -= 2) {
+			double absval = Math.sqrt(sKernel[j] * sKernel[j]
+					+ sKernel[j + 1] * sKernel[j + 1]);
+			absval += Math.sqrt(sKernel[j2] * sKernel[j2] + sKernel[j2 + 1]
+					* sKernel[j2 + 1]);
+			if (absval > threshold) {
+				cindexes[k] = j;
+				cKernel[2 * k] = sKernel[j] + sKernel[j2];
+				cKernel[2 * k + 1] = sKernel[j + 1] + sKernel[j2 + 1];
+				k++;
 			}
-			sKernel = new double[k * 2];
-			int[] indexes = new int[k];
-			for (int j = 0; j < k * 2; j++)
-				sKernel[j] = cKernel[j];
-			for (int j = 0; j < k; j++)
-				indexes[j] = cindexes[j];
-			// Normalize fft output
-			for (int j = 0; j < sKernel.length; j++)
-				sKernel[j] /= fftlen;
-			// Perform complex conjugate on sKernel
-			for (int j = 1; j < sKernel.length; j += 2)
-				sKernel[j] = -sKernel[j];
-			qKernel_indexes[i] = indexes;
-			qKernel[i] = sKernel;
-			// Write buffer
-			writeBuffer();
 		}
+		sKernel = new double[k * 2];
+		int[] indexes = new int[k];
+		for (int j = 0; j < k * 2; j++)
+			sKernel[j] = cKernel[j];
+		for (int j = 0; j < k; j++)
+			indexes[j] = cindexes[j];
+		// Normalize fft output
+		for (int j = 0; j < sKernel.length; j++)
+			sKernel[j] /= fftlen;
+		// Perform complex conjugate on sKernel
+		for (int j = 1; j < sKernel.length; j += 2)
+			sKernel[j] = -sKernel[j];
+		qKernel_indexes[i] = indexes;
+		qKernel[i] = sKernel;
+	}
+
+	/**
+	 * Converts the kernels to the CSR layout. The jagged arrays are released afterwards.
+	 */
+	private void buildSparseKernels() {
+		kernelRows = new int[qKernel.length + 1];
+		for (int i = 0; i < qKernel.length; i++) {
+			kernelRows[i + 1] = kernelRows[i] + qKernel_indexes[i].length;
+		}
+		int nnz = kernelRows[qKernel.length];
+		kernelValues = new double[nnz * 2];
+		kernelIndexes = new int[nnz];
+		for (int i = 0; i < qKernel.length; i++) {
+			System.arraycopy(qKernel[i], 0, kernelValues, kernelRows[i] * 2, qKernel_indexes[i].length * 2);
+			System.arraycopy(qKernel_indexes[i], 0, kernelIndexes, kernelRows[i], qKernel_indexes[i].length);
+		}
+		qKernel = null;
+		qKernel_indexes = null;
+	}
+	
+	/**
+	 * Enables or disables single precision for calcMagnitude(..) and calcMagnitudes(..): The kernel 
+	 * values are held as floats and the sums are accumulated in float. This halves the memory 
+	 * traffic of the kernel multiply at the cost of accuracy. Must not be called while
+	 * other threads are calculating.
+	 * 
+	 * @param floatPrecision
+	 */
+	public void setFloatPrecision(boolean floatPrecision) {
+		if (!floatPrecision) {
+			kernelValuesFloat = null;
+			return;
+		}
+		if (kernelValuesFloat != null) return;
+		float[] v = new float[kernelValues.length];
+		for (int j = 0; j < v.length; j++) {
+			v[j] = (float)kernelValues[j];
+		}
+		kernelValuesFloat = v;
+	}
+
+	/**
+	 * Returns if the kernel multiply is done in single precision.
+	 * 
+	 * @return
+	 */
+	public boolean isFloatPrecision() {
+		return kernelValuesFloat != null;
 	}
 
 	/**
@@ -357,21 +507,30 @@ public class ConstantQTransform implements Transform {
      *        complex representation of each bin (real and imaginary)
      */
 	public void calc(double[] buff_in, double[] buff_out) {
+		calc(fft, buff_in, buff_out);
+	}
+
+	/**
+	 * Same as calc(buff_in, buff_out), but uses the passed FFT object instead of the 
+	 * internal one. The kernels are not modified after initialization, so this can be 
+	 * called by multiple threads at once, each one using its own FFT object and buffers.
+	 * 
+	 * @param fft FFT object of the calling thread, see createFFT()
+	 * @param buff_in
+	 * @param buff_out
+	 */
+	public void calc(FFT fft, double[] buff_in, double[] buff_out) {
 		fft.calcReal(buff_in, -1);
 		double t_r, t_i;
-		double[] kernel;
-		int[] indexes;
 		int jj;
-		for (int i = 0; i < qKernel.length; i++) {
-			kernel = qKernel[i];
-			indexes = qKernel_indexes[i];
+		for (int i = 0; i < kernelRows.length - 1; i++) {
 			t_r = 0;
 			t_i = 0;
-			for (int j = 0, l = 0; j < kernel.length; j += 2, l++) {
-				jj = indexes[l];
+			for (int l = kernelRows[i], j = 2 * l; l < kernelRows[i + 1]; l++, j += 2) {
+				jj = kernelIndexes[l];
 				// COMPLEX: T += B * K
-				t_r += buff_in[jj] * kernel[j] - buff_in[jj + 1] * kernel[j + 1];
-				t_i += buff_in[jj] * kernel[j + 1] + buff_in[jj + 1] * kernel[j];
+				t_r += buff_in[jj] * kernelValues[j] - buff_in[jj + 1] * kernelValues[j + 1];
+				t_i += buff_in[jj] * kernelValues[j + 1] + buff_in[jj + 1] * kernelValues[j];
 			}
 			buff_out[i * 2] = t_r;
 			buff_out[i * 2 + 1] = t_i;
@@ -386,93 +545,237 @@ public class ConstantQTransform implements Transform {
      * @param buff_out length: number of frequency bins, holds magnitude of each bin
      */
 	public void calcMagnitude(double[] buff_in, double[] buff_out) {
+		calcMagnitude(fft, buff_in, buff_out);
+	}
+
+	/**
+	 * Same as calcMagnitude(buff_in, buff_out), but uses the passed FFT object instead of the 
+	 * internal one. Can be called by multiple threads at once, each one using its own FFT 
+	 * object and buffers.
+	 * 
+	 * @param fft FFT object of the calling thread, see createFFT()
+	 * @param buff_in
+	 * @param buff_out
+	 */
+	public void calcMagnitude(FFT fft, double[] buff_in, double[] buff_out) {
 		fft.calcReal(buff_in, -1);
-		double t_r, t_i;
-		double[] kernel;
-		int[] indexes;
+		multiply(new double[][] {buff_in}, 1, new double[][] {buff_out}, null, 0);
+	}
+
+	/**
+	 * Calculates the constant Q magnitudes of a block of frames: The FFT is done for each
+	 * frame, then each kernel row is multiplied with all frames of the block before 
+	 * proceeding to the next one, so the row stays in cache. The results are identical to
+	 * calling calcMagnitude(..) for each frame. Can be called by multiple threads at once,
+	 * each one using its own FFT object and buffers.
+	 * 
+	 * @param fft FFT object of the calling thread, see createFFT()
+	 * @param buff_in frame buffers with plain audio samples, overwritten by their FFT coeffs
+	 * @param num number of frames in buff_in to calculate
+	 * @param buff_out output arrays, the magnitudes of frame f are written to buff_out[outOffset + f]
+	 * @param outOffset
+	 */
+	public void calcMagnitudes(FFT fft, double[][] buff_in, int num, double[][] buff_out, int outOffset) {
+		for (int f = 0; f < num; f++) {
+			fft.calcReal(buff_in[f], -1);
+		}
+		multiply(buff_in, num, buff_out, null, outOffset);
+	}
+
+	/**
+	 * Same as calcMagnitudes(FFT, double[][], int, double[][], int), but writes the magnitudes
+	 * in single precision. The FFT is still done in double precision.
+	 * 
+	 * @param fft FFT object of the calling thread, see createFFT()
+	 * @param buff_in frame buffers with plain audio samples, overwritten by their FFT coeffs
+	 * @param num number of frames in buff_in to calculate
+	 * @param buff_out output arrays, the magnitudes of frame f are written to buff_out[outOffset + f]
+	 * @param outOffset
+	 */
+	public void calcMagnitudes(FFT fft, double[][] buff_in, int num, float[][] buff_out, int outOffset) {
+		for (int f = 0; f < num; f++) {
+			fft.calcReal(buff_in[f], -1);
+		}
+		multiply(buff_in, num, null, buff_out, outOffset);
+	}
+
+	/**
+	 * Internal: Multiplies the kernels with a block of FFT coeff buffers. The magnitudes are 
+	 * written to buff_out, or to buff_out_float if buff_out is null.
+	 * 
+	 * @param buff_in
+	 * @param num
+	 * @param buff_out
+	 * @param buff_out_float
+	 * @param outOffset
+	 */
+	private void multiply(double[][] buff_in, int num, double[][] buff_out, float[][] buff_out_float, int outOffset) {
+		float[] kernelf = kernelValuesFloat;
+		double[] b;
+		double mag;
 		int jj;
-		for (int i = 0; i < qKernel.length; i++) {
-			kernel = qKernel[i];
-			indexes = qKernel_indexes[i];
-			t_r = 0;
-			t_i = 0;
-			for (int j = 0, l = 0; j < kernel.length; j += 2, l++) {
-				jj = indexes[l];
-				// COMPLEX: T += B * K
-				t_r += buff_in[jj] * kernel[j] - buff_in[jj + 1] * kernel[j + 1];
-				t_i += buff_in[jj] * kernel[j + 1] + buff_in[jj + 1] * kernel[j];
+		for (int i = 0; i < kernelRows.length - 1; i++) {
+			int beg = kernelRows[i];
+			int end = kernelRows[i + 1];
+			for (int f = 0; f < num; f++) {
+				b = buff_in[f];
+				if (kernelf != null) {
+					float t_r = 0;
+					float t_i = 0;
+					for (int l = beg, j = 2 * beg; l < end; l++, j += 2) {
+						jj = kernelIndexes[l];
+						float br = (float)b[jj];
+						float bi = (float)b[jj + 1];
+						t_r += br * kernelf[j] - bi * kernelf[j + 1];
+						t_i += br * kernelf[j + 1] + bi * kernelf[j];
+					}
+					mag = Math.sqrt(t_r*t_r + t_i*t_i);
+				} else {
+					double t_r = 0;
+					double t_i = 0;
+					for (int l = beg, j = 2 * beg; l < end; l++, j += 2) {
+						jj = kernelIndexes[l];
+						// COMPLEX: T += B * K
+						t_r += b[jj] * kernelValues[j] - b[jj + 1] * kernelValues[j + 1];
+						t_i += b[jj] * kernelValues[j + 1] + b[jj + 1] * kernelValues[j];
+					}
+					mag = Math.sqrt(t_r*t_r + t_i*t_i);
+				}
+				if (buff_out != null) {
+					buff_out[outOffset + f][i] = mag;
+				} else {
+					buff_out_float[outOffset + f][i] = (float)mag;
+				}
 			}
-			buff_out[i] = Math.sqrt(t_r*t_r + t_i*t_i);
 		}
 	}
 
 	/**
-	 * Saves current kernels to a kernel buffer file.
+	 * Saves the kernels to the kernel buffer file. The file is written under a temporary 
+	 * name and renamed afterwards, so other processes never read incomplete files.
 	 * 
 	 * @throws Exception
 	 */
 	private void writeBuffer() throws Exception {
-		if (kernelBufferLocation != null) {
-			String fname = getBufferName();
-			FileIO<double[][]> dio = new FileIO<double[][]>();
-			dio.save(fname+BUFFER_POSTFIX_KERNELS, this.qKernel);
-			FileIO<int[][]> iio = new FileIO<int[][]>();
-			iio.save(fname+BUFFER_POSTFIX_INDEX, this.qKernel_indexes);
-			FileIO<double[]> fio = new FileIO<double[]>();
-			fio.save(fname+BUFFER_POSTFIX_FREQS, this.freqs);
+		if (kernelBufferLocation == null) return;
+		File file = getBufferFile();
+		File tmp = new File(file.getAbsolutePath() + "." + System.nanoTime() + ".tmp");
+		int nnz = kernelIndexes.length;
+		long size = getBufferSize(nnz);
+		if (size > Integer.MAX_VALUE) throw new Exception("CQT kernels too large for buffer file: " + size + " bytes");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(size);
+			MappedByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			b.putInt(BUFFER_MAGIC);
+			b.putInt(BUFFER_VERSION);
+			b.putInt(k);
+			b.putInt(fftlen);
+			b.putInt(nnz);
+			b.put(getParameterHash());
+			b.position(BUFFER_HEADER_SIZE);
+			b.asDoubleBuffer().put(freqs);
+			b.position(b.position() + 8 * k);
+			b.asIntBuffer().put(kernelRows);
+			b.position(b.position() + 4 * (k + 1));
+			b.asIntBuffer().put(kernelIndexes);
+			b.position(b.position() + 4 * nnz);
+			b.asDoubleBuffer().put(kernelValues);
+			b.force();
+		} finally {
+			raf.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			if (!file.exists()) throw new Exception("Could not rename " + tmp.getAbsolutePath() + " to " + file.getAbsolutePath());
 		}
-		
 	}
 	
 	/**
-	 * Retrieve kernel buffer data if exists.
+	 * Returns the size of the kernel buffer file in bytes.
+	 * 
+	 * @param nnz number of non-zero kernel values
+	 * @return
+	 */
+	private long getBufferSize(int nnz) {
+		return BUFFER_HEADER_SIZE + 8L * k + 4L * (k + 1) + 4L * nnz + 16L * nnz;
+	}
+	
+	/**
+	 * Retrieve kernel buffer data if exists. The file is memory mapped and copied to the kernel arrays.
+	 * Files which do not match the parameters, or whose length does not match the header (truncated 
+	 * files), are ignored, so the kernels are generated again.
 	 * 
 	 * @return if buffer has been loaded successfully
 	 * @throws Exception
 	 */
 	private boolean loadBuffer() throws Exception {
-		if (kernelBufferLocation != null) {
-			String fname = getBufferName();
-			if (bufferExists(fname)) {
-				FileIO<double[][]> dio = new FileIO<double[][]>();
-				this.qKernel = dio.load(fname+BUFFER_POSTFIX_KERNELS);
-				FileIO<int[][]> iio = new FileIO<int[][]>();
-				this.qKernel_indexes = iio.load(fname+BUFFER_POSTFIX_INDEX);
-				FileIO<double[]> fio = new FileIO<double[]>();
-				this.freqs = fio.load(fname+BUFFER_POSTFIX_FREQS);
-				return true;
-			}
+		if (kernelBufferLocation == null) return false;
+		File file = getBufferFile();
+		if (!file.exists()) return false;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			if (length < BUFFER_HEADER_SIZE) return false;
+			MappedByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			if (b.getInt() != BUFFER_MAGIC || b.getInt() != BUFFER_VERSION) return false;
+			int bins = b.getInt();
+			int len = b.getInt();
+			int nnz = b.getInt();
+			byte[] hash = new byte[16];
+			b.get(hash);
+			if (bins != k || len != fftlen || !Arrays.equals(hash, getParameterHash())) return false;
+			if (nnz < 0 || length != getBufferSize(nnz)) return false;
+			b.position(BUFFER_HEADER_SIZE);
+			freqs = new double[k];
+			kernelRows = new int[k + 1];
+			kernelIndexes = new int[nnz];
+			kernelValues = new double[2 * nnz];
+			b.asDoubleBuffer().get(freqs);
+			b.position(b.position() + 8 * k);
+			b.asIntBuffer().get(kernelRows);
+			b.position(b.position() + 4 * (k + 1));
+			b.asIntBuffer().get(kernelIndexes);
+			b.position(b.position() + 4 * nnz);
+			b.asDoubleBuffer().get(kernelValues);
+		} finally {
+			raf.close();
 		}
-		return false;
+		return true;
 	}
 	
 	/**
-	 * Detects the existence of buffered data for this configuration
+	 * Returns the kernel buffer file of this configuration, named by its parameter hash.
 	 * 
-	 * @param fname
 	 * @return
+	 * @throws Exception 
 	 */
-	private boolean bufferExists(final String fname) {
-		return (new File(fname+BUFFER_POSTFIX_KERNELS)).exists() 
-		    && (new File(fname+BUFFER_POSTFIX_INDEX)).exists() 
-		    && (new File(fname+BUFFER_POSTFIX_FREQS)).exists();
+	private File getBufferFile() throws Exception {
+		byte[] h = getParameterHash();
+		StringBuilder s = new StringBuilder(BUFFER_PREFIX);
+		for (int i = 0; i < h.length; i++) {
+			s.append(String.format("%02x", h[i]));
+		}
+		s.append(BUFFER_SUFFIX);
+		return new File(kernelBufferLocation, s.toString());
 	}
 	
 	/**
-	 * Returns the corresponding buffer file name.
+	 * Returns the MD5 hash of all parameters the kernels depend on.
 	 * 
-	 * @return
+	 * @return 16 bytes
+	 * @throws Exception
 	 */
-	private String getBufferName() {
-		String fname = kernelBufferLocation + BUFFER_PREFIX;
-		fname+= sampleRate + "_";
-		fname+= minFreq + "_";
-		fname+= maxFreq + "_";
-		fname+= binsPerOctave + "_";
-		fname+= threshold + "_";
-		fname+= spread + "_";
-		fname+= divideFFT;
-		return fname;
+	private byte[] getParameterHash() throws Exception {
+		ByteBuffer b = ByteBuffer.allocate(7 * 8);
+		b.putDouble(sampleRate);
+		b.putDouble(minFreq);
+		b.putDouble(maxFreq);
+		b.putDouble(binsPerOctave);
+		b.putDouble(threshold);
+		b.putDouble(spread);
+		b.putDouble(divideFFT);
+		return MessageDigest.getInstance("MD5").digest(b.array());
 	}
 	
 	/**
@@ -484,6 +787,16 @@ public class ConstantQTransform implements Transform {
 		return fft;
 	}
 
+	/**
+	 * Creates a new FFT calculator instance of the window length. The FFT objects hold 
+	 * internal work buffers, so each thread calling calc(..) in parallel needs its own one.
+	 * 
+	 * @return
+	 */
+	public FFT createFFT() {
+		return new FFT(fftlen);
+	}
+
 	/**
 	 * returns an array with the bin requencies
 	 * 
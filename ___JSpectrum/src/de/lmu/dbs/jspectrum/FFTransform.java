@@ -25,6 +25,7 @@ public class FFTransform implements Transform {
 	 * @param fftlen
 	 */
 	public FFTransform(int fftlen) {
+		this.fftlen = fftlen;
 		fft = new FFT(fftlen);
 	}
 	
@@ -55,6 +56,19 @@ public class FFTransform implements Transform {
      * @param buff_out length: number of frequency bins, holds magnitude of each coeff
      */
 	public void calcMagnitude(double[] buffIn, double[] buffOut) {
+		calcMagnitude(fft, buffIn, buffOut);
+	}
+
+	/**
+	 * Same as calcMagnitude(buffIn, buffOut), but uses the passed FFT object instead of the
+	 * internal one. Can be called by multiple threads at once, each one using its own FFT 
+	 * object and buffers.
+	 * 
+	 * @param fft FFT object of the calling thread, see createFFT()
+	 * @param buffIn
+	 * @param buffOut
+	 */
+	public void calcMagnitude(FFT fft, double[] buffIn, double[] buffOut) {
 		fft.calcReal(buffIn, -1);
 		for(int i=0; i<buffIn.length; i+=2) {
 			if (buffOut.length <= i/2) return;
@@ -71,4 +85,14 @@ public class FFTransform implements Transform {
 		return fftlen;
 	}
 
+	/**
+	 * Creates a new FFT calculator instance of the window size. The FFT objects hold 
+	 * internal work buffers, so each thread calculating in parallel needs its own one.
+	 * 
+	 * @return
+	 */
+	public FFT createFFT() {
+		return new FFT(fftlen);
+	}
+
 }
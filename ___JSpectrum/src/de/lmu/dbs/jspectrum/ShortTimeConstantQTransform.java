@@ -1,5 +1,7 @@
 package de.lmu.dbs.jspectrum;
 
+import rasmus.interpreter.sampled.util.FFT;
+import de.lmu.dbs.jspectrum.util.AudioSource;
 import de.lmu.dbs.jspectrum.util.Window;
 
 /**
@@ -25,6 +27,11 @@ public class ShortTimeConstantQTransform extends ShortTimeTransform {
 	 */
 	private ConstantQTransform cqt = null;
 	
+	/**
+	 * Number of frames multiplied with the kernels at once, see ConstantQTransform.calcMagnitudes(..)
+	 */
+	private int blockSize = 16;
+	
 	/**
 	 * Create CQT instance.
 	 * 
@@ -91,33 +98,153 @@ public class ShortTimeConstantQTransform extends ShortTimeTransform {
 	/**
 	 * Returns a matrix containing cqt data of the given audio sample. The data is stepped through and 
 	 * the windowed to get the 2d matrix output representing the spectrum over time.
+	 * The frames are calculated by numOfThreads threads, see setNumOfThreads(int).
 	 * 
 	 * @param samples audio samples 
 	 * @param step the amount of samples of one analysis step (each step calculates one window)
-	 * @param windowFunction the windowing function used
+	 * @param windowFunction the windowing function used. Shared by all threads, so it must not 
+	 *        keep any state while applied.
 	 * @return data matrix (shape: [frame][number of frequency bins, filled with magnitude values])
 	 */
 	@Override
 	public double[][] calculate(final int[] samples, final int step, final Window windowFunction) {
 		int frames = (int)Math.floor(samples.length / step); 
-		double[][] data = new double[frames][bins]; 
-		double[] frameBuffer = new double[windowSize];
-		int index;
-		for(int frame=0; frame<frames; frame++) {
-			for(int h=0; h<windowSize; h++) {
-				index = frame*step+h-windowSize/2;
-				if (index < 0 || index >= samples.length) {
-					frameBuffer[h] = 0.0;
-				} else {
-					frameBuffer[h] = (double)samples[index];
+		final double[][] data = new double[frames][bins]; 
+		maximum = processFrames(frames, 0, new FrameProcessor() {
+			public double process(int from, int to) {
+				FFT fft = cqt.createFFT();
+				double[][] frameBuffers = new double[Math.min(blockSize, to - from)][windowSize];
+				double max = 0;
+				int index;
+				for(int block=from; block<to; block+=blockSize) {
+					int num = Math.min(blockSize, to - block);
+					for(int f=0; f<num; f++) {
+						int frame = block + f;
+						double[] frameBuffer = frameBuffers[f];
+						for(int h=0; h<windowSize; h++) {
+							index = frame*step+h-windowSize/2;
+							if (index < 0 || index >= samples.length) {
+								frameBuffer[h] = 0.0;
+							} else {
+								frameBuffer[h] = (double)samples[index];
+							}
+						}
+						windowFunction.apply(frameBuffer);
+					}
+					cqt.calcMagnitudes(fft, frameBuffers, num, data, block);
+					max = Math.max(max, getMaximum(data, block, block + num));
 				}
+				return max;
 			}
-			windowFunction.apply(frameBuffer);
-			cqt.calcMagnitude(frameBuffer, data[frame]);
-		}
+		});
 		return data;
 	}
 
+	/**
+	 * Returns a matrix containing cqt data of a streaming audio source, identical to the one calculate(int[], ..)
+	 * returns for all samples of the source. The samples are read block by block: Each block of frames
+	 * reads the span of samples covered by its windows, so the signal is never held in memory completely.
+	 *
+	 * @param source audio source
+	 * @param step the amount of samples of one analysis step (each step calculates one window)
+	 * @param windowFunction the windowing function used. Shared by all threads, so it must not
+	 *        keep any state while applied.
+	 * @return data matrix (shape: [frame][number of frequency bins, filled with magnitude values])
+	 * @throws Exception
+	 */
+	@Override
+	public double[][] calculate(final AudioSource source, final int step, final Window windowFunction) throws Exception {
+		final double[][] data = new double[getNumOfFrames(source, step)][bins];
+		calculate(source, step, windowFunction, data, null);
+		return data;
+	}
+
+	/**
+	 * Same as calculate(AudioSource, ..), but writes the magnitudes in single precision. The frames
+	 * are still windowed and transformed by FFT in double precision, the kernel multiply is done in 
+	 * single precision if enabled by setFloatPrecision(boolean).
+	 *
+	 * @param source audio source
+	 * @param step the amount of samples of one analysis step (each step calculates one window)
+	 * @param windowFunction the windowing function used. Shared by all threads, so it must not
+	 *        keep any state while applied.
+	 * @return data matrix (shape: [frame][number of frequency bins, filled with magnitude values])
+	 * @throws Exception
+	 */
+	@Override
+	public float[][] calculateFloat(final AudioSource source, final int step, final Window windowFunction) throws Exception {
+		final float[][] data = new float[getNumOfFrames(source, step)][bins];
+		calculate(source, step, windowFunction, null, data);
+		return data;
+	}
+
+	/**
+	 * Internal: Returns the number of frames of a source.
+	 *
+	 * @param source
+	 * @param step
+	 * @return
+	 * @throws Exception
+	 */
+	private int getNumOfFrames(final AudioSource source, final int step) throws Exception {
+		long len = source.getLength() / step;
+		if (len > Integer.MAX_VALUE) throw new Exception("Too many frames: " + len);
+		return (int)len;
+	}
+
+	/**
+	 * Internal: Calculates the frames of a source into data, or into dataFloat if data is null.
+	 *
+	 * @param source
+	 * @param step
+	 * @param windowFunction
+	 * @param data
+	 * @param dataFloat
+	 * @throws Exception
+	 */
+	private void calculate(final AudioSource source, final int step, final Window windowFunction, final double[][] data, final float[][] dataFloat) throws Exception {
+		int frames = (data != null) ? data.length : dataFloat.length;
+		try {
+			maximum = processFrames(frames, 0, new FrameProcessor() {
+				public double process(int from, int to) {
+					FFT fft = cqt.createFFT();
+					double[][] frameBuffers = new double[Math.min(blockSize, to - from)][windowSize];
+					int[] span = new int[(blockSize - 1) * step + windowSize];
+					double max = 0;
+					try {
+						for(int block=from; block<to; block+=blockSize) {
+							int num = Math.min(blockSize, to - block);
+							source.read((long)block*step - windowSize/2, span, 0, (num - 1) * step + windowSize);
+							for(int f=0; f<num; f++) {
+								double[] frameBuffer = frameBuffers[f];
+								int index = f*step;
+								for(int h=0; h<windowSize; h++) {
+									frameBuffer[h] = (double)span[index + h];
+								}
+								windowFunction.apply(frameBuffer);
+							}
+							if (data != null) {
+								cqt.calcMagnitudes(fft, frameBuffers, num, data, block);
+								max = Math.max(max, getMaximum(data, block, block + num));
+							} else {
+								cqt.calcMagnitudes(fft, frameBuffers, num, dataFloat, block);
+								max = Math.max(max, getMaximum(dataFloat, block, block + num));
+							}
+						}
+						return max;
+					} catch (RuntimeException e) {
+						throw e;
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			if (e.getCause() instanceof Exception) throw (Exception)e.getCause();
+			throw e;
+		}
+	}
+
 	/**
 	 * Returns the frequencies in hertz, corresponding to the second level of the 
 	 * data matrix returned by calculate(..).
@@ -138,6 +265,26 @@ public class ShortTimeConstantQTransform extends ShortTimeTransform {
 		return windowSize;
 	}
 
+	/**
+	 * Sets the number of frames multiplied with the kernels at once. Does not change the results.
+	 * 
+	 * @param blockSize
+	 * @throws Exception 
+	 */
+	public void setBlockSize(int blockSize) throws Exception {
+		if (blockSize < 1) throw new Exception("Block size has to be at least 1: " + blockSize);
+		this.blockSize = blockSize;
+	}
+	
+	/**
+	 * Enables or disables single precision kernel multiplication, see ConstantQTransform.setFloatPrecision(boolean).
+	 * 
+	 * @param floatPrecision
+	 */
+	public void setFloatPrecision(boolean floatPrecision) {
+		cqt.setFloatPrecision(floatPrecision);
+	}
+
 	/**
 	 * Returns if the kernels were loaded from buffer files or not.
 	 * 
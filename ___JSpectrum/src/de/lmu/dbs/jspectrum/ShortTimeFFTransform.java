@@ -1,5 +1,6 @@
 package de.lmu.dbs.jspectrum;
 
+import rasmus.interpreter.sampled.util.FFT;
 import de.lmu.dbs.jspectrum.util.Window;
 
 /**
@@ -47,27 +48,38 @@ public class ShortTimeFFTransform extends ShortTimeTransform {
 	/**
 	 * Returns a matrix containing fft data of the given audio sample. The data is stepped through and 
 	 * the windowed to get the 2d matrix output representing the spectrum over time.
+	 * The frames are calculated by numOfThreads threads, see setNumOfThreads(int).
 	 * 
 	 * @param samples audio samples 
 	 * @param step the amount of samples of one analysis step (each step calculates one window)
-	 * @param windowFunction the windowing function used
+	 * @param windowFunction the windowing function used. Shared by all threads, so it must not 
+	 *        keep any state while applied.
 	 * @return data matrix (shape: [frame][fftlen, filled with magnitude values])
 	 */
 	@Override
-	public double[][] calculate(int[] samples, int step, Window windowFunction) {
+	public double[][] calculate(final int[] samples, final int step, final Window windowFunction) {
 		int frames = (samples.length) / step - 1; 
-		double[][] data = new double[frames][(int)(fftlen*zoomOutput/2)]; 
-		double[] frameBuffer = new double[fftlen];
-		int beg;
-		for(int frame=0; frame<frames; frame++) {
-			beg = frame*step;
-			for(int h=0; h<fftlen; h++) {
-				if (beg < samples.length) frameBuffer[h] = (double)samples[beg];
-				beg++;
+		final double[][] data = new double[frames][(int)(fftlen*zoomOutput/2)]; 
+		// Frames reaching beyond the samples keep the buffer values of their predecessor 
+		int complete = (samples.length >= fftlen) ? (samples.length - fftlen) / step + 1 : 0;
+		int serialTail = (frames > complete) ? frames - complete : 0;
+		maximum = processFrames(frames, serialTail, new FrameProcessor() {
+			public double process(int from, int to) {
+				FFT f = fft.createFFT();
+				double[] frameBuffer = new double[fftlen];
+				int beg;
+				for(int frame=from; frame<to; frame++) {
+					beg = frame*step;
+					for(int h=0; h<fftlen; h++) {
+						if (beg < samples.length) frameBuffer[h] = (double)samples[beg];
+						beg++;
+					}
+					windowFunction.apply(frameBuffer);
+					fft.calcMagnitude(f, frameBuffer, data[frame]);
+				}
+				return getMaximum(data, from, to);
 			}
-			windowFunction.apply(frameBuffer);
-			fft.calcMagnitude(frameBuffer, data[frame]);
-		}
+		});
 		return data;
 	}
 
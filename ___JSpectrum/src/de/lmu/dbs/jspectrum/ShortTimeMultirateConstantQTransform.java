@@ -0,0 +1,341 @@
+package de.lmu.dbs.jspectrum;
+
+import rasmus.interpreter.sampled.util.FFT;
+import de.lmu.dbs.jspectrum.util.Window;
+
+/**
+ * Multirate Constant Q Transform, calculated octave by octave. Generates full 3d spectra as data matrices,
+ * compatible to ShortTimeConstantQTransform with the same parameters.
+ * <br><br>
+ * Only the kernels of the top octave are generated, with a short FFT. For each lower octave, the signal
+ * is low pass filtered and downsampled by two, and the same kernels are applied again. So every frame
+ * needs one short FFT per octave instead of one FFT long enough for the lowest frequency.
+ * <br><br>
+ * Differences to ShortTimeConstantQTransform:<br>
+ * - The frame centers of octave o are rounded to multiples of 2^o samples.<br>
+ * - The window function is sampled down for each octave.<br>
+ * - The decimation filter has a small passband ripple and stopband attenuation of about -70dB.<br>
+ * - The sparse kernels are cut by threshold from a shorter FFT, which leaves other coefficients.<br>
+ * The last point dominates: With threshold 0.05, magnitudes deviate by up to 3% of the spectrum maximum 
+ * (0.1% on average), and about 2% of the log scaled byte values deviate by more than 4. With threshold 
+ * 0.001, the deviation is below 0.4% of the maximum and no byte value deviates by more than 4. 
+ * Forests trained on the single FFT CQT can be used with thresholds that low; for higher ones, it is 
+ * better to generate the training data with the multirate CQT, too.
+ * <br><br>
+ * For 7 octaves at 44.1kHz, this is about 3.5 times faster with divideFFT = 4, and 15 times faster
+ * with divideFFT = 1.
+ * <br><br>
+ * binsPerOctave has to be an integer, and fmax must not be above 0.4 * sampleRate.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class ShortTimeMultirateConstantQTransform extends ShortTimeTransform {
+
+	/**
+	 * Number of odd filter taps on each side of the center of the halfband decimation filter. The even
+	 * taps of a halfband filter are zero, except the center tap.
+	 */
+	public static final int FILTER_HALF_TAPS = 16;
+
+	/**
+	 * Size of the equivalent full length window, see getWindowSize()
+	 */
+	private int windowSize;
+
+	/**
+	 * Number of frequency bands
+	 */
+	private int bins;
+
+	/**
+	 * Number of frequency bands per octave
+	 */
+	private int binsPerOctave;
+
+	/**
+	 * Number of octaves (the lowest one may be incomplete)
+	 */
+	private int octaves;
+
+	/**
+	 * Frequencies of the bands
+	 */
+	private double[] freqs;
+
+	/**
+	 * CQT processor for the top octave
+	 */
+	private ConstantQTransform cqt = null;
+
+	/**
+	 * Decimation filter coefficients of the odd taps 1, 3, 5...
+	 */
+	private double[] filter;
+
+	/**
+	 * Decimation filter center tap coefficient
+	 */
+	private double filterCenter;
+
+	/**
+	 * Number of frames multiplied with the kernels at once, see ConstantQTransform.calcMagnitudes(..)
+	 */
+	private int blockSize = 16;
+
+	/**
+	 * Create multirate CQT instance.
+	 *
+	 * @param sampleRate audio sample rate
+	 * @param fmin minimum frequency
+	 * @param fmax maximum frequency, must not be above 0.4 * sampleRate
+	 * @param binsPerOctave bands per octave to examine, must be an integer
+	 * @param threshold lower numbers are better!
+	 * @param spread
+	 * @param divideFFT divide FFT window to increase performance
+	 * @param kernelBufferLocation folder where the kernel buffer files are stored
+	 * @throws Exception
+	 */
+	public ShortTimeMultirateConstantQTransform(final double sampleRate, final double fmin, final double fmax, final double binsPerOctave, final double threshold, final double spread, final double divideFFT, final String kernelBufferLocation) throws Exception {
+		if (binsPerOctave != Math.floor(binsPerOctave) || binsPerOctave < 1) throw new Exception("Multirate CQT needs an integer number of bins per octave: " + binsPerOctave);
+		if (fmax > 0.4 * sampleRate) throw new Exception("Multirate CQT needs fmax <= 0.4 * sample rate: " + fmax);
+		this.binsPerOctave = (int)binsPerOctave;
+		// Same dimensions as ConstantQTransform
+		double q = 1.0 / (Math.pow(2, 1.0 / binsPerOctave) - 1.0) / spread;
+		bins = (int) Math.ceil(binsPerOctave * Math.log(fmax / fmin) / Math.log(2));
+		double calc_fftlen = Math.ceil(q * sampleRate / fmin);
+		windowSize = (int)(Math.pow(2, Math.ceil(Math.log(calc_fftlen) / Math.log(2)))/divideFFT);
+		freqs = new double[bins];
+		for(int i=0; i<bins; i++) {
+			freqs[i] = fmin * Math.pow(2, i / binsPerOctave);
+		}
+		octaves = (bins + this.binsPerOctave - 1) / this.binsPerOctave;
+		// Kernels of the top octave. These are not shortened by divideFFT: The full length window is
+		// sampled down for each octave, which cuts the kernels at the same time as in the single FFT CQT.
+		double topMin = fmin * Math.pow(2, (bins - this.binsPerOctave) / binsPerOctave);
+		cqt = new ConstantQTransform(sampleRate, topMin, topMin * 2, binsPerOctave, threshold, spread, 1.0, kernelBufferLocation);
+		if (cqt.getNumberOfOutputBands() != this.binsPerOctave) throw new Exception("Top octave CQT has " + cqt.getNumberOfOutputBands() + " bins instead of " + this.binsPerOctave);
+		initFilter();
+	}
+
+	/**
+	 * Designs the halfband low pass filter (Blackman windowed sinc) for decimation by two,
+	 * normalized to unity gain at DC.
+	 */
+	private void initFilter() {
+		int len = 2 * FILTER_HALF_TAPS - 1;
+		filter = new double[FILTER_HALF_TAPS];
+		filterCenter = 0.5;
+		double sum = filterCenter;
+		for(int i=0; i<FILTER_HALF_TAPS; i++) {
+			int t = 2 * i + 1;
+			double x = Math.PI * t / 2;
+			double window = 0.42 + 0.5 * Math.cos(Math.PI * t / (len + 1)) + 0.08 * Math.cos(2 * Math.PI * t / (len + 1));
+			filter[i] = 0.5 * Math.sin(x) / x * window;
+			sum+= 2 * filter[i];
+		}
+		filterCenter/= sum;
+		for(int i=0; i<FILTER_HALF_TAPS; i++) {
+			filter[i]/= sum;
+		}
+	}
+
+	/**
+	 * Returns a matrix containing cqt data of the given audio sample. The data is stepped through and
+	 * the windowed to get the 2d matrix output representing the spectrum over time.
+	 * The frames are calculated by numOfThreads threads, see setNumOfThreads(int).
+	 *
+	 * @param samples audio samples
+	 * @param step the amount of samples of one analysis step (each step calculates one window)
+	 * @param windowFunction the windowing function used, for the full window size. It is applied once
+	 *        to get the window coefficients, which are then sampled down for each octave.
+	 * @return data matrix (shape: [frame][number of frequency bins, filled with magnitude values])
+	 */
+	@Override
+	public double[][] calculate(final int[] samples, final int step, final Window windowFunction) {
+		final int frames = (int)Math.floor(samples.length / step);
+		final double[][] data = new double[frames][bins];
+		final int n = cqt.getWindowSize();
+		double[] fullWindow = new double[windowSize];
+		for(int i=0; i<windowSize; i++) {
+			fullWindow[i] = 1.0;
+		}
+		windowFunction.apply(fullWindow);
+		double[] signal = new double[samples.length];
+		for(int i=0; i<samples.length; i++) {
+			signal[i] = samples[i];
+		}
+		maximum = 0;
+		for(int o=0; o<octaves; o++) {
+			final int octave = o;
+			final int firstBin = bins - (o + 1) * binsPerOctave;
+			final double[] x = signal;
+			final double[] window = getOctaveWindow(fullWindow, o, n);
+			double max = processFrames(frames, 0, new FrameProcessor() {
+				public double process(int from, int to) {
+					FFT fft = cqt.createFFT();
+					double max = 0;
+					int num = Math.min(blockSize, to - from);
+					double[][] frameBuffers = new double[num][n];
+					double[][] out = new double[num][binsPerOctave];
+					int index;
+					for(int block=from; block<to; block+=blockSize) {
+						num = Math.min(blockSize, to - block);
+						for(int f=0; f<num; f++) {
+							int beg = getCenter(block + f, step, octave) - n/2;
+							double[] frameBuffer = frameBuffers[f];
+							for(int h=0; h<n; h++) {
+								index = beg + h;
+								if (index < 0 || index >= x.length) {
+									frameBuffer[h] = 0.0;
+								} else {
+									frameBuffer[h] = x[index] * window[h];
+								}
+							}
+						}
+						cqt.calcMagnitudes(fft, frameBuffers, num, out, 0);
+						for(int f=0; f<num; f++) {
+							for(int j=Math.max(0, -firstBin); j<binsPerOctave; j++) {
+								data[block + f][firstBin + j] = out[f][j];
+								if (out[f][j] > max) max = out[f][j];
+							}
+						}
+					}
+					return max;
+				}
+			});
+			if (max > maximum) maximum = max;
+			if (o < octaves-1) signal = decimate(signal);
+		}
+		return data;
+	}
+
+	/**
+	 * Internal: Returns the center sample index of a frame in the signal of an octave. The kernel center
+	 * lies half a sample before the center index, this is kept in the time of the original samples.
+	 *
+	 * @param frame
+	 * @param step
+	 * @param octave
+	 * @return
+	 */
+	private int getCenter(int frame, int step, int octave) {
+		if (octave == 0) return frame * step;
+		return (int)Math.round((frame * step - 0.5) / (1 << octave) + 0.5);
+	}
+
+	/**
+	 * Internal: Samples the full length window coefficients down for an octave.
+	 *
+	 * @param fullWindow
+	 * @param octave
+	 * @param n frame length of the octave
+	 * @return
+	 */
+	private double[] getOctaveWindow(double[] fullWindow, int octave, int n) {
+		double[] ret = new double[n];
+		int factor = 1 << octave;
+		for(int h=0; h<n; h++) {
+			long p = Math.round((h - n/2 + 0.5) * factor - 0.5 + fullWindow.length/2);
+			ret[h] = (p < 0 || p >= fullWindow.length) ? 0 : fullWindow[(int)p];
+		}
+		return ret;
+	}
+
+	/**
+	 * Internal: Low pass filters the signal and downsamples it by two. The filter is
+	 * symmetric, so output sample m corresponds to input sample 2*m.
+	 *
+	 * @param in
+	 * @return
+	 */
+	private double[] decimate(final double[] in) {
+		final double[] out = new double[(in.length + 1) / 2];
+		processFrames(out.length, 0, new FrameProcessor() {
+			public double process(int from, int to) {
+				for(int m=from; m<to; m++) {
+					int c = 2 * m;
+					double sum = filterCenter * in[c];
+					for(int i=0; i<FILTER_HALF_TAPS; i++) {
+						int t = 2 * i + 1;
+						double l = (c - t >= 0) ? in[c - t] : 0;
+						double r = (c + t < in.length) ? in[c + t] : 0;
+						sum+= filter[i] * (l + r);
+					}
+					out[m] = sum;
+				}
+				return 0;
+			}
+		});
+		return out;
+	}
+
+	/**
+	 * Returns the frequencies in hertz, corresponding to the second level of the
+	 * data matrix returned by calculate(..).
+	 *
+	 * @return
+	 */
+	@Override
+	public double[] getFrequencies() {
+		return freqs;
+	}
+
+	/**
+	 * Returns the window size of the equivalent ShortTimeConstantQTransform. The window
+	 * function passed to calculate(..) has to be of this size.
+	 *
+	 * @return
+	 */
+	@Override
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Returns the FFT length used for each octave.
+	 *
+	 * @return
+	 */
+	public int getOctaveWindowSize() {
+		return cqt.getWindowSize();
+	}
+
+	/**
+	 * Returns the number of octaves (the lowest one may be incomplete).
+	 *
+	 * @return
+	 */
+	public int getNumOfOctaves() {
+		return octaves;
+	}
+
+	/**
+	 * Sets the number of frames multiplied with the kernels at once. Does not change the results.
+	 *
+	 * @param blockSize
+	 * @throws Exception
+	 */
+	public void setBlockSize(int blockSize) throws Exception {
+		if (blockSize < 1) throw new Exception("Block size has to be at least 1: " + blockSize);
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Enables or disables single precision kernel multiplication, see ConstantQTransform.setFloatPrecision(boolean).
+	 *
+	 * @param floatPrecision
+	 */
+	public void setFloatPrecision(boolean floatPrecision) {
+		cqt.setFloatPrecision(floatPrecision);
+	}
+
+	/**
+	 * Returns if the top octave kernels were loaded from buffer files or not.
+	 *
+	 * @return
+	 */
+	public boolean isBuffered() {
+		return cqt.isBuffered();
+	}
+}
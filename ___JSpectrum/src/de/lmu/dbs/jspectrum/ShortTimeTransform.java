@@ -1,5 +1,6 @@
 package de.lmu.dbs.jspectrum;
 
+import de.lmu.dbs.jspectrum.util.AudioSource;
 import de.lmu.dbs.jspectrum.util.Window;
 
 /**
@@ -10,6 +11,36 @@ import de.lmu.dbs.jspectrum.util.Window;
  */
 public abstract class ShortTimeTransform {
 
+	/**
+	 * Number of threads calculating frames in parallel
+	 */
+	protected int numOfThreads = 1;
+	
+	/**
+	 * Maximum magnitude of the last calculation, tracked while the frames are calculated. 
+	 * Negative if not known.
+	 */
+	protected double maximum = -1;
+	
+	/**
+	 * Calculates a range of frames. Implementations hold their own work buffers 
+	 * per call, so multiple ranges can be calculated in parallel.
+	 * 
+	 * @author Thomas Weber
+	 *
+	 */
+	protected interface FrameProcessor {
+		
+		/**
+		 * Calculates frames [from, to[ into the output matrix.
+		 * 
+		 * @param from first frame
+		 * @param to last frame (exclusive)
+		 * @return maximum of the values written (zero if none)
+		 */
+		public double process(int from, int to);
+	}
+	
 	/**
 	 * Calculate the transformation
 	 * 
@@ -20,6 +51,57 @@ public abstract class ShortTimeTransform {
 	 */
 	public abstract double[][] calculate(final int[] samples, final int step, final Window windowFunction);
 
+	/**
+	 * Calculate the transformation of a streaming audio source, with the same results as
+	 * calculate(int[], ..) for all samples of the source. This default implementation reads
+	 * the whole source into memory, transformations which can work on frame windows override it.
+	 *
+	 * @param source input data (time domain)
+	 * @param step samples per frame
+	 * @param windowFunction windowing function object
+	 * @return
+	 * @throws Exception
+	 */
+	public double[][] calculate(final AudioSource source, final int step, final Window windowFunction) throws Exception {
+		return calculate(source.readAll(), step, windowFunction);
+	}
+
+	/**
+	 * Same as calculate(AudioSource, ..), but returns the data in single precision, which 
+	 * halves the memory needed for the result. Transformations which support single precision 
+	 * override this and write the frames directly, this default implementation converts the 
+	 * double precision results.
+	 *
+	 * @param source input data (time domain)
+	 * @param step samples per frame
+	 * @param windowFunction windowing function object
+	 * @return
+	 * @throws Exception
+	 */
+	public float[][] calculateFloat(final AudioSource source, final int step, final Window windowFunction) throws Exception {
+		double[][] data = calculate(source, step, windowFunction);
+		if (maximum >= 0) maximum = (float)maximum;
+		float[][] ret = new float[data.length][];
+		for(int i=0; i<data.length; i++) {
+			ret[i] = new float[data[i].length];
+			for(int j=0; j<data[i].length; j++) {
+				ret[i][j] = (float)data[i][j];
+			}
+			data[i] = null;
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the maximum magnitude of the last calculation, which has been tracked while the
+	 * frames were calculated. So the results can be normalized without reading them again.
+	 * 
+	 * @return maximum, or a negative value if no calculation has been done yet 
+	 */
+	public double getMaximum() {
+		return maximum;
+	}
+
 	/**
 	 * Return window size of transformation 
 	 * 
@@ -35,6 +117,112 @@ public abstract class ShortTimeTransform {
 	 */
 	public abstract double[] getFrequencies();
 
+	/**
+	 * Sets the number of threads used by calculate(..). The frames are split into
+	 * as many contiguous chunks, the results are identical to the single threaded ones.
+	 * 
+	 * @param numOfThreads values lower than one use all available processors
+	 */
+	public void setNumOfThreads(int numOfThreads) {
+		this.numOfThreads = (numOfThreads < 1) ? Runtime.getRuntime().availableProcessors() : numOfThreads;
+	}
+	
+	/**
+	 * Returns the number of threads used by calculate(..).
+	 * 
+	 * @return
+	 */
+	public int getNumOfThreads() {
+		return numOfThreads;
+	}
+	
+	/**
+	 * Calculates frames [0, frames[ with the given processor, split into contiguous chunks
+	 * for numOfThreads threads. The last serialTail frames depend on the buffer state left
+	 * by their predecessor, so they are appended to the last chunk and calculated in sequence.
+	 * 
+	 * @param frames number of frames
+	 * @param serialTail number of trailing frames which have to be calculated right after their predecessor
+	 * @param processor
+	 * @return maximum of the values written by all chunks
+	 */
+	protected double processFrames(final int frames, final int serialTail, final FrameProcessor processor) {
+		int parallel = frames - serialTail;
+		int n = Math.min(numOfThreads, parallel);
+		if (n <= 1) {
+			return processor.process(0, frames);
+		}
+		Thread[] threads = new Thread[n];
+		final double[] maxima = new double[n];
+		final RuntimeException[] errors = new RuntimeException[n];
+		for(int t=0; t<n; t++) {
+			final int from = (int)((long)parallel * t / n);
+			final int to = (t == n-1) ? frames : (int)((long)parallel * (t+1) / n);
+			final int index = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						maxima[index] = processor.process(from, to);
+					} catch (RuntimeException e) {
+						errors[index] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		try {
+			for(int t=0; t<n; t++) {
+				threads[t].join();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while calculating transformation", e);
+		}
+		double ret = 0;
+		for(int t=0; t<n; t++) {
+			if (errors[t] != null) throw errors[t];
+			if (maxima[t] > ret) ret = maxima[t];
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the maximum of frames [from, to[ of a data matrix, or zero if all values are lower.
+	 * 
+	 * @param data
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	protected static double getMaximum(final double[][] data, final int from, final int to) {
+		double ret = 0;
+		for(int i=from; i<to; i++) {
+			double[] d = data[i];
+			for(int j=0; j<d.length; j++) {
+				if (d[j] > ret) ret = d[j];
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the maximum of frames [from, to[ of a single precision data matrix, or zero if all values are lower.
+	 * 
+	 * @param data
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	protected static double getMaximum(final float[][] data, final int from, final int to) {
+		float ret = 0;
+		for(int i=from; i<to; i++) {
+			float[] d = data[i];
+			for(int j=0; j<d.length; j++) {
+				if (d[j] > ret) ret = d[j];
+			}
+		}
+		return ret;
+	}
+
 	/**
 	 * Adds zeroes at the beginning of in.
 	 * 
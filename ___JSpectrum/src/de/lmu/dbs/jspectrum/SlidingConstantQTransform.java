@@ -0,0 +1,493 @@
+package de.lmu.dbs.jspectrum;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.lmu.dbs.jspectrum.util.AudioSource;
+import de.lmu.dbs.jspectrum.util.Window;
+
+/**
+ * Sliding Constant Q Transform: Each bin is a sliding DFT at its center frequency, which is updated
+ * incrementally from frame to frame instead of transforming the whole window again. The Hann window
+ * of the CQT kernels is applied in the frequency domain, as a combination of the DFTs at the bin
+ * frequency and its two neighbours. So the cost per frame and bin is proportional to the step, not to
+ * the window length, which pays off for small steps.
+ * <br><br>
+ * The transform works on input streams: Samples can be added in chunks by push(..), which returns
+ * all frames completed so far (see start(int) and flush()). calculate(..) processes a whole sample
+ * array this way.
+ * <br><br>
+ * The bins have the same frequencies, Hann window lengths and cut by the FFT length as in
+ * ConstantQTransform, but the kernels are not sparsified, and the window function of the short time
+ * transform is not applied. This mainly affects the lowest bins (which are cut by the window function
+ * in ShortTimeConstantQTransform), so training data and forests should not be mixed between both.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class SlidingConstantQTransform extends ShortTimeTransform {
+
+	/**
+	 * The sums of a bin are recalculated from scratch after sliding over this many times its span,
+	 * to keep rounding errors from accumulating in long streams
+	 */
+	public static final int RESET_SPANS = 16;
+
+	/**
+	 * Number of samples read from an audio source at once by calculate(AudioSource, ..)
+	 */
+	public static final int READ_BLOCK = 65536;
+
+	/**
+	 * Number of frequency bands
+	 */
+	private int bins;
+
+	/**
+	 * Frequencies of the bands
+	 */
+	private double[] freqs;
+
+	/**
+	 * Angular frequency (radians per sample) of each bin
+	 */
+	private double[] omega;
+
+	/**
+	 * Phasor rotation per sample e^(-j w) of the three DFTs per bin (real, imaginary)
+	 */
+	private double[][] rotations;
+
+	/**
+	 * Hann window length of each bin in samples
+	 */
+	private double[] len;
+
+	/**
+	 * Half span of each bin: Frame f of bin k sums up the samples [f*step - half[k], f*step + half[k] - 1]
+	 */
+	private int[] half;
+
+	/**
+	 * Maximum half span
+	 */
+	private int maxHalf;
+
+	/**
+	 * FFT length of the equivalent ConstantQTransform
+	 */
+	private int windowSize;
+
+	/**
+	 * Step of the current stream
+	 */
+	private int step;
+
+	/**
+	 * Sample history of the current stream, holding the samples [historyStart, historyStart + historyLength[.
+	 * Samples before the stream start are zero.
+	 */
+	private double[] history;
+
+	/**
+	 * Absolute index of history[0]
+	 */
+	private long historyStart;
+
+	/**
+	 * Number of valid samples in history
+	 */
+	private int historyLength;
+
+	/**
+	 * Number of samples pushed to the current stream
+	 */
+	private long numOfSamples;
+
+	/**
+	 * Next frame to calculate, per bin
+	 */
+	private long[] nextFrame;
+
+	/**
+	 * Frame of the last recalculation from scratch, per bin
+	 */
+	private long[] lastReset;
+
+	/**
+	 * Sliding DFT sums per bin: [bin][term], terms are real and imaginary parts of the DFTs at
+	 * omega - delta, omega and omega + delta
+	 */
+	private double[][] sums;
+
+	/**
+	 * Phasors e^(-j w m) of the three DFTs per bin at the next sample to be added, i.e. m = end of span + 1
+	 */
+	private double[][] addPhasors;
+
+	/**
+	 * Phasors e^(-j w m) of the three DFTs per bin at the next sample to be removed, i.e. m = begin of span
+	 */
+	private double[][] removePhasors;
+
+	/**
+	 * Frequency domain window phase factor e^(j phi) per bin (real, imaginary), and its rotation per frame
+	 */
+	private double[][] windowPhasors;
+
+	/**
+	 * Frames calculated by some but not all bins yet, beginning with frame firstPending
+	 */
+	private List<double[]> pending = new ArrayList<double[]>();
+
+	/**
+	 * Index of the first pending frame
+	 */
+	private long firstPending;
+
+	/**
+	 * Create sliding CQT instance.
+	 *
+	 * @param sampleRate audio sample rate
+	 * @param fmin minimum frequency
+	 * @param fmax maximum frequency
+	 * @param binsPerOctave bands per octave to examine
+	 * @param spread
+	 * @param divideFFT divide FFT window, this cuts the kernels of the low bins like in ConstantQTransform
+	 * @throws Exception
+	 */
+	public SlidingConstantQTransform(final double sampleRate, final double fmin, final double fmax, final double binsPerOctave, final double spread, final double divideFFT) throws Exception {
+		if (fmin <= 0 || fmax <= fmin) throw new Exception("Invalid frequency range: " + fmin + " to " + fmax);
+		double q = 1.0 / (Math.pow(2, 1.0 / binsPerOctave) - 1.0) / spread;
+		bins = (int) Math.ceil(binsPerOctave * Math.log(fmax / fmin) / Math.log(2));
+		double calc_fftlen = Math.ceil(q * sampleRate / fmin);
+		windowSize = (int)(Math.pow(2, Math.ceil(Math.log(calc_fftlen) / Math.log(2)))/divideFFT);
+		freqs = new double[bins];
+		omega = new double[bins];
+		len = new double[bins];
+		half = new int[bins];
+		maxHalf = 0;
+		for(int i=0; i<bins; i++) {
+			freqs[i] = fmin * Math.pow(2, i / binsPerOctave);
+			omega[i] = 2.0 * Math.PI * freqs[i] / sampleRate;
+			len[i] = q * sampleRate / freqs[i];
+			// Kernel samples j + 0.5 from the center with (j + 0.5) / len < 0.5, cut at half the FFT length
+			half[i] = Math.min((int)Math.ceil(len[i] / 2 - 0.5), windowSize / 2);
+			if (half[i] > maxHalf) maxHalf = half[i];
+		}
+		rotations = new double[bins][];
+		for(int i=0; i<bins; i++) {
+			rotations[i] = new double[6];
+			setPhasors(i, 1, rotations[i]);
+		}
+	}
+
+	/**
+	 * Starts a new input stream. The first frame is centered at the first sample.
+	 *
+	 * @param step samples per frame
+	 * @throws Exception
+	 */
+	public void start(int step) throws Exception {
+		if (step < 1) throw new Exception("Step has to be at least 1: " + step);
+		this.step = step;
+		history = new double[2 * maxHalf + step + 4096];
+		historyStart = -maxHalf;
+		historyLength = maxHalf;
+		numOfSamples = 0;
+		nextFrame = new long[bins];
+		lastReset = new long[bins];
+		sums = new double[bins][6];
+		addPhasors = new double[bins][6];
+		removePhasors = new double[bins][6];
+		windowPhasors = new double[bins][4];
+		for(int k=0; k<bins; k++) {
+			windowPhasors[k][2] = Math.cos(2.0 * Math.PI * step / len[k]);
+			windowPhasors[k][3] = -Math.sin(2.0 * Math.PI * step / len[k]);
+		}
+		pending.clear();
+		firstPending = 0;
+		maximum = 0;
+	}
+
+	/**
+	 * Adds samples to the current stream and returns the frames which have been completed by them.
+	 *
+	 * @param samples
+	 * @param offset index of the first sample to add
+	 * @param length number of samples to add
+	 * @return completed frames (shape: [frame][number of frequency bins]), may be empty
+	 * @throws Exception
+	 */
+	public double[][] push(final int[] samples, final int offset, final int length) throws Exception {
+		if (history == null) throw new Exception("Stream not started");
+		ensureCapacity(length);
+		for(int i=0; i<length; i++) {
+			history[historyLength++] = samples[offset + i];
+		}
+		numOfSamples+= length;
+		process(Long.MAX_VALUE);
+		return collect(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Ends the current stream: Assumes zeroes after the last sample and returns the remaining frames.
+	 * The stream has floor(samples / step) frames in total, like ShortTimeConstantQTransform.
+	 *
+	 * @return
+	 * @throws Exception
+	 */
+	public double[][] flush() throws Exception {
+		if (history == null) throw new Exception("Stream not started");
+		long frames = numOfSamples / step;
+		ensureCapacity(maxHalf);
+		for(int i=0; i<maxHalf; i++) {
+			history[historyLength++] = 0;
+		}
+		process(frames);
+		double[][] ret = collect(frames);
+		history = null;
+		return ret;
+	}
+
+	/**
+	 * Internal: Calculates all frames of all bins which are covered by the history, up to frame limit (exclusive).
+	 * The bins are processed by numOfThreads threads.
+	 *
+	 * @param limit
+	 */
+	private void process(final long limit) {
+		final long last = historyStart + historyLength - 1;
+		// Allocate the rows of all frames which will be touched
+		long maxFrame = Math.min(limit - 1, Math.floorDiv(last - half[bins-1] + 1, (long)step));
+		while(firstPending + pending.size() <= maxFrame) {
+			pending.add(new double[bins]);
+		}
+		double max = processFrames(bins, 0, new FrameProcessor() {
+			public double process(int from, int to) {
+				double max = 0;
+				for(int k=from; k<to; k++) {
+					while(nextFrame[k] < limit && nextFrame[k] * step + half[k] - 1 <= last) {
+						double v = calculateFrame(k, nextFrame[k]);
+						if (v > max) max = v;
+						nextFrame[k]++;
+					}
+				}
+				return max;
+			}
+		});
+		if (max > maximum) maximum = max;
+	}
+
+	/**
+	 * Internal: Updates the sums of a bin from the previous frame to frame f, and writes its magnitude.
+	 * The phasors are rotated along; they are only calculated directly when the sums are reset.
+	 *
+	 * @param k bin
+	 * @param f frame
+	 * @return magnitude
+	 */
+	private double calculateFrame(int k, long f) {
+		double[] s = sums[k];
+		double[] wp = windowPhasors[k];
+		long c = f * step;
+		long beg = c - half[k];
+		long end = c + half[k] - 1;
+		long prevEnd = end - step;
+		if (f == 0 || beg > prevEnd || (f - lastReset[k]) * step > RESET_SPANS * 2L * half[k]) {
+			for(int t=0; t<6; t++) {
+				s[t] = 0;
+			}
+			setPhasors(k, beg, addPhasors[k]);
+			setPhasors(k, beg, removePhasors[k]);
+			accumulate(k, beg, end, 1, addPhasors[k]);
+			double phi = 2.0 * Math.PI * ((0.5 - c) % len[k]) / len[k];
+			wp[0] = Math.cos(phi);
+			wp[1] = Math.sin(phi);
+			lastReset[k] = f;
+		} else {
+			accumulate(k, beg - step, beg - 1, -1, removePhasors[k]);
+			accumulate(k, prevEnd + 1, end, 1, addPhasors[k]);
+			double t = wp[0] * wp[2] - wp[1] * wp[3];
+			wp[1] = wp[0] * wp[3] + wp[1] * wp[2];
+			wp[0] = t;
+		}
+		// Hann window in frequency domain: X = 0.5 A(w) + 0.25 e^(j phi) A(w - d) + 0.25 e^(-j phi) A(w + d)
+		double cr = wp[0];
+		double ci = wp[1];
+		double xr = 0.5 * s[2] + 0.25 * (cr * s[0] - ci * s[1]) + 0.25 * (cr * s[4] + ci * s[5]);
+		double xi = 0.5 * s[3] + 0.25 * (cr * s[1] + ci * s[0]) + 0.25 * (cr * s[5] - ci * s[4]);
+		double ret = Math.sqrt(xr * xr + xi * xi) / len[k];
+		pending.get((int)(f - firstPending))[k] = ret;
+		return ret;
+	}
+
+	/**
+	 * Internal: Sets the phasors e^(-j w m) of the three DFTs of a bin at sample m.
+	 *
+	 * @param k bin
+	 * @param m
+	 * @param p
+	 */
+	private void setPhasors(int k, long m, double[] p) {
+		double d = 2.0 * Math.PI / len[k];
+		p[0] = Math.cos((omega[k] - d) * m);
+		p[1] = -Math.sin((omega[k] - d) * m);
+		p[2] = Math.cos(omega[k] * m);
+		p[3] = -Math.sin(omega[k] * m);
+		p[4] = Math.cos((omega[k] + d) * m);
+		p[5] = -Math.sin((omega[k] + d) * m);
+	}
+
+	/**
+	 * Internal: Adds (sign 1) or removes (sign -1) the samples [from, to] to the sums of a bin. The DFTs
+	 * are referenced to absolute sample indices, so the sums do not need to be rotated when sliding.
+	 *
+	 * @param k bin
+	 * @param from
+	 * @param to
+	 * @param sign
+	 * @param p phasors at sample from, rotated to sample to + 1
+	 */
+	private void accumulate(int k, long from, long to, double sign, double[] p) {
+		if (to < from) return;
+		double[] s = sums[k];
+		double[] r = rotations[k];
+		double p0r = p[0], p0i = p[1], p1r = p[2], p1i = p[3], p2r = p[4], p2i = p[5];
+		double r0r = r[0], r0i = r[1], r1r = r[2], r1i = r[3], r2r = r[4], r2i = r[5];
+		double s0r = 0, s0i = 0, s1r = 0, s1i = 0, s2r = 0, s2i = 0;
+		double x, t;
+		int i = (int)(from - historyStart);
+		int e = (int)(to - historyStart);
+		for(; i<=e; i++) {
+			x = history[i];
+			s0r+= x * p0r; s0i+= x * p0i;
+			s1r+= x * p1r; s1i+= x * p1i;
+			s2r+= x * p2r; s2i+= x * p2i;
+			t = p0r * r0r - p0i * r0i; p0i = p0r * r0i + p0i * r0r; p0r = t;
+			t = p1r * r1r - p1i * r1i; p1i = p1r * r1i + p1i * r1r; p1r = t;
+			t = p2r * r2r - p2i * r2i; p2i = p2r * r2i + p2i * r2r; p2r = t;
+		}
+		p[0] = p0r; p[1] = p0i; p[2] = p1r; p[3] = p1i; p[4] = p2r; p[5] = p2i;
+		s[0]+= sign * s0r; s[1]+= sign * s0i;
+		s[2]+= sign * s1r; s[3]+= sign * s1i;
+		s[4]+= sign * s2r; s[5]+= sign * s2i;
+	}
+
+	/**
+	 * Internal: Removes and returns the pending frames which are complete in all bins, up to frame limit (exclusive).
+	 * Drops the samples from history which are not needed anymore.
+	 *
+	 * @param limit
+	 * @return
+	 */
+	private double[][] collect(long limit) {
+		long done = limit;
+		for(int k=0; k<bins; k++) {
+			if (nextFrame[k] < done) done = nextFrame[k];
+		}
+		int num = (int)Math.max(0, Math.min(done - firstPending, pending.size()));
+		double[][] ret = new double[num][];
+		for(int i=0; i<num; i++) {
+			ret[i] = pending.get(i);
+		}
+		pending.subList(0, num).clear();
+		firstPending+= num;
+		// The next update of bin k removes the samples from (nextFrame[k] - 1) * step - half[k] on
+		long needed = Long.MAX_VALUE;
+		for(int k=0; k<bins; k++) {
+			long n = (nextFrame[k] - 1) * step - half[k];
+			if (n < needed) needed = n;
+		}
+		int drop = (int)Math.max(0, Math.min(needed - historyStart, historyLength));
+		if (drop > 0) {
+			System.arraycopy(history, drop, history, 0, historyLength - drop);
+			historyStart+= drop;
+			historyLength-= drop;
+		}
+		return ret;
+	}
+
+	/**
+	 * Internal: Grows the history to take more samples.
+	 *
+	 * @param more
+	 */
+	private void ensureCapacity(int more) {
+		if (historyLength + more <= history.length) return;
+		double[] h = new double[Math.max(2 * history.length, historyLength + more)];
+		System.arraycopy(history, 0, h, 0, historyLength);
+		history = h;
+	}
+
+	/**
+	 * Returns a matrix containing cqt data of the given audio sample, calculated as one stream.
+	 * The bins are calculated by numOfThreads threads, see setNumOfThreads(int).
+	 *
+	 * @param samples audio samples
+	 * @param step the amount of samples of one analysis step
+	 * @param windowFunction not used, the Hann windows of the bins are applied in frequency domain
+	 * @return data matrix (shape: [frame][number of frequency bins, filled with magnitude values])
+	 */
+	@Override
+	public double[][] calculate(final int[] samples, final int step, final Window windowFunction) {
+		try {
+			start(step);
+			double[][] a = push(samples, 0, samples.length);
+			double[][] b = flush();
+			double[][] ret = new double[a.length + b.length][];
+			System.arraycopy(a, 0, ret, 0, a.length);
+			System.arraycopy(b, 0, ret, a.length, b.length);
+			return ret;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns a matrix containing cqt data of a streaming audio source, calculated as one stream
+	 * by pushing blocks of READ_BLOCK samples.
+	 *
+	 * @param source audio source
+	 * @param step the amount of samples of one analysis step
+	 * @param windowFunction not used, the Hann windows of the bins are applied in frequency domain
+	 * @return data matrix (shape: [frame][number of frequency bins, filled with magnitude values])
+	 * @throws Exception
+	 */
+	@Override
+	public double[][] calculate(final AudioSource source, final int step, final Window windowFunction) throws Exception {
+		List<double[]> ret = new ArrayList<double[]>();
+		int[] block = new int[READ_BLOCK];
+		start(step);
+		source.setPosition(0);
+		int num;
+		while((num = source.read(block, 0, READ_BLOCK)) > 0) {
+			double[][] frames = push(block, 0, num);
+			for(int i=0; i<frames.length; i++) ret.add(frames[i]);
+		}
+		double[][] frames = flush();
+		for(int i=0; i<frames.length; i++) ret.add(frames[i]);
+		return ret.toArray(new double[ret.size()][]);
+	}
+
+	/**
+	 * Returns the frequencies in hertz, corresponding to the second level of the
+	 * data matrix returned by calculate(..).
+	 *
+	 * @return
+	 */
+	@Override
+	public double[] getFrequencies() {
+		return freqs;
+	}
+
+	/**
+	 * Returns the FFT length of the equivalent ConstantQTransform. The longest bin spans this many samples.
+	 *
+	 * @return
+	 */
+	@Override
+	public int getWindowSize() {
+		return windowSize;
+	}
+}
@@ -0,0 +1,322 @@
+package de.lmu.dbs.jspectrum;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import de.lmu.dbs.jspectrum.util.Scale;
+
+/**
+ * On-disk cache of quantized (byte) spectra. The entries are addressed by the MD5 hash of the
+ * audio file content together with all parameters which influence the spectrum (transformation
+ * parameters, scale and ceiling), so renamed or copied files are found again and changed files or
+ * parameters never hit stale entries.
+ * <br><br>
+ * The total size of the cache folder is bounded: After saving an entry, the least recently used
+ * entries are deleted until the size is below the limit. Loading an entry marks it as used by
+ * updating its modification time. Entries are written under a temporary name and renamed
+ * afterwards, so concurrent processes never read incomplete files.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class SpectrumCache {
+
+	/**
+	 * File name prefix of the cache entries
+	 */
+	public static final String FILE_PREFIX = "spectrum_";
+
+	/**
+	 * File name suffix of the cache entries
+	 */
+	public static final String FILE_SUFFIX = ".spectrum";
+
+	/**
+	 * First int of each entry file
+	 */
+	private static final int MAGIC = 0x53504543;
+
+	/**
+	 * Format version of the entry files, also part of the keys
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Cached spectrum, together with the bin frequencies.
+	 *
+	 * @author Thomas Weber
+	 *
+	 */
+	public static class Spectrum {
+
+		/**
+		 * Frequencies of the bins
+		 */
+		public double[] frequencies;
+
+		/**
+		 * Quantized spectral data [frame][bin]
+		 */
+		public byte[][] data;
+
+		/**
+		 *
+		 * @param frequencies
+		 * @param data
+		 */
+		public Spectrum(double[] frequencies, byte[][] data) {
+			this.frequencies = frequencies;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Cache folder
+	 */
+	private File folder;
+
+	/**
+	 * Maximum total size of the entries in bytes
+	 */
+	private long maxSize;
+
+	/**
+	 * Creates a cache instance. The folder is created if it does not exist.
+	 *
+	 * @param folder
+	 * @param maxSize maximum total size of the entries in bytes
+	 * @throws Exception
+	 */
+	public SpectrumCache(String folder, long maxSize) throws Exception {
+		if (maxSize <= 0) throw new Exception("Invalid spectrum cache size: " + maxSize);
+		this.folder = new File(folder);
+		this.maxSize = maxSize;
+		if (!this.folder.exists()) this.folder.mkdirs();
+		if (!this.folder.isDirectory()) throw new Exception("Spectrum cache location is no folder: " + folder);
+	}
+
+	/**
+	 * Returns the cache key of the spectrum of an audio file. The file content is hashed completely.
+	 *
+	 * @param audioFile
+	 * @param params
+	 * @param scale scale applied before quantization, or null
+	 * @param ceil maximum byte value of the quantization
+	 * @return
+	 * @throws Exception
+	 */
+	public String getKey(File audioFile, TransformParameters params, Scale scale, double ceil) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		update(md, audioFile);
+		String p = "v" + VERSION
+				+ ";" + getParameterString(params)
+				+ ";scale=" + scale
+				+ ";ceil=" + ceil;
+		md.update(p.getBytes("UTF-8"));
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Returns a string containing all transformation parameters which influence the spectrum.
+	 *
+	 * @param params
+	 * @return
+	 */
+	public static String getParameterString(TransformParameters params) {
+		return "binsPerOctave=" + params.binsPerOctave
+				+ ";fMin=" + params.fMin
+				+ ";fMax=" + params.fMax
+				+ ";step=" + params.step
+				+ ";threshold=" + params.threshold
+				+ ";spread=" + params.spread
+				+ ";divideFFT=" + params.divideFFT
+				+ ";multirate=" + params.multirate
+				+ ";sliding=" + params.sliding
+				+ ";resampleRate=" + params.resampleRate
+				+ ";floatPrecision=" + params.floatPrecision;
+	}
+
+	/**
+	 * Updates a digest with the complete content of a file, which is memory mapped for reading.
+	 *
+	 * @param md
+	 * @param file
+	 * @throws Exception
+	 */
+	public static void update(MessageDigest md, File file) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			long size = fc.size();
+			for(long pos=0; pos<size; pos+=Integer.MAX_VALUE) {
+				MappedByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(Integer.MAX_VALUE, size - pos));
+				md.update(b);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Loads a cached spectrum and marks it as used. Returns null if there is no entry for the key.
+	 * Entries which cannot be read (truncated or corrupt files, or files evicted by another process
+	 * while reading) are also treated as missing, and are deleted.
+	 *
+	 * @param key
+	 * @return
+	 * @throws Exception
+	 */
+	public Spectrum load(String key) throws Exception {
+		File file = getFile(key);
+		if (!file.exists()) return null;
+		Spectrum ret;
+		try {
+			FileInputStream fin = new FileInputStream(file);
+			try {
+				ret = read(new DataInputStream(new BufferedInputStream(fin)), fin.getChannel().size());
+			} finally {
+				fin.close();
+			}
+		} catch (FileNotFoundException e) {
+			return null; // Evicted in between
+		} catch (Exception e) {
+			file.delete();
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		return ret;
+	}
+
+	/**
+	 * Internal: Reads an entry. The sizes in the header are checked against the file length 
+	 * before allocating the arrays.
+	 *
+	 * @param in
+	 * @param length file length in bytes
+	 * @return
+	 * @throws Exception if the entry is invalid or truncated
+	 */
+	private Spectrum read(DataInputStream in, long length) throws Exception {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new Exception("Invalid spectrum cache file");
+		int n = in.readInt();
+		long header = 4 * 3 + 8 * (long)n + 4 * 2;
+		if (n < 0 || header > length) throw new Exception("Truncated spectrum cache file");
+		double[] freqs = new double[n];
+		for(int i=0; i<freqs.length; i++) {
+			freqs[i] = in.readDouble();
+		}
+		int frames = in.readInt();
+		int bins = in.readInt();
+		if (frames < 0 || bins < 0 || header + (long)frames * bins != length) throw new Exception("Truncated spectrum cache file");
+		byte[][] data = new byte[frames][bins];
+		for(int i=0; i<frames; i++) {
+			in.readFully(data[i]);
+		}
+		return new Spectrum(freqs, data);
+	}
+
+	/**
+	 * Saves a spectrum and evicts the least recently used entries if the cache is too large.
+	 *
+	 * @param key
+	 * @param frequencies
+	 * @param data
+	 * @throws Exception
+	 */
+	public void save(String key, double[] frequencies, byte[][] data) throws Exception {
+		File file = getFile(key);
+		File tmp = new File(file.getAbsolutePath() + "." + System.nanoTime() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(frequencies.length);
+			for(int i=0; i<frequencies.length; i++) {
+				out.writeDouble(frequencies[i]);
+			}
+			out.writeInt(data.length);
+			out.writeInt((data.length > 0) ? data[0].length : 0);
+			for(int i=0; i<data.length; i++) {
+				out.write(data[i]);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new Exception("Could not write spectrum cache file: " + file.getAbsolutePath());
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * Deletes the least recently used entries until the total size is below maxSize.
+	 */
+	public synchronized void evict() {
+		File[] all = folder.listFiles();
+		if (all == null) return;
+		final List<File> files = new ArrayList<File>();
+		final List<Long> used = new ArrayList<Long>();
+		long size = 0;
+		for(int i=0; i<all.length; i++) {
+			if (!all[i].getName().startsWith(FILE_PREFIX) || !all[i].getName().endsWith(FILE_SUFFIX)) continue;
+			files.add(all[i]);
+			used.add(all[i].lastModified());
+			size+= all[i].length();
+		}
+		if (size <= maxSize) return;
+		Integer[] order = new Integer[files.size()];
+		for(int i=0; i<order.length; i++) order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return used.get(a).compareTo(used.get(b));
+			}
+		});
+		for(int i=0; i<order.length && size > maxSize; i++) {
+			File f = files.get(order[i]);
+			long len = f.length();
+			if (f.delete()) size-= len;
+		}
+	}
+
+	/**
+	 * Returns the entry file of a key.
+	 *
+	 * @param key
+	 * @return
+	 */
+	private File getFile(String key) {
+		return new File(folder, FILE_PREFIX + key + FILE_SUFFIX);
+	}
+
+	/**
+	 * Returns the hex representation of a hash.
+	 *
+	 * @param h
+	 * @return
+	 */
+	public static String toHex(byte[] h) {
+		StringBuilder s = new StringBuilder();
+		for(int i=0; i<h.length; i++) {
+			s.append(String.format("%02x", h[i]));
+		}
+		return s.toString();
+	}
+}
@@ -1,10 +1,14 @@
 package de.lmu.dbs.jspectrum;
 
+import java.io.File;
 import java.io.Serializable;
 
 import org.jdom2.Element;
 
+import de.lmu.dbs.jspectrum.util.AudioSource;
 import de.lmu.dbs.jspectrum.util.ParamLoader;
+import de.lmu.dbs.jspectrum.util.ResampledSource;
+import de.lmu.dbs.jspectrum.util.WaveSource;
 
 /**
  * Transformation parameters, mainly for CQT.
@@ -18,6 +22,11 @@ public class TransformParameters extends ParamLoader implements Serializable {
 	 * 
 	 */
 	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Default maximum size of the spectrum cache in megabytes
+	 */
+	public static final double DEFAULT_SPECTRUM_CACHE_SIZE = 1024;
 
 	/**
 	 * This is just an array holding the frequencies corresponding to the spectral data bins
@@ -64,6 +73,44 @@ public class TransformParameters extends ParamLoader implements Serializable {
 	 */
 	public String cqtKernelBufferLocation = null;
 	
+	/**
+	 * Use the multirate (octave by octave) CQT instead of the single FFT one. The spectra are 
+	 * compatible within a tolerance, see ShortTimeMultirateConstantQTransform.
+	 */
+	public boolean multirate = false;
+	
+	/**
+	 * Use the sliding (incremental) CQT instead of the single FFT one, see SlidingConstantQTransform.
+	 * Faster for small steps, but the spectra differ in the low bins.
+	 */
+	public boolean sliding = false;
+	
+	/**
+	 * If greater than zero, audio files are resampled to this sample rate before the transformation,
+	 * see ResampledSource. Zero keeps the sample rate of the files.
+	 */
+	public double resampleRate = 0;
+	
+	/**
+	 * Calculate the spectral data in single precision: The CQT kernels are multiplied in float,
+	 * and the spectra are kept as float[][] until they are quantized to bytes. The magnitudes deviate 
+	 * by less than 1e-6 of the maximum, so after quantization to bytes only a few values per million 
+	 * differ, by one step.
+	 */
+	public boolean floatPrecision = false;
+	
+	/**
+	 * Folder of the spectrum cache, see SpectrumCache. Null disables the cache. This is a 
+	 * machine local setting, so it is not serialized with the data and forest meta files.
+	 */
+	public transient String spectrumCacheLocation = null;
+	
+	/**
+	 * Maximum size of the spectrum cache in megabytes. Not serialized, values 
+	 * below or equal to zero use DEFAULT_SPECTRUM_CACHE_SIZE.
+	 */
+	public transient double spectrumCacheSize = DEFAULT_SPECTRUM_CACHE_SIZE;
+	
 	/**
 	 * Calculates the number of frequency bins per half tone in CQT.
 	 * Result will be rounded up.
@@ -91,6 +138,8 @@ public class TransformParameters extends ParamLoader implements Serializable {
 		if (spread < 0) throw new Exception("CQT transformation spread is too low: " + spread);
 		if (divideFFT <= 0) throw new Exception("CQT divideFFT parameter has to be greater than zero: " + divideFFT);
 		if (cqtKernelBufferLocation == null) throw new Exception("No cqt kernel buffer folder is set");
+		if (multirate && sliding) throw new Exception("Multirate and sliding CQT cannot be combined");
+		if (resampleRate < 0) throw new Exception("Resample rate must not be negative: " + resampleRate);
 	}
 	
 	/**
@@ -112,6 +161,62 @@ public class TransformParameters extends ParamLoader implements Serializable {
 		spread = Double.parseDouble(transform.getAttributeValue("spread"));
 		divideFFT = Double.parseDouble(transform.getAttributeValue("divideFFT"));
 		cqtKernelBufferLocation = transform.getAttributeValue("cqtKernelBufferLocation");
+		if (transform.getAttributeValue("multirate") != null) multirate = Boolean.parseBoolean(transform.getAttributeValue("multirate"));
+		if (transform.getAttributeValue("sliding") != null) sliding = Boolean.parseBoolean(transform.getAttributeValue("sliding"));
+		if (transform.getAttributeValue("resampleRate") != null) resampleRate = Double.parseDouble(transform.getAttributeValue("resampleRate"));
+		if (transform.getAttributeValue("floatPrecision") != null) floatPrecision = Boolean.parseBoolean(transform.getAttributeValue("floatPrecision"));
+		spectrumCacheLocation = transform.getAttributeValue("spectrumCacheLocation");
+		if (transform.getAttributeValue("spectrumCacheSize") != null) spectrumCacheSize = Double.parseDouble(transform.getAttributeValue("spectrumCacheSize"));
+	}
+	
+	/**
+	 * Creates the spectral transformation for audio of the given sample rate.
+	 * 
+	 * @param sampleRate
+	 * @return
+	 * @throws Exception
+	 */
+	public ShortTimeTransform createTransformation(double sampleRate) throws Exception {
+		if (multirate && sliding) throw new Exception("Multirate and sliding CQT cannot be combined");
+		if (sliding) {
+			return new SlidingConstantQTransform(sampleRate, fMin, fMax, binsPerOctave, spread, divideFFT);
+		}
+		if (multirate) {
+			ShortTimeMultirateConstantQTransform ret = new ShortTimeMultirateConstantQTransform(sampleRate, fMin, fMax, binsPerOctave, threshold, spread, divideFFT, cqtKernelBufferLocation);
+			ret.setFloatPrecision(floatPrecision);
+			return ret;
+		}
+		ShortTimeConstantQTransform ret = new ShortTimeConstantQTransform(sampleRate, fMin, fMax, binsPerOctave, threshold, spread, divideFFT, cqtKernelBufferLocation);
+		ret.setFloatPrecision(floatPrecision);
+		return ret;
+	}
+	
+	/**
+	 * Opens the mono downmix of a WAV file as streaming audio source, resampled to resampleRate
+	 * if that is set and differs from the sample rate of the file.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws Exception
+	 */
+	public AudioSource openAudioSource(File file) throws Exception {
+		AudioSource ret = new WaveSource(file);
+		if (resampleRate > 0 && resampleRate != ret.getSampleRate()) {
+			ret = new ResampledSource(ret, resampleRate);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Returns the spectrum cache, or null if no cache location is set.
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	public SpectrumCache createSpectrumCache() throws Exception {
+		if (spectrumCacheLocation == null) return null;
+		double size = (spectrumCacheSize > 0) ? spectrumCacheSize : DEFAULT_SPECTRUM_CACHE_SIZE;
+		return new SpectrumCache(spectrumCacheLocation, (long)(size * 1024 * 1024));
 	}
 	
 	/**
@@ -130,6 +235,10 @@ public class TransformParameters extends ParamLoader implements Serializable {
 		if (spread != other.spread) return false;
 		if (divideFFT != other.divideFFT) return false;
 		if (divideFFT != other.divideFFT) return false;
+		if (multirate != other.multirate) return false;
+		if (sliding != other.sliding) return false;
+		if (resampleRate != other.resampleRate) return false;
+		if (floatPrecision != other.floatPrecision) return false;
 		if (!ignoreCqtKernelBufferLocation && !cqtKernelBufferLocation.equals(other.divideFFT)) return false;
 		if (frequencies.length != other.frequencies.length) throw new Exception("Corrupt transform parameters file");
 		for (int i=0; i<frequencies.length; i++) {
@@ -153,6 +262,12 @@ public class TransformParameters extends ParamLoader implements Serializable {
 		ret+= "  FFT spread:              " + spread + "\n";
 		ret+= "  divideFFT:               " + divideFFT + "\n";
 		ret+= "  cqtKernelBufferLocation: " + cqtKernelBufferLocation + "\n";
+		ret+= "  multirate:               " + multirate + "\n";
+		ret+= "  sliding:                 " + sliding + "\n";
+		ret+= "  resampleRate:            " + resampleRate + "\n";
+		ret+= "  floatPrecision:          " + floatPrecision + "\n";
+		ret+= "  spectrumCacheLocation:   " + spectrumCacheLocation + "\n";
+		ret+= "  spectrumCacheSize:       " + spectrumCacheSize + "\n";
 		return ret;
 	}
 }
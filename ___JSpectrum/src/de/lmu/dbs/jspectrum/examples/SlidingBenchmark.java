@@ -0,0 +1,100 @@
+package de.lmu.dbs.jspectrum.examples;
+
+import java.io.File;
+
+import de.lmu.dbs.jspectrum.*;
+import de.lmu.dbs.jspectrum.util.*;
+
+/**
+ * Benchmark of the sliding CQT against the FFT based CQT for several steps. Uses the CQT parameters
+ * of transformSettings.xml, and the WAV file given as first argument, or a synthetic signal of
+ * 20 seconds if no argument is given. For each step, the run times of both transformations are
+ * printed, together with the maximum and mean deviation relative to the spectrum maximum.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class SlidingBenchmark {
+
+	/**
+	 * Steps to benchmark
+	 */
+	public static final int[] STEPS = {16, 32, 64, 128, 256, 512};
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		try {
+			TransformParameters params = new TransformParameters();
+			params.loadParameters("transformSettings.xml");
+			if (params.cqtKernelBufferLocation != null) new File(params.cqtKernelBufferLocation).mkdirs();
+
+			double sampleRate = 44100;
+			int[] samples;
+			if (args.length > 0) {
+				Sample src = new WaveSample(new File(args[0]));
+				sampleRate = src.getSampleRate();
+				samples = src.getMono();
+			} else {
+				samples = getSyntheticSignal(sampleRate, 20);
+			}
+			System.out.println("Samples: " + samples.length + ", sample rate: " + sampleRate);
+
+			ShortTimeConstantQTransform cqt = new ShortTimeConstantQTransform(sampleRate, params.fMin, params.fMax, params.binsPerOctave, params.threshold, params.spread, params.divideFFT, params.cqtKernelBufferLocation);
+			SlidingConstantQTransform sliding = new SlidingConstantQTransform(sampleRate, params.fMin, params.fMax, params.binsPerOctave, params.spread, params.divideFFT);
+			Window window = new HammingWindow(cqt.getWindowSize());
+
+			for(int i=0; i<STEPS.length; i++) {
+				int step = STEPS[i];
+				long t0 = System.nanoTime();
+				double[][] a = cqt.calculate(samples, step, window);
+				long t1 = System.nanoTime();
+				double[][] b = sliding.calculate(samples, step, window);
+				long t2 = System.nanoTime();
+				double max = 0;
+				for(int x=0; x<a.length; x++) {
+					for(int y=0; y<a[x].length; y++) {
+						if (a[x][y] > max) max = a[x][y];
+					}
+				}
+				double maxDev = 0;
+				double meanDev = 0;
+				for(int x=0; x<a.length; x++) {
+					for(int y=0; y<a[x].length; y++) {
+						double d = Math.abs(a[x][y] - b[x][y]) / max;
+						if (d > maxDev) maxDev = d;
+						meanDev+= d;
+					}
+				}
+				meanDev/= (double)a.length * a[0].length;
+				System.out.println("Step " + step + ": FFT " + (t1-t0)/1000000 + "ms, sliding " + (t2-t1)/1000000 + "ms, max deviation " + maxDev + ", mean deviation " + meanDev);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Returns a test signal of some sine tones with slowly varying amplitudes, plus noise.
+	 *
+	 * @param sampleRate
+	 * @param seconds
+	 * @return
+	 */
+	private static int[] getSyntheticSignal(double sampleRate, int seconds) {
+		double[] freqs = {82.4, 110, 130.8, 196, 261.6, 440, 523.3, 880, 1318.5, 2093, 3520, 5274, 8372};
+		java.util.Random r = new java.util.Random(1);
+		int[] ret = new int[(int)(sampleRate * seconds)];
+		for(int i=0; i<ret.length; i++) {
+			double v = 0;
+			for(int k=0; k<freqs.length; k++) {
+				double env = Math.max(0, Math.sin(2 * Math.PI * i / (sampleRate * (0.7 + 0.13 * k))));
+				v+= 1500 * env * Math.sin(2 * Math.PI * freqs[k] * i / sampleRate);
+			}
+			ret[i] = (int)(v + r.nextGaussian() * 300);
+		}
+		return ret;
+	}
+}
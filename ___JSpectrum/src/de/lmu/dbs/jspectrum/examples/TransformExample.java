@@ -93,7 +93,7 @@ public class TransformExample {
 			if (mode == Transformations.FFT) {
 				transformation = new ShortTimeFFTransform((double)src.getSampleRate(), fftlen, zoomOutput);	
 			} else {
-				transformation = new ShortTimeConstantQTransform((double)src.getSampleRate(), params.fMin, params.fMax, params.binsPerOctave, params.threshold, params.spread, params.divideFFT, params.cqtKernelBufferLocation);
+				transformation = params.createTransformation((double)src.getSampleRate());
 			}
 			
 			m.measure("Initialized transformation");
@@ -0,0 +1,105 @@
+package de.lmu.dbs.jspectrum.util;
+
+/**
+ * Base class for streaming audio sources which deliver one channel of samples in blocks on demand,
+ * instead of holding the whole signal in memory like Sample does.
+ * <br><br>
+ * Samples can be read sequentially by read(int[], int, int), or at absolute positions by
+ * read(long, int[], int, int). Positional reads do not change the sequential read position and
+ * can be called by multiple threads concurrently.
+ *
+ * @author Thomas Weber
+ *
+ */
+public abstract class AudioSource {
+
+	/**
+	 * Current position of sequential reads
+	 */
+	protected long position = 0;
+
+	/**
+	 * Returns the sample rate of the delivered samples.
+	 *
+	 * @return
+	 */
+	public abstract double getSampleRate();
+
+	/**
+	 * Returns the number of samples of the source.
+	 *
+	 * @return
+	 */
+	public abstract long getLength();
+
+	/**
+	 * Reads samples starting at an absolute position. Samples before the beginning or after
+	 * the end of the source are returned as zeroes, so any window can be read.
+	 *
+	 * @param start position of the first sample, may be negative
+	 * @param buffer
+	 * @param offset index in buffer of the first sample
+	 * @param length number of samples to read
+	 * @throws Exception
+	 */
+	public abstract void read(long start, int[] buffer, int offset, int length) throws Exception;
+
+	/**
+	 * Releases all resources. The default implementation does nothing.
+	 *
+	 * @throws Exception
+	 */
+	public void close() throws Exception {
+	}
+
+	/**
+	 * Reads the next samples and advances the read position.
+	 *
+	 * @param buffer
+	 * @param offset index in buffer of the first sample
+	 * @param length maximum number of samples to read
+	 * @return number of samples read, 0 at the end of the source
+	 * @throws Exception
+	 */
+	public int read(int[] buffer, int offset, int length) throws Exception {
+		int num = (int)Math.max(0, Math.min(length, getLength() - position));
+		if (num == 0) return 0;
+		read(position, buffer, offset, num);
+		position+= num;
+		return num;
+	}
+
+	/**
+	 * Sets the position of the next sequential read.
+	 *
+	 * @param position
+	 * @throws Exception
+	 */
+	public void setPosition(long position) throws Exception {
+		if (position < 0 || position > getLength()) throw new Exception("Position out of range: " + position);
+		this.position = position;
+	}
+
+	/**
+	 * Returns the position of the next sequential read.
+	 *
+	 * @return
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Reads all samples of the source into one array. Only use this for transformations
+	 * which need the whole signal at once.
+	 *
+	 * @return
+	 * @throws Exception
+	 */
+	public int[] readAll() throws Exception {
+		if (getLength() > Integer.MAX_VALUE) throw new Exception("Source too long to be read into one array: " + getLength() + " samples");
+		int[] ret = new int[(int)getLength()];
+		read(0, ret, 0, ret.length);
+		return ret;
+	}
+}
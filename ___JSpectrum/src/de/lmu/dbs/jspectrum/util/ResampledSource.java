@@ -0,0 +1,170 @@
+package de.lmu.dbs.jspectrum.util;
+
+/**
+ * Audio source which resamples another source to a target sample rate on the fly, by band limited
+ * interpolation with a Blackman windowed sinc kernel. When downsampling, the kernel is stretched so
+ * its cutoff lies below the target Nyquist frequency.
+ * <br><br>
+ * Each read only decodes the source samples covered by the kernels of the requested samples,
+ * so the resampled signal is never held in memory completely.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class ResampledSource extends AudioSource {
+
+	/**
+	 * Number of zero crossings of the sinc kernel on each side
+	 */
+	public static final int HALF_TAPS = 16;
+
+	/**
+	 * Cutoff frequency relative to the lower Nyquist frequency of source and target
+	 */
+	public static final double CUTOFF = 0.95;
+
+	/**
+	 * Kernel table entries per zero crossing, the kernel is interpolated linearly in between
+	 */
+	private static final int TABLE_RESOLUTION = 512;
+
+	/**
+	 * Maximum number of samples resampled at once
+	 */
+	private static final int READ_BLOCK = 4096;
+
+	/**
+	 * Source to be resampled
+	 */
+	private AudioSource source;
+
+	/**
+	 * Target sample rate
+	 */
+	private double sampleRate;
+
+	/**
+	 * Source samples per target sample
+	 */
+	private double ratio;
+
+	/**
+	 * Cutoff frequency relative to the source Nyquist frequency
+	 */
+	private double cutoff;
+
+	/**
+	 * Half kernel width in source samples
+	 */
+	private int halfWidth;
+
+	/**
+	 * Windowed sinc kernel, sampled at TABLE_RESOLUTION points per zero crossing
+	 */
+	private double[] table;
+
+	/**
+	 * Creates a resampled view of a source.
+	 *
+	 * @param source
+	 * @param sampleRate target sample rate
+	 * @throws Exception
+	 */
+	public ResampledSource(AudioSource source, double sampleRate) throws Exception {
+		if (sampleRate <= 0) throw new Exception("Invalid target sample rate: " + sampleRate);
+		this.source = source;
+		this.sampleRate = sampleRate;
+		this.ratio = source.getSampleRate() / sampleRate;
+		this.cutoff = CUTOFF * Math.min(1.0, 1.0 / ratio);
+		this.halfWidth = (int)Math.ceil(HALF_TAPS / cutoff);
+		table = new double[HALF_TAPS * TABLE_RESOLUTION + 2];
+		for(int i=0; i<table.length; i++) {
+			double u = (double)i / TABLE_RESOLUTION;
+			if (u >= HALF_TAPS) break;
+			double sinc = (i == 0) ? 1.0 : Math.sin(Math.PI * u) / (Math.PI * u);
+			double w = 0.42 + 0.5 * Math.cos(Math.PI * u / HALF_TAPS) + 0.08 * Math.cos(2 * Math.PI * u / HALF_TAPS);
+			table[i] = sinc * w;
+		}
+	}
+
+	/**
+	 * Reads resampled samples starting at an absolute position. Samples outside
+	 * of the source are returned as zeroes.
+	 *
+	 * @param start position of the first sample, may be negative
+	 * @param buffer
+	 * @param offset index in buffer of the first sample
+	 * @param length number of samples to read
+	 * @throws Exception
+	 */
+	@Override
+	public void read(long start, int[] buffer, int offset, int length) throws Exception {
+		int[] in = null;
+		for(int i=0; i<length; i+=READ_BLOCK) {
+			int num = Math.min(READ_BLOCK, length - i);
+			long first = (long)Math.floor((start + i) * ratio) - halfWidth;
+			long last = (long)Math.ceil((start + i + num - 1) * ratio) + halfWidth;
+			int span = (int)(last - first + 1);
+			if (in == null || in.length < span) in = new int[span];
+			source.read(first, in, 0, span);
+			for(int j=0; j<num; j++) {
+				long n = start + i + j;
+				if (n < 0 || n >= getLength()) {
+					buffer[offset + i + j] = 0;
+					continue;
+				}
+				double t = n * ratio;
+				long center = (long)Math.floor(t);
+				double sum = 0;
+				for(long k=center-halfWidth+1; k<=center+halfWidth; k++) {
+					sum+= in[(int)(k - first)] * kernel(t - k);
+				}
+				buffer[offset + i + j] = (int)Math.round(sum * cutoff);
+			}
+		}
+	}
+
+	/**
+	 * Internal: Returns the kernel value at a distance in source samples, without the cutoff gain.
+	 *
+	 * @param x
+	 * @return
+	 */
+	private double kernel(double x) {
+		double u = Math.abs(x) * cutoff * TABLE_RESOLUTION;
+		int i = (int)u;
+		if (i >= HALF_TAPS * TABLE_RESOLUTION) return 0;
+		double f = u - i;
+		return table[i] + f * (table[i+1] - table[i]);
+	}
+
+	/**
+	 * Closes the source.
+	 *
+	 * @throws Exception
+	 */
+	@Override
+	public void close() throws Exception {
+		source.close();
+	}
+
+	/**
+	 * Returns the target sample rate.
+	 *
+	 * @return
+	 */
+	@Override
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Returns the number of resampled samples.
+	 *
+	 * @return
+	 */
+	@Override
+	public long getLength() {
+		return (long)Math.floor(source.getLength() / ratio);
+	}
+}
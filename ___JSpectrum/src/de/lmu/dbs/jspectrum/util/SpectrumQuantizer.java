@@ -0,0 +1,282 @@
+package de.lmu.dbs.jspectrum.util;
+
+import java.util.Arrays;
+
+/**
+ * Converts spectral data to byte values. The result is identical to the chain of
+ * ArrayUtils calls used before:
+ * <pre>
+ * normalize(data);
+ * scale(data, scale);              // if a scale is given
+ * normalize(data, ceil);
+ * toByteArray(data);
+ * </pre>
+ * but no intermediate values are written back, so no temporary matrices are needed. If the maximum
+ * is known already (see ShortTimeTransform.getMaximum()), the data is read only once, otherwise it is 
+ * scanned for its maximum first. Each input row is released (set to null) as soon as it is converted,
+ * so the memory of the input is freed while the byte matrix is built. The complete input matrix still
+ * has to be calculated before the conversion, as the normalization depends on the global maximum.
+ * <br><br>
+ * The scale is not evaluated per value: The byte levels at TABLE_SIZE+1 equidistant points of the
+ * normalized range are precalculated. As the scale is monotonic, all values between two points of the
+ * same level get this level, only the few values in cells containing a level step are calculated exactly.
+ * The frames are processed in parallel chunks.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class SpectrumQuantizer {
+
+	/**
+	 * Number of cells of the level table. Has to be a power of two, so that the
+	 * cell index of a normalized value can be calculated without rounding.
+	 */
+	public static final int TABLE_SIZE = 65536;
+
+	/**
+	 * Scaling function applied to the normalized values, or null
+	 */
+	private Scale scale;
+
+	/**
+	 * Maximum value of the results
+	 */
+	private double ceil;
+
+	/**
+	 * Maximum of the scaled normalized range (the scale of 1.0), used for the second normalization
+	 */
+	private double scaledMax;
+
+	/**
+	 * Byte levels of the normalized values i / TABLE_SIZE
+	 */
+	private byte[] levels;
+
+	/**
+	 * Number of threads
+	 */
+	private int numOfThreads = 1;
+
+	/**
+	 * Creates a quantizer.
+	 *
+	 * @param scale monotonic scaling function for the normalized values, or null for no scaling
+	 * @param ceil maximum value of the results, at most Byte.MAX_VALUE
+	 * @throws Exception
+	 */
+	public SpectrumQuantizer(final Scale scale, final double ceil) throws Exception {
+		if (ceil <= 0 || ceil > Byte.MAX_VALUE) throw new Exception("Invalid ceiling for byte values: " + ceil);
+		this.scale = scale;
+		this.ceil = ceil;
+		this.scaledMax = (scale != null) ? scale.apply(1.0) : 1.0;
+		levels = new byte[TABLE_SIZE + 1];
+		for(int i=0; i<=TABLE_SIZE; i++) {
+			levels[i] = level((double)i / TABLE_SIZE);
+		}
+	}
+
+	/**
+	 * Sets the number of threads.
+	 *
+	 * @param numOfThreads values lower than one use all available processors
+	 */
+	public void setNumOfThreads(int numOfThreads) {
+		this.numOfThreads = (numOfThreads < 1) ? Runtime.getRuntime().availableProcessors() : numOfThreads;
+	}
+
+	/**
+	 * Converts the data to byte values, normalized by the maximum of the data.
+	 *
+	 * @param data spectral data, all values have to be positive
+	 * @return
+	 * @throws Exception
+	 */
+	public byte[][] quantize(final double[][] data) throws Exception {
+		final double[] maxima = new double[numOfThreads];
+		Arrays.fill(maxima, -Double.MAX_VALUE);
+		run(data.length, new Chunk() {
+			public void process(int thread, int from, int to) {
+				double max = -Double.MAX_VALUE;
+				for(int i=from; i<to; i++) {
+					for(int j=0; j<data[i].length; j++) {
+						if (data[i][j] > max) max = data[i][j];
+					}
+				}
+				maxima[thread] = max;
+			}
+		});
+		double max = -Double.MAX_VALUE;
+		for(int t=0; t<maxima.length; t++) {
+			if (maxima[t] > max) max = maxima[t];
+		}
+		return quantize(data, max);
+	}
+
+	/**
+	 * Converts the data to byte values, normalized by a known maximum (i.e. tracked
+	 * while the data has been calculated). The rows of data are released after conversion.
+	 *
+	 * @param data spectral data, all values have to be in range [0, max]
+	 * @param max maximum of the data, or a negative value if unknown
+	 * @return
+	 * @throws Exception
+	 */
+	public byte[][] quantize(final double[][] data, final double max) throws Exception {
+		if (max < 0) return quantize(data);
+		final byte[][] ret = new byte[data.length][];
+		run(data.length, new Chunk() {
+			public void process(int thread, int from, int to) throws Exception {
+				for(int i=from; i<to; i++) {
+					byte[] out = new byte[data[i].length];
+					for(int j=0; j<out.length; j++) {
+						out[j] = quantize(data[i][j] / max);
+					}
+					ret[i] = out;
+					data[i] = null;
+				}
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * Converts single precision data to byte values, normalized by the maximum of the data.
+	 *
+	 * @param data spectral data, all values have to be positive
+	 * @return
+	 * @throws Exception
+	 */
+	public byte[][] quantize(final float[][] data) throws Exception {
+		final double[] maxima = new double[numOfThreads];
+		Arrays.fill(maxima, -Double.MAX_VALUE);
+		run(data.length, new Chunk() {
+			public void process(int thread, int from, int to) {
+				float max = -Float.MAX_VALUE;
+				for(int i=from; i<to; i++) {
+					for(int j=0; j<data[i].length; j++) {
+						if (data[i][j] > max) max = data[i][j];
+					}
+				}
+				maxima[thread] = max;
+			}
+		});
+		double max = -Double.MAX_VALUE;
+		for(int t=0; t<maxima.length; t++) {
+			if (maxima[t] > max) max = maxima[t];
+		}
+		return quantize(data, max);
+	}
+
+	/**
+	 * Converts single precision data to byte values, normalized by a known maximum.
+	 * The rows of data are released after conversion.
+	 *
+	 * @param data spectral data, all values have to be in range [0, max]
+	 * @param max maximum of the data, or a negative value if unknown
+	 * @return
+	 * @throws Exception
+	 */
+	public byte[][] quantize(final float[][] data, final double max) throws Exception {
+		if (max < 0) return quantize(data);
+		final byte[][] ret = new byte[data.length][];
+		run(data.length, new Chunk() {
+			public void process(int thread, int from, int to) throws Exception {
+				for(int i=from; i<to; i++) {
+					byte[] out = new byte[data[i].length];
+					for(int j=0; j<out.length; j++) {
+						out[j] = quantize(data[i][j] / max);
+					}
+					ret[i] = out;
+					data[i] = null;
+				}
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * Internal: Returns the byte level of a normalized value, from the table if possible.
+	 *
+	 * @param v normalized value
+	 * @return
+	 * @throws Exception
+	 */
+	private byte quantize(double v) throws Exception {
+		int cell = (int)(v * TABLE_SIZE);
+		if (cell >= TABLE_SIZE) return levels[TABLE_SIZE];
+		if (levels[cell] == levels[cell+1]) return levels[cell];
+		return level(v);
+	}
+
+	/**
+	 * Internal: Calculates the byte level of a normalized value exactly.
+	 *
+	 * @param v normalized value
+	 * @return
+	 * @throws Exception
+	 */
+	private byte level(double v) throws Exception {
+		if (scale != null) v = scale.apply(v);
+		v/= scaledMax;
+		if (ceil != 1) v*= ceil;
+		return (byte)v;
+	}
+
+	/**
+	 * Processes a chunk of frames.
+	 *
+	 * @author Thomas Weber
+	 *
+	 */
+	private interface Chunk {
+
+		/**
+		 * Processes frames [from, to[.
+		 *
+		 * @param thread index of the thread
+		 * @param from
+		 * @param to
+		 * @throws Exception
+		 */
+		public void process(int thread, int from, int to) throws Exception;
+	}
+
+	/**
+	 * Internal: Processes frames [0, frames[ in numOfThreads contiguous chunks.
+	 *
+	 * @param frames
+	 * @param chunk
+	 * @throws Exception
+	 */
+	private void run(final int frames, final Chunk chunk) throws Exception {
+		int n = Math.min(numOfThreads, frames);
+		if (n <= 1) {
+			chunk.process(0, 0, frames);
+			return;
+		}
+		Thread[] threads = new Thread[n];
+		final Exception[] errors = new Exception[n];
+		for(int t=0; t<n; t++) {
+			final int from = (int)((long)frames * t / n);
+			final int to = (int)((long)frames * (t+1) / n);
+			final int index = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						chunk.process(index, from, to);
+					} catch (Exception e) {
+						errors[index] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(int t=0; t<n; t++) {
+			threads[t].join();
+		}
+		for(int t=0; t<n; t++) {
+			if (errors[t] != null) throw errors[t];
+		}
+	}
+}
@@ -0,0 +1,338 @@
+package de.lmu.dbs.jspectrum.util;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streaming audio source for uncompressed PCM WAV files. The data chunk is memory mapped, and the
+ * samples are decoded on demand when they are read, so no decoded copy of the file is held in memory.
+ * Delivers either the mono downmix of all channels, or one selected channel.
+ * <br><br>
+ * The samples are decoded like the WavFile class does, and the mono downmix is the same as
+ * Sample.getMono() for stereo files, so the results are identical to the ones of WaveSample
+ * (except for 32 bit files, where the channel sum of getMono() can overflow).
+ *
+ * @author Thomas Weber
+ *
+ */
+public class WaveSource extends AudioSource {
+
+	/**
+	 * Channel index to get the mono downmix of all channels
+	 */
+	public static final int MONO = -1;
+
+	/**
+	 * Maximum size of one mapped segment of the data chunk
+	 */
+	private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+	/**
+	 * The WAV file
+	 */
+	private File file;
+
+	/**
+	 * Opened file, kept open while the data is mapped
+	 */
+	private RandomAccessFile raf;
+
+	/**
+	 * Mapped segments of the data chunk, each one holds framesPerSegment frames
+	 */
+	private ByteBuffer[] segments;
+
+	/**
+	 * Number of frames per mapped segment
+	 */
+	private long framesPerSegment;
+
+	/**
+	 * Number of frames in the file
+	 */
+	private long numOfFrames;
+
+	/**
+	 * Number of channels in the file
+	 */
+	private int numOfChannels;
+
+	/**
+	 * Bytes per sample of one channel
+	 */
+	private int bytesPerSample;
+
+	/**
+	 * Bytes per frame (all channels)
+	 */
+	private int blockAlign;
+
+	/**
+	 * Valid bits per sample
+	 */
+	private int validBits;
+
+	/**
+	 * Sample rate of the file
+	 */
+	private long sampleRate;
+
+	/**
+	 * Delivered channel, or MONO
+	 */
+	private int channel;
+
+	/**
+	 * Opens a WAV file and delivers its mono downmix.
+	 *
+	 * @param file
+	 * @throws Exception
+	 */
+	public WaveSource(File file) throws Exception {
+		this(file, MONO);
+	}
+
+	/**
+	 * Opens a WAV file.
+	 *
+	 * @param file
+	 * @param channel index of the delivered channel, or MONO for the downmix of all channels
+	 * @throws Exception
+	 */
+	public WaveSource(File file, int channel) throws Exception {
+		this.file = file;
+		raf = new RandomAccessFile(file, "r");
+		try {
+			open();
+		} catch (Exception e) {
+			raf.close();
+			throw e;
+		}
+		if (channel != MONO && (channel < 0 || channel >= numOfChannels)) {
+			close();
+			throw new Exception("Channel " + channel + " does not exist, the file has " + numOfChannels + " channels: " + file.getAbsolutePath());
+		}
+		this.channel = channel;
+	}
+
+	/**
+	 * Internal: Parses the RIFF header and maps the data chunk.
+	 *
+	 * @throws Exception
+	 */
+	private void open() throws Exception {
+		FileChannel fc = raf.getChannel();
+		long fileSize = fc.size();
+		ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(fc, header, 0, 12);
+		if (header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157) throw new Exception("No RIFF WAVE file: " + file.getAbsolutePath());
+		long pos = 12;
+		boolean foundFormat = false;
+		while(true) {
+			if (pos + 8 > fileSize) throw new Exception("Did not find a data chunk: " + file.getAbsolutePath());
+			readFully(fc, header, pos, 8);
+			int chunkId = header.getInt(0);
+			long chunkSize = header.getInt(4) & 0xFFFFFFFFL;
+			pos+= 8;
+			if (chunkId == 0x20746D66) {
+				// Format chunk
+				readFully(fc, header, pos, 16);
+				int compressionCode = header.getShort(0) & 0xFFFF;
+				if (compressionCode != 1) throw new Exception("Compression code " + compressionCode + " not supported: " + file.getAbsolutePath());
+				numOfChannels = header.getShort(2) & 0xFFFF;
+				sampleRate = header.getInt(4) & 0xFFFFFFFFL;
+				blockAlign = header.getShort(12) & 0xFFFF;
+				validBits = header.getShort(14) & 0xFFFF;
+				if (numOfChannels == 0) throw new Exception("Number of channels is zero: " + file.getAbsolutePath());
+				if (validBits < 2 || validBits > 32) throw new Exception("Valid bits " + validBits + " not supported: " + file.getAbsolutePath());
+				bytesPerSample = (validBits + 7) / 8;
+				if (bytesPerSample * numOfChannels != blockAlign) throw new Exception("Block align does not agree with valid bits and number of channels: " + file.getAbsolutePath());
+				foundFormat = true;
+			} else if (chunkId == 0x61746164) {
+				// Data chunk
+				if (!foundFormat) throw new Exception("Data chunk found before format chunk: " + file.getAbsolutePath());
+				if (chunkSize % blockAlign != 0) throw new Exception("Data chunk size is not a multiple of block align: " + file.getAbsolutePath());
+				if (pos + chunkSize > fileSize) throw new Exception("Data chunk exceeds the file size: " + file.getAbsolutePath());
+				numOfFrames = chunkSize / blockAlign;
+				map(fc, pos);
+				return;
+			}
+			pos+= (chunkSize % 2 == 1) ? chunkSize + 1 : chunkSize;
+		}
+	}
+
+	/**
+	 * Internal: Maps the data chunk in segments of whole frames.
+	 *
+	 * @param fc
+	 * @param dataStart file position of the first frame
+	 * @throws Exception
+	 */
+	private void map(FileChannel fc, long dataStart) throws Exception {
+		framesPerSegment = MAX_SEGMENT_SIZE / blockAlign;
+		int num = (int)((numOfFrames + framesPerSegment - 1) / framesPerSegment);
+		segments = new ByteBuffer[num];
+		for(int i=0; i<num; i++) {
+			long frames = Math.min(framesPerSegment, numOfFrames - i * framesPerSegment);
+			MappedByteBuffer seg = fc.map(FileChannel.MapMode.READ_ONLY, dataStart + i * framesPerSegment * blockAlign, frames * blockAlign);
+			seg.order(ByteOrder.LITTLE_ENDIAN);
+			segments[i] = seg;
+		}
+	}
+
+	/**
+	 * Internal: Reads length bytes at a file position into the beginning of buffer.
+	 *
+	 * @param fc
+	 * @param buffer
+	 * @param pos
+	 * @param length
+	 * @throws Exception
+	 */
+	private void readFully(FileChannel fc, ByteBuffer buffer, long pos, int length) throws Exception {
+		buffer.clear();
+		buffer.limit(length);
+		while(buffer.hasRemaining()) {
+			if (fc.read(buffer, pos + buffer.position()) < 0) throw new Exception("Unexpected end of file: " + file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Reads samples starting at an absolute position, decoded from the mapped data.
+	 * Samples outside of the file are returned as zeroes.
+	 *
+	 * @param start position of the first sample, may be negative
+	 * @param buffer
+	 * @param offset index in buffer of the first sample
+	 * @param length number of samples to read
+	 * @throws Exception
+	 */
+	@Override
+	public void read(long start, int[] buffer, int offset, int length) throws Exception {
+		if (segments == null) throw new Exception("Source is closed: " + file.getAbsolutePath());
+		int i = 0;
+		for(; i<length && start + i < 0; i++) {
+			buffer[offset + i] = 0;
+		}
+		while(i < length && start + i < numOfFrames) {
+			long frame = start + i;
+			int s = (int)(frame / framesPerSegment);
+			ByteBuffer seg = segments[s];
+			int num = (int)Math.min(length - i, (s + 1) * framesPerSegment - frame);
+			num = (int)Math.min(num, numOfFrames - frame);
+			int index = (int)(frame - s * framesPerSegment) * blockAlign;
+			if (channel == MONO) {
+				for(int j=0; j<num; j++) {
+					long sum = 0;
+					for(int c=0; c<numOfChannels; c++) {
+						sum+= decode(seg, index + c * bytesPerSample);
+					}
+					buffer[offset + i + j] = (int)(sum / numOfChannels);
+					index+= blockAlign;
+				}
+			} else {
+				index+= channel * bytesPerSample;
+				for(int j=0; j<num; j++) {
+					buffer[offset + i + j] = decode(seg, index);
+					index+= blockAlign;
+				}
+			}
+			i+= num;
+		}
+		for(; i<length; i++) {
+			buffer[offset + i] = 0;
+		}
+	}
+
+	/**
+	 * Internal: Decodes one sample like WavFile does: Signed little endian, except for 8 bit
+	 * samples which are unsigned.
+	 *
+	 * @param seg
+	 * @param index byte index of the sample
+	 * @return
+	 */
+	private int decode(ByteBuffer seg, int index) {
+		switch(bytesPerSample) {
+		case 1:
+			return seg.get(index) & 0xFF;
+		case 2:
+			return seg.getShort(index);
+		case 3:
+			return (seg.get(index) & 0xFF) | ((seg.get(index + 1) & 0xFF) << 8) | (seg.get(index + 2) << 16);
+		default:
+			return seg.getInt(index);
+		}
+	}
+
+	/**
+	 * Unmaps the data (as far as the VM allows) and closes the file.
+	 *
+	 * @throws Exception
+	 */
+	@Override
+	public void close() throws Exception {
+		segments = null;
+		raf.close();
+	}
+
+	/**
+	 * Returns the sample rate of the file.
+	 *
+	 * @return
+	 */
+	@Override
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Returns the number of frames of the file.
+	 *
+	 * @return
+	 */
+	@Override
+	public long getLength() {
+		return numOfFrames;
+	}
+
+	/**
+	 * Returns the number of channels of the file.
+	 *
+	 * @return
+	 */
+	public int getNumOfChannels() {
+		return numOfChannels;
+	}
+
+	/**
+	 * Returns the valid bits per sample.
+	 *
+	 * @return
+	 */
+	public int getValidBits() {
+		return validBits;
+	}
+
+	/**
+	 * Returns the delivered channel index, or MONO.
+	 *
+	 * @return
+	 */
+	public int getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the WAV file.
+	 *
+	 * @return
+	 */
+	public File getFile() {
+		return file;
+	}
+}
@@ -17,16 +17,17 @@ import de.lmu.dbs.jforest.core2d.RandomTree2d;
 import de.lmu.dbs.jforest.sampler.BootstrapSampler;
 import de.lmu.dbs.jforest.sampler.Sampler;
 import de.lmu.dbs.jforest.util.Logfile;
-import de.lmu.dbs.jspectrum.ShortTimeConstantQTransform;
 import de.lmu.dbs.jspectrum.ShortTimeTransform;
+import de.lmu.dbs.jspectrum.SpectrumCache;
 import de.lmu.dbs.jspectrum.TransformParameters;
 import de.lmu.dbs.jspectrum.util.ArrayUtils;
+import de.lmu.dbs.jspectrum.util.AudioSource;
 import de.lmu.dbs.jspectrum.util.HammingWindow;
 import de.lmu.dbs.jspectrum.util.LogScale;
 import de.lmu.dbs.jspectrum.util.RuntimeMeasure;
-import de.lmu.dbs.jspectrum.util.Sample;
 import de.lmu.dbs.jspectrum.util.Scale;
-import de.lmu.dbs.jspectrum.util.WaveSample;
+import de.lmu.dbs.jspectrum.util.SpectrumQuantizer;
+import de.lmu.dbs.jspectrum.util.Window;
 import de.lmu.dbs.musicalforest.classifier.ForestMeta;
 import de.lmu.dbs.musicalforest.classifier.ForestMetaException;
 import de.lmu.dbs.musicalforest.classifier.OnOffMusicalRandomTree;
@@ -101,7 +102,7 @@ public abstract class Action {
 	/**
 	 * See method transformAudioFile() documentation
 	 */
-	public Sample audioSample;
+	public AudioSource audioSource;
 	
 	/**
 	 * Process the action.
@@ -130,40 +131,103 @@ public abstract class Action {
 		return fparams;
 	}
 
-	/**
-	 * Audio source loaded in last call of transformAudioFile()
-	 */
-	protected int[] audioSrc = null;
-
 	/**
 	 * Load and CQT transform an audio (WAV) file. The returned data array is normalized to range [0..1].
-	 * After execution, the WavSample instance can be accessed by attribute audioSample.
+	 * The file is streamed by a mapped WaveSource, resampled if set in the parameters. After execution,
+	 * the (closed) source can be accessed by attribute audioSource, for its sample rate and length.
 	 * 
 	 * @return
 	 * @throws Exception 
 	 */
 	public double[][] transformAudioFile(RuntimeMeasure m, TransformParameters params, Scale scale, String file) throws Exception {
-		// Load sample
-		audioSample = new WaveSample(new File(file));
-		m.measure("Loaded audio data from file " + file);
-
-		ShortTimeTransform transformation = new ShortTimeConstantQTransform((double)audioSample.getSampleRate(), params.fMin, params.fMax, params.binsPerOctave, params.threshold, params.spread, params.divideFFT, params.cqtKernelBufferLocation);
-		m.measure("Initialized transformation");
-		
-		// Make mono
-		audioSrc = audioSample.getMono();
-		double len = (double)audioSrc.length / audioSample.getSampleRate();
-		m.measure("Mono audio Length: " + len + "sec, " + audioSrc.length + " samples");
-
-		// Calculate transformation
-		double[][] data = transformation.calculate(audioSrc, params.step, new HammingWindow(transformation.getWindowSize()));
+		ShortTimeTransform transformation = openAudioFile(m, params, file);
+		double[][] data;
+		try {
+			data = transformation.calculate(audioSource, params.step, new HammingWindow(transformation.getWindowSize()));
+		} finally {
+			audioSource.close();
+		}
 		ArrayUtils.normalize(data); // Normalize to [0,1]
 		if (scale != null) ArrayUtils.scale(data, scale); // Log scale
 		if (scale != null) m.measure("Finished transformation and scaling (" + ((LogScale)scale).getWidth() + ")");
 		else m.measure("Finished transformation without scaling.");
+		return data;
+	}
+	
+	/**
+	 * Load and CQT transform an audio (WAV) file like transformAudioFile(RuntimeMeasure, TransformParameters, Scale, String), 
+	 * and convert the result to byte values in range [0..ceil] by a SpectrumQuantizer. This is equal to normalizing 
+	 * the returned data to [0..ceil] and converting it by ArrayUtils.toByteArray(), but without writing back 
+	 * intermediate results: The maximum is tracked by the transformation while calculating, so the double 
+	 * (or float) spectrum is read only once for the conversion, and its rows are released as they are converted.
+	 * The complete spectrum is still calculated before, as the normalization depends on its maximum.
+	 * If floatPrecision is set in the parameters, the spectrum is calculated in single precision.
+	 * <br><br>
+	 * If a spectrum cache location is set in the parameters, the cache is consulted first: If the same
+	 * file content has been transformed with equal parameters before, the spectrum is loaded from the cache
+	 * and no transformation takes place. Otherwise, the result is saved to the cache.
+	 * 
+	 * @return
+	 * @throws Exception 
+	 */
+	public byte[][] transformAudioFile(RuntimeMeasure m, TransformParameters params, Scale scale, String file, double ceil) throws Exception {
+		SpectrumCache cache = params.createSpectrumCache();
+		String key = null;
+		if (cache != null) {
+			key = cache.getKey(new File(file), params, scale, ceil);
+			SpectrumCache.Spectrum cached = cache.load(key);
+			if (cached != null) {
+				audioSource = params.openAudioSource(new File(file));
+				audioSource.close();
+				params.frequencies = cached.frequencies;
+				m.measure("Loaded spectrum of " + file + " from cache: " + cached.data.length + " frames");
+				return cached.data;
+			}
+		}
+		ShortTimeTransform transformation = openAudioFile(m, params, file);
+		Window window = new HammingWindow(transformation.getWindowSize());
+		SpectrumQuantizer quantizer = new SpectrumQuantizer(scale, ceil);
+		quantizer.setNumOfThreads(Runtime.getRuntime().availableProcessors());
+		byte[][] ret;
+		try {
+			if (params.floatPrecision) {
+				float[][] data = transformation.calculateFloat(audioSource, params.step, window);
+				ret = quantizer.quantize(data, transformation.getMaximum());
+			} else {
+				double[][] data = transformation.calculate(audioSource, params.step, window);
+				ret = quantizer.quantize(data, transformation.getMaximum());
+			}
+		} finally {
+			audioSource.close();
+		}
+		if (scale != null) m.measure("Finished transformation, scaling (" + ((LogScale)scale).getWidth() + ") and quantization");
+		else m.measure("Finished transformation and quantization without scaling.");
+		if (cache != null) {
+			cache.save(key, params.frequencies, ret);
+			m.measure("Saved spectrum to cache");
+		}
+		return ret;
+	}
+	
+	/**
+	 * Internal: Opens an audio file as attribute audioSource and returns the transformation 
+	 * for it, see transformAudioFile(..). The caller has to close the source.
+	 * 
+	 * @return
+	 * @throws Exception 
+	 */
+	private ShortTimeTransform openAudioFile(RuntimeMeasure m, TransformParameters params, String file) throws Exception {
+		// Open mono audio stream
+		audioSource = params.openAudioSource(new File(file));
+		double len = (double)audioSource.getLength() / audioSource.getSampleRate();
+		m.measure("Opened audio file " + file + ", mono audio Length: " + len + "sec, " + audioSource.getLength() + " samples");
+
+		ShortTimeTransform transformation = params.createTransformation(audioSource.getSampleRate());
+		transformation.setNumOfThreads(Runtime.getRuntime().availableProcessors());
+		m.measure("Initialized transformation");
 		
 		params.frequencies = transformation.getFrequencies();
-		return data;
+		return transformation;
 	}
 	
 	/**
@@ -203,9 +267,10 @@ public abstract class Action {
 	 * @param m
 	 * @param fparams
 	 * @param sampler
+	 * @param prior forest to initialize the adaptive feature proposal statistics with, or null
 	 * @throws Exception
 	 */
-	public Forest2d growForest(RuntimeMeasure m, ForestParameters fparams, Sampler<Dataset> sampler, int maxNumOfEvalThreads, int maxNumOfNodeThreads, int nodeThreadingThreshold) throws Exception {
+	public Forest2d growForest(RuntimeMeasure m, ForestParameters fparams, Sampler<Dataset> sampler, int maxNumOfEvalThreads, int maxNumOfNodeThreads, int nodeThreadingThreshold, Forest2d prior) throws Exception {
 		// Grow forest
 		Logfile[] treelogs = new Logfile[fparams.forestSize]; 
 		List<RandomTree> trees = new ArrayList<RandomTree>();
@@ -216,7 +281,16 @@ public abstract class Action {
 		}
 		Logfile forestlog = new Logfile(workingFolder + File.separator + "Forest_Stats.txt");
 		Forest2d forest = new Forest2d(trees, fparams, forestlog, maxNumOfEvalThreads, maxNumOfNodeThreads, nodeThreadingThreshold);
-		forest.grow(sampler, workingFolder + File.separator + "bootstrap_");
+		if (prior != null) {
+			if (forest.proposal == null) throw new Exception("A prior forest is only used with adaptive feature proposal, see adaptiveProposal in the forest settings");
+			forest.proposal.recordForest(prior);
+			m.measure("Initialized adaptive feature proposal with " + forest.proposal.getNumOfRecords(-1) + " split features of the prior forest");
+		}
+		if (fparams.streamingGrowth) {
+			forest.growStreaming(sampler);
+		} else {
+			forest.grow(sampler, workingFolder + File.separator + "bootstrap_");
+		}
 		m.measure("Finished growing random forest");
 
 		forest.save(workingFolder + File.separator + NODEDATA_FILE_PREFIX);
@@ -2,7 +2,9 @@ package de.lmu.dbs.musicalforest;
 
 import java.io.IOException;
 
+import de.lmu.dbs.jspectrum.TransformParameters;
 import de.lmu.dbs.jspectrum.util.RuntimeMeasure;
+import de.lmu.dbs.musicalforest.actions.BuildResponsesAction;
 import de.lmu.dbs.musicalforest.actions.ClassifyAction;
 import de.lmu.dbs.musicalforest.actions.ExpandAction;
 import de.lmu.dbs.musicalforest.actions.GenerateDataAction;
@@ -39,6 +41,11 @@ public class MusicalForest {
 	 */
 	public static final int ERROR_EXIT_CODE = 8;
 	
+	/**
+	 * Default number of feature candidates for the buildresponses action
+	 */
+	public static final int DEFAULT_RESPONSE_POOL_SIZE = 500;
+	
 	/**
 	 * Dont ouput any messages
 	 */
@@ -124,6 +131,8 @@ public class MusicalForest {
 				modify(removeFirst(args));
 			} else if (a.equals("expand")) {
 				expand(removeFirst(args));
+			} else if (a.equals("buildresponses")) {
+				buildResponses(removeFirst(args));
 			} else {
 				printHelp(args, args[0]);
 				System.exit(ARGS_ERROR_EXIT_CODE);
@@ -239,8 +248,12 @@ public class MusicalForest {
 				accepts("help", "Shows this help screen.").forHelp();
 				accepts("settings", "This has to be filled with the transform settings xml file. This file will also be copied into the data folder for the later processing.").withRequiredArg().required();
 				accepts("target", "This folder will be created and filled with the generated training data sets. " + 
-						"If there are any datasets in the folder, nothing will be overwritten, but the new files will be postfixed " + 
-						"with an index. This allows you to have files with identical names in the MIDI source folder.").withRequiredArg().required();
+						"The folder keeps a manifest of the generated datasets: MIDI files which have already been processed into " + 
+						"this folder are skipped if they (and their Wave files and the options) did not change, and regenerated " + 
+						"(overwriting their former datasets) otherwise. New datasets whose names are already taken are postfixed " + 
+						"with an index. This allows you to have files with identical names in the MIDI source folder. " + 
+						"Data folders without a manifest (generated by older versions) adopt the existing datasets by name, " + 
+						"so they are not generated again.").withRequiredArg().required();
 				accepts("source", "This folder has to provide the MIDI files to generate test " +
 						"data from. The generation process is then done recursively to any subfolder " + 
 						"of this argument. If there already are Wave files beneath the MIDI, these will be used instead of rendering. " +
@@ -252,6 +265,8 @@ public class MusicalForest {
 				accepts("stripctrl", "Optional: Strip all controller messages.");
 				accepts("maxvelocity", "Optional: Maximize all velocities to 127.");
 				accepts("midi", "Optional: Just process MIDI files, dont generate any Audio or CQT files.");
+				accepts("threads", "Optional: Number of datasets generated in parallel. Default: Number of processors.").withRequiredArg();
+				accepts("noimages", "Optional: Do not save the PNG images which visualize the datasets.");
 			}
 		};
 		OptionSet options = getOptions(args, parser);
@@ -263,10 +278,13 @@ public class MusicalForest {
 		boolean stripControlMessages = options.has("stripctrl");
 		boolean maximizeVelocities = options.has("maxvelocity");
 		boolean midi = options.has("midi");
+		boolean images = !options.has("noimages");
+		int threads = -1;
+		if (options.has("threads")) threads = Integer.parseInt((String)options.valueOf("threads"));
 		
 		double scaleParam = -1;
 		if (options.has("scale")) scaleParam = Double.parseDouble((String)options.valueOf("scale"));
-		action = new GenerateDataAction(sourceFolder, targetFolder, sf, settingsFile, stripPC, stripControlMessages, maximizeVelocities, scaleParam, midi);
+		action = new GenerateDataAction(sourceFolder, targetFolder, sf, settingsFile, stripPC, stripControlMessages, maximizeVelocities, scaleParam, midi, threads, images);
 	}
 
 	/**
@@ -412,6 +430,10 @@ public class MusicalForest {
 				accepts("threads", "Optional: Thread number used to perform the worker threading (in training mode: evaluation threading)").withRequiredArg();
 				accepts("silent", "Optional: Dont output any messages.");
 				accepts("maxdepth", "Optional: Limit forest depth. The forest has to be expanded to use this.").withRequiredArg();
+				accepts("cache", "Optional: Folder for caching the spectra of the audio files. Classifying the same file again " + 
+						"(i.e. with other sensitivity thresholds) loads its spectrum from there instead of transforming it.").withRequiredArg();
+				accepts("cachesize", "Optional: Maximum size of the spectrum cache in megabytes, the least recently used spectra " + 
+						"are deleted. Default: " + TransformParameters.DEFAULT_SPECTRUM_CACHE_SIZE).withRequiredArg();
 			}
 		};
 		OptionSet options = getOptions(args, parser);
@@ -427,7 +449,11 @@ public class MusicalForest {
 		int threads = -1;
 		if (options.has("threads")) threads = Integer.parseInt((String)options.valueOf("threads"));
 		
-		action = new ClassifyAction(classifyInput, workingFolder, midiFile, sensitivityOnset, sensitivityOffset, threads, image);
+		String cache = (String)options.valueOf("cache");
+		double cacheSize = TransformParameters.DEFAULT_SPECTRUM_CACHE_SIZE;
+		if (options.has("cachesize")) cacheSize = Double.parseDouble((String)options.valueOf("cachesize"));
+		
+		action = new ClassifyAction(classifyInput, workingFolder, midiFile, sensitivityOnset, sensitivityOffset, threads, image, cache, cacheSize);
 	}
 
 	/**
@@ -450,6 +476,13 @@ public class MusicalForest {
 				accepts("nodethreshold", "Amount of data values below which node threading should start. " +
 						"Use this in combination with evaluation threading to limit node threading to small nodes " +
 						"and, in parallel, continue to evaluate the next big node.").withRequiredArg();
+				accepts("corpus", "Folder for the off heap corpus store. If given, the spectral and reference data is converted to " +
+						"files in this folder once and memory mapped from there, instead of being held in the Java heap.").withRequiredArg();
+				accepts("corpusmaplimit", "Limit for the datasets mapped by the corpus store in MB. If exceeded, the least recently used " +
+						"datasets are released and mapped again when needed. This is no memory limit: The operating system pages " + 
+						"the mapped files in and out on its own. Default: no limit.").withRequiredArg();
+				accepts("prior", "Folder of a prior forest. Its split features initialize the statistics of the adaptive " +
+						"feature proposal (see adaptiveProposal in the forest settings).").withRequiredArg();
 			}
 		};
 		OptionSet options = getOptions(args, parser);
@@ -467,6 +500,14 @@ public class MusicalForest {
 		int nodeThreadingThreshold = -1;
 		if (options.has("nodethreshold")) nodeThreadingThreshold = Integer.parseInt((String)options.valueOf("nodethreshold"));
 		((TrainingAction)action).setThreadingParams(evalThreads, nodeThreads, nodeThreadingThreshold);
+		
+		// Corpus store params
+		if (options.has("corpus")) {
+			long mapLimit = 0;
+			if (options.has("corpusmaplimit")) mapLimit = Long.parseLong((String)options.valueOf("corpusmaplimit")) * 1024 * 1024;
+			((TrainingAction)action).setCorpusParams((String)options.valueOf("corpus"), mapLimit);
+		}
+		if (options.has("prior")) ((TrainingAction)action).setPriorForest((String)options.valueOf("prior"));
 	}
 
 	/**
@@ -495,6 +536,34 @@ public class MusicalForest {
 		action = new ExpandAction(workingFolder, dataFolder, sourceFolder, -1);
 	}
 	
+	/**
+	 * 
+	 * @param args
+	 * @throws IOException 
+	 */
+	private void buildResponses(String[] args) throws IOException {
+		OptionParser parser = new OptionParser() {
+			{
+				accepts("help", "Shows this help screen.").forHelp();
+				accepts("target", "Response store folder. Will be created if not existing. If it already contains a store, " +
+						"only the responses of new datasets are computed.").withRequiredArg().required();
+				accepts("settings", "Forest settings stored in a XML file. The featureFactoryClass attribute determines the " +
+						"features of the candidate pool.").withRequiredArg().required();
+				accepts("source", "Training data folder. This folder will be searched recursively, all sets of corresponding MIDI and CQT files " +
+						"will be added. ").withRequiredArg().required();
+				accepts("pool", "Number of feature candidates in the pool. The store needs pool * 4 bytes per spectrogram value on disk. Default: " + DEFAULT_RESPONSE_POOL_SIZE).withRequiredArg();
+			}
+		};
+		OptionSet options = getOptions(args, parser);
+		String workingFolder = (String)options.valueOf("target");
+		String settingsFile = (String)options.valueOf("settings");
+		String dataFolder = (String)options.valueOf("source");
+		int poolSize = DEFAULT_RESPONSE_POOL_SIZE;
+		if (options.has("pool")) poolSize = Integer.parseInt((String)options.valueOf("pool"));
+		
+		action = new BuildResponsesAction(workingFolder, settingsFile, dataFolder, poolSize);
+	}
+	
 	/**
 	 * Parse options.
 	 * 
@@ -572,6 +641,11 @@ public class MusicalForest {
 		System.out.println("                  nodes. After this action, maxDepth can be set during classification");
 		System.out.println("                  to evaluate forest behaviour at lower depths.");
 		System.out.println("");
+		System.out.println("    buildresponses: Precompute the responses of a fixed pool of feature candidates on a set");
+		System.out.println("                  of training data. Forests trained with the responseStore setting read");
+		System.out.println("                  them instead of computing the features again. Needs pool size * 4 bytes");
+		System.out.println("                  per spectrogram value on disk.");
+		System.out.println("");
 		System.out.println("    generatedata: Batch generate training data sets from MIDI and/or Wave Audio files.");
 		System.out.println("                  Generates the spectral (.cqt) files from each audio file, these will");
 		System.out.println("                  be used by the training action to grow the forest. Additionally,");
@@ -0,0 +1,85 @@
+package de.lmu.dbs.musicalforest.actions;
+
+import java.io.File;
+
+import de.lmu.dbs.jforest.core.Dataset;
+import de.lmu.dbs.jforest.core.ForestParameters;
+import de.lmu.dbs.jforest.core2d.ResponseStore;
+import de.lmu.dbs.jforest.core2d.TreeDataset2d;
+import de.lmu.dbs.jforest.sampler.BootstrapSampler;
+import de.lmu.dbs.jspectrum.util.RuntimeMeasure;
+import de.lmu.dbs.musicalforest.Action;
+import de.lmu.dbs.musicalforest.classifier.DataMeta;
+import de.lmu.dbs.musicalforest.classifier.OnOffMusicalRandomTree;
+import de.lmu.dbs.musicalforest.classifier.OnOffMusicalTreeDataset;
+import de.lmu.dbs.musicalforest.util.Harmonics;
+
+/**
+ * This action builds a feature response store for a training data folder: A fixed pool of
+ * feature candidates is generated, and their responses on all datasets are precomputed and saved.
+ * Set the responseStore attribute in the forest settings to the working folder of this action,
+ * to train forests upon the store.
+ * <br><br>
+ * If the working folder already contains a store, its pool is kept and only the missing
+ * datasets are computed.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class BuildResponsesAction extends Action {
+
+	/**
+	 * Number of feature candidates in the pool
+	 */
+	private int poolSize;
+
+	/**
+	 *
+	 * @param workingFolder
+	 * @param settingsFile
+	 * @param dataFolder
+	 * @param poolSize
+	 */
+	public BuildResponsesAction(String workingFolder, String settingsFile, String dataFolder, int poolSize) {
+		this.workingFolder = workingFolder;
+		this.settingsFile = settingsFile;
+		this.dataFolder = dataFolder;
+		this.poolSize = poolSize;
+	}
+
+	/**
+	 * Builds the store.
+	 *
+	 * @throws Exception
+	 */
+	@Override
+	public void process(RuntimeMeasure m) throws Exception {
+		checkFolder(new File(dataFolder));
+
+		// Load Prerequisites
+		ForestParameters fparams = loadForestParams(m, settingsFile);
+		DataMeta dataMeta = DataMeta.load(dataFolder + File.separator + DATA_META_FILENAME);
+		BootstrapSampler<Dataset> sampler = loadTrainingData(m, dataMeta.transformParams);
+		Harmonics.init(OnOffMusicalRandomTree.NUM_OF_OVERTONES, dataMeta.transformParams.binsPerOctave);
+
+		// Create or open store
+		ResponseStore store = ResponseStore.create(workingFolder, fparams, poolSize);
+		m.measure(store.toString());
+
+		// Compute responses
+		int built = 0;
+		long bytes = 0;
+		for(int i=0; i<sampler.getPoolSize(); i++) {
+			TreeDataset2d dataset = (TreeDataset2d)sampler.get(i);
+			if (store.build(dataset)) {
+				built++;
+				bytes+= (long)store.getPoolSize() * dataset.getLength() * dataset.getHeight() * 4;
+				m.measure("Computed responses for dataset " + (i+1) + "/" + sampler.getPoolSize() + ": " + dataset.getDataFile().getName());
+			}
+			if (dataset instanceof OnOffMusicalTreeDataset) ((OnOffMusicalTreeDataset)dataset).release();
+		}
+
+		m.setSilent(false);
+		m.finalMessage("Finished computing responses of " + built + " datasets (" + (sampler.getPoolSize() - built) + " were up to date), " + (bytes / (1024 * 1024)) + " MB written, in");
+	}
+}
@@ -6,6 +6,7 @@ import java.io.File;
 import de.lmu.dbs.jforest.util.MeanShift;
 import de.lmu.dbs.jforest.core2d.Forest2d;
 import de.lmu.dbs.jforest.core2d.RandomTree2d;
+import de.lmu.dbs.jspectrum.TransformParameters;
 import de.lmu.dbs.jspectrum.util.ArrayToImage;
 import de.lmu.dbs.jspectrum.util.ArrayUtils;
 import de.lmu.dbs.jspectrum.util.LogScale;
@@ -61,12 +62,22 @@ public class ClassifyAction extends Action {
 	 */
 	public boolean saveImage;
 	
+	/**
+	 * Folder of the spectrum cache, or null to disable the cache. See class SpectrumCache.
+	 */
+	public String spectrumCacheLocation = null;
+	
+	/**
+	 * Maximum size of the spectrum cache in megabytes
+	 */
+	public double spectrumCacheSize = TransformParameters.DEFAULT_SPECTRUM_CACHE_SIZE;
+	
 	/**
 	 * 
 	 * @param in
 	 * @param outImg
 	 */
-	public ClassifyAction(String in, String workingFolder, String midiFile, double overrideThresholdOnset, double overrideThresholdOffset, int numberOfThreads, boolean saveImage) {
+	public ClassifyAction(String in, String workingFolder, String midiFile, double overrideThresholdOnset, double overrideThresholdOffset, int numberOfThreads, boolean saveImage, String spectrumCacheLocation, double spectrumCacheSize) {
 		this.classifyInput = in;
 		this.workingFolder = workingFolder;
 		this.midiFile = midiFile;
@@ -74,6 +85,8 @@ public class ClassifyAction extends Action {
 		this.overrideThresholdOffset = overrideThresholdOffset;
 		this.numberOfThreads = numberOfThreads;
 		this.saveImage = saveImage;
+		this.spectrumCacheLocation = spectrumCacheLocation;
+		this.spectrumCacheSize = spectrumCacheSize;
 	}
 	
 	/**
@@ -89,9 +102,9 @@ public class ClassifyAction extends Action {
 		// Transform and scale audio file
 		Scale scale = null;
 		if (meta.dataMeta.scaleParam > 0) scale = new LogScale(meta.dataMeta.scaleParam);
-		double[][] data = this.transformAudioFile(m, meta.dataMeta.transformParams, scale, classifyInput);
-		ArrayUtils.normalize(data, (double)Byte.MAX_VALUE-1);  
-		byte[][] byteData = ArrayUtils.toByteArray(data); 
+		meta.dataMeta.transformParams.spectrumCacheLocation = spectrumCacheLocation;
+		meta.dataMeta.transformParams.spectrumCacheSize = spectrumCacheSize;
+		byte[][] byteData = this.transformAudioFile(m, meta.dataMeta.transformParams, scale, classifyInput, (double)Byte.MAX_VALUE-1);
 
 		// Load forest
 		RandomTree2d treeFactory = new OnOffMusicalRandomTree(); 
@@ -148,8 +161,8 @@ public class ClassifyAction extends Action {
 		if (midiFile != null) {
 		    // Load MIDI file
 			MIDIAdapter ma = new MIDIAdapter(new File(midiFile));
-			long duration = MIDIAdapter.calculateDuration(data.length, meta.dataMeta.transformParams.step, meta.dataMeta.sampleRate);
-			reference = ma.toDataArray(data.length, 0, duration, meta.dataMeta.transformParams.frequencies, true);
+			long duration = MIDIAdapter.calculateDuration(byteData.length, meta.dataMeta.transformParams.step, meta.dataMeta.sampleRate);
+			reference = ma.toDataArray(byteData.length, 0, duration, meta.dataMeta.transformParams.frequencies, true);
 			ArrayUtils.shiftRight(reference, DEFAULT_REFERENCE_SHIFT);
 			m.measure("Loaded MIDI reference file: " + midiFile);
 			
@@ -171,8 +184,8 @@ public class ClassifyAction extends Action {
 		    m.measure(" --> Note Off Test: \n" + testOffs, true);
 
 		    // Test accuracy (MIDI)
-			duration = MIDIAdapter.calculateDuration(data.length, meta.dataMeta.transformParams.step, meta.dataMeta.sampleRate);
-		    newMidiData = newMidi.toDataArray(data.length, 0, duration, meta.dataMeta.transformParams.frequencies, true);
+			duration = MIDIAdapter.calculateDuration(byteData.length, meta.dataMeta.transformParams.step, meta.dataMeta.sampleRate);
+		    newMidiData = newMidi.toDataArray(byteData.length, 0, duration, meta.dataMeta.transformParams.frequencies, true);
 			
 		    refMidiOn = ArrayUtils.clone(newMidiData);
 			ArrayUtils.filterFirst(refMidiOn);
@@ -222,7 +235,7 @@ public class ClassifyAction extends Action {
 		    // Save image
 			String forestImgFile = workingFolder + File.separator + (new File(classifyInput)).getName() + ".png";
 			ArrayToImage img = new ArrayToImage(dataForest.length, dataForest[0].length);
-			System.out.println("-> Max data: " +  + img.add(data, Color.WHITE, null));
+			System.out.println("-> Max data: " +  + img.add(byteData, Color.WHITE, null));
 			//System.out.println("-> Max forest: " + img.add(dataForest, Color.RED, null, fThreshold));
 			//System.out.println("-> Max forestOff: " + img.add(dataForestOff, Color.GREEN, null, fThresholdOff));
 			//System.out.println("-> Max segmentation: " + img.addClassified(ms.segmentation));
@@ -1,23 +1,35 @@
 package de.lmu.dbs.musicalforest.actions;
 
 import java.awt.Color;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 import midiReference.MidiReference;
 
 import org.apache.commons.io.FileUtils;
 
-import de.lmu.dbs.jspectrum.ShortTimeConstantQTransform;
+import de.lmu.dbs.jforest.util.workergroup.ThreadScheduler;
 import de.lmu.dbs.jspectrum.ShortTimeTransform;
+import de.lmu.dbs.jspectrum.SpectrumCache;
 import de.lmu.dbs.jspectrum.TransformParameters;
 import de.lmu.dbs.jspectrum.util.ArrayToImage;
 import de.lmu.dbs.jspectrum.util.ArrayUtils;
+import de.lmu.dbs.jspectrum.util.AudioSource;
 import de.lmu.dbs.jspectrum.util.FileIO;
 import de.lmu.dbs.jspectrum.util.HammingWindow;
 import de.lmu.dbs.jspectrum.util.LogScale;
 import de.lmu.dbs.jspectrum.util.RuntimeMeasure;
-import de.lmu.dbs.jspectrum.util.Sample;
-import de.lmu.dbs.jspectrum.util.WaveSample;
+import de.lmu.dbs.jspectrum.util.SpectrumQuantizer;
 import de.lmu.dbs.jspectrum.util.Window;
 import de.lmu.dbs.musicalforest.Action;
 import de.lmu.dbs.musicalforest.classifier.DataMeta;
@@ -27,7 +39,13 @@ import de.lmu.dbs.musicalforest.util.ExtTools;
 
 /**
  * Generates data sets for training musical forests.
- * 
+ * <br><br>
+ * The datasets are generated in parallel by a pool of GenerateDataWorker threads. A manifest in the data
+ * folder records the content hash of the inputs of each dataset (MIDI file, WAV file and all options), so
+ * generating again into the same data folder skips the unchanged MIDI files and regenerates changed ones
+ * under their former names. The inputs are only hashed if their sizes or modification times differ from 
+ * the ones recorded in the manifest. The visualization images are optional and rendered by a separate worker.
+ *
  * For generating WAV files from MIDI with SoundFonts, an external tool is used: 
  * http://www.audiosoftstore.com/midi-to-mp3-converter-terminal.html
  * 
@@ -68,6 +86,24 @@ public class GenerateDataAction extends Action {
 	 */
 	public static final String FILE_SUFFIX_AUDIO = ".wav";
 
+	/**
+	 * File name of the manifest in the data folder. Each line holds the input hash, the input stamp, the
+	 * dataset name and the MIDI file path (relative to the source folder) of one dataset. Lines without
+	 * input stamp (older versions) are accepted, their inputs are hashed once.
+	 */
+	public static final String MANIFEST_FILENAME = "manifest.data";
+
+	/**
+	 * Minimum milliseconds between saving the manifest while generating. It is saved
+	 * again after all datasets are finished.
+	 */
+	public static final long MANIFEST_SAVE_INTERVAL = 30000;
+
+	/**
+	 * Milliseconds between the progress outputs while generating
+	 */
+	public static final long THREAD_POLLING_INTERVAL = 10000;
+
 	/**
 	 * MIDI source folder. All contained MIDI files (lower case extension .mid, .MID or others are ignored!)
 	 * will be parsed and WAV files will be created (if not existent beneath the MIDI file), then, CQT transformations are generated
@@ -97,11 +133,6 @@ public class GenerateDataAction extends Action {
 	 */
 	private ExtTools extTools = new ExtTools(System.out);
 	
-	/**
-	 * Transformation instance that does the CQT.
-	 */
-	private ShortTimeTransform transformation = null; 
-
 	/**
 	 * Transformation window function
 	 */
@@ -112,6 +143,16 @@ public class GenerateDataAction extends Action {
 	 */
 	private LogScale scale = null;
 	
+	/**
+	 * Converts the spectral data to the saved byte values, with scaling.
+	 */
+	private SpectrumQuantizer quantizer = null;
+	
+	/**
+	 * Cache of the quantized spectra, or null if no cache location is set.
+	 */
+	private SpectrumCache spectrumCache = null;
+	
 	/**
 	 * File IO for spectrum files.
 	 */
@@ -136,13 +177,138 @@ public class GenerateDataAction extends Action {
 	 * Just render MIDI, no audio or CQT files
 	 */
 	private boolean midi;
-	
+
 	/**
-	 * 
+	 * Number of datasets generated in parallel
+	 */
+	private int numOfThreads;
+
+	/**
+	 * Save the visualization images
+	 */
+	private boolean images;
+
+	/**
+	 * Number of threads used by each transformation and quantization
+	 */
+	private int threadsPerWorker = 1;
+
+	/**
+	 * Lowest MIDI note of the datasets
+	 */
+	private int minNote;
+
+	/**
+	 * Highest MIDI note of the datasets
+	 */
+	private int maxNote;
+
+	/**
+	 * Generated datasets by MIDI file path, see MANIFEST_FILENAME
+	 */
+	private Map<String, DatasetJob> manifest = new TreeMap<String, DatasetJob>();
+
+	/**
+	 * False if the data folder has no manifest yet. In this case, existing datasets are adopted by name.
+	 */
+	private boolean manifestFound = false;
+
+	/**
+	 * True if the manifest has changed since it has been loaded or saved
+	 */
+	private boolean manifestChanged = false;
+
+	/**
+	 * Time of the last manifest save (milliseconds)
+	 */
+	private long manifestSaved = 0;
+
+	/**
+	 * One MIDI file to generate a dataset from. Also used as manifest entry.
+	 *
+	 * @author Thomas Weber
+	 *
+	 */
+	public static class DatasetJob {
+
+		/**
+		 * MIDI source file, null for entries loaded from the manifest
+		 */
+		public File midiFile;
+
+		/**
+		 * Path of the MIDI file relative to the source folder
+		 */
+		public String path;
+
+		/**
+		 * Name of the dataset files (without suffix)
+		 */
+		public String basename;
+
+		/**
+		 * Content hash of the inputs, see getInputHash(File)
+		 */
+		public String hash;
+
+		/**
+		 * Sizes and modification times of the inputs, see getInputStamp(File). Null if unknown.
+		 */
+		public String stamp;
+
+		public DatasetJob(File midiFile, String path, String basename, String hash, String stamp) {
+			this.midiFile = midiFile;
+			this.path = path;
+			this.basename = basename;
+			this.hash = hash;
+			this.stamp = stamp;
+		}
+	}
+
+	/**
+	 * Visualization image of a dataset, waiting to be rendered.
+	 *
+	 * @author Thomas Weber
+	 *
+	 */
+	public static class ImageJob {
+
+		/**
+		 * The dataset
+		 */
+		public DatasetJob job;
+
+		/**
+		 * Spectral data
+		 */
+		public byte[][] data;
+
+		/**
+		 * MIDI reference data
+		 */
+		public byte[][] midiData;
+
+		/**
+		 * Image file
+		 */
+		public File imgFile;
+
+		public ImageJob(DatasetJob job, byte[][] data, byte[][] midiData, File imgFile) {
+			this.job = job;
+			this.data = data;
+			this.midiData = midiData;
+			this.imgFile = imgFile;
+		}
+	}
+
+	/**
+	 *
 	 * @param dataFolder
-	 * @throws Exception 
+	 * @param threads number of datasets generated in parallel, values lower than one use all available processors
+	 * @param images save the visualization images
+	 * @throws Exception
 	 */
-	public GenerateDataAction(String midiFolder, String dataFolder, String soundFont, String transformParamsFile, boolean stripPC, boolean stripControlMessages, boolean maximizeVelocities, double scaleParam, boolean midi) throws Exception {
+	public GenerateDataAction(String midiFolder, String dataFolder, String soundFont, String transformParamsFile, boolean stripPC, boolean stripControlMessages, boolean maximizeVelocities, double scaleParam, boolean midi, int threads, boolean images) throws Exception {
 		this.dataFolder = dataFolder;
 		this.sourceFolder = midiFolder;
 		this.soundFont = soundFont;
@@ -154,6 +320,8 @@ public class GenerateDataAction extends Action {
 			this.scale = new LogScale(scaleParam);
 		}
 		this.midi = midi;
+		this.numOfThreads = (threads < 1) ? Runtime.getRuntime().availableProcessors() : threads;
+		this.images = images;
 	}
 
 	/**
@@ -197,34 +365,54 @@ public class GenerateDataAction extends Action {
 		
 		// Get MIDI range
 		MidiReference midiRef = MidiReference.getMidiReference();
-		int minNote = midiRef.getNoteFromFrequency((float)params.fMin) + 1; 
-		int maxNote = midiRef.getNoteFromFrequency((float)params.fMax) - 1;
+		minNote = midiRef.getNoteFromFrequency((float)params.fMin) + 1;
+		maxNote = midiRef.getNoteFromFrequency((float)params.fMax) - 1;
 		m.measure(" --> Min MIDI note: " + minNote, true);
 		m.measure(" --> Max MIDI note: " + maxNote, true);
 
+		// Collect the MIDI files and skip the unchanged ones
+		loadManifest();
+		List<DatasetJob> jobs = new ArrayList<DatasetJob>();
+		Set<String> names = new HashSet<String>();
+		for(DatasetJob entry : manifest.values()) {
+			names.add(entry.basename);
+		}
+		int unchanged = collectDatasets(mf, mf, df, waveDir, jobs, names);
+		if (!manifestFound && unchanged > 0) {
+			m.measure(" --> No manifest found, adopted " + unchanged + " existing datasets", true);
+		}
+		if (manifestChanged) saveManifest();
+		m.measure(" --> Datasets to generate: " + jobs.size() + ", unchanged: " + unchanged, true);
+
 		// Process
-		int num = generateDatasets(m, params, mf, df, waveDir, minNote, maxNote);
-		
+		generateDatasets(m, jobs);
+
 		m.setSilent(false);
-		m.finalMessage("Finished generating " + num + " training datasets");
+		m.finalMessage("Finished generating " + jobs.size() + " training datasets, skipped " + unchanged + " unchanged datasets");
 	}
-	
+
 	/**
-	 * 
+	 * Returns a new transformation instance for one worker. The first call also initializes the
+	 * quantizer and the spectrum cache, and saves the data meta file (or checks it against an existing one).
+	 *
 	 * @param sampleRate
 	 * @return
 	 * @throws Exception
 	 */
-	public ShortTimeTransform getTransformation(double sampleRate) throws Exception {
-		if (transformation == null) {
+	public synchronized ShortTimeTransform getTransformation(double sampleRate) throws Exception {
+		ShortTimeTransform transformation = params.createTransformation(sampleRate);
+		transformation.setNumOfThreads(threadsPerWorker);
+		if (quantizer == null) {
 			// Init transformation
-			transformation = new ShortTimeConstantQTransform(sampleRate, params.fMin, params.fMax, params.binsPerOctave, params.threshold, params.spread, params.divideFFT, params.cqtKernelBufferLocation);
 			transformationWindow = new HammingWindow(transformation.getWindowSize());
+			quantizer = new SpectrumQuantizer(scale, Byte.MAX_VALUE);
+			quantizer.setNumOfThreads(threadsPerWorker);
+			spectrumCache = params.createSpectrumCache();
 			// Save meta file
 			params.frequencies = transformation.getFrequencies();
 			params.check();
 			double scaleParam = (scale != null) ? scale.getWidth() : 0;
-			
+
 			String filename = dataFolder + File.separator + DATA_META_FILENAME;
 			File mf = new File(filename);
 			DataMeta meta = new DataMeta(scaleParam, sampleRate, params);
@@ -238,48 +426,69 @@ public class GenerateDataAction extends Action {
 		}
 		return transformation;
 	}
-	
+
 	/**
-	 * Travel the directory recursively and generate test datasets from each 
-	 * MIDI file found on the way.
-	 * 
+	 * Travel the directory recursively and collect a job for each MIDI file found on the way,
+	 * except for the ones whose dataset is complete and whose inputs did not change. If the input 
+	 * stamp of a MIDI file matches its manifest entry, the recorded hash is used without reading the inputs.
+	 *
+	 * @param sourceFolderFile source folder, root of the manifest paths
+	 * @param midiFolderFile folder to search
+	 * @param dataFolderFile
+	 * @param audioFolderFile
+	 * @param jobs the jobs are added here
+	 * @param names dataset names already in use
+	 * @return number of unchanged datasets
+	 * @throws Exception
 	 */
-	private int generateDatasets(RuntimeMeasure m, TransformParameters params, final File midiFolderFile, final File dataFolderFile, final File audioFolderFile, int minNote, int maxNote) throws Exception {
+	private int collectDatasets(final File sourceFolderFile, final File midiFolderFile, final File dataFolderFile, final File audioFolderFile, List<DatasetJob> jobs, Set<String> names) throws Exception {
 		File[] files = midiFolderFile.listFiles();
 		int ret = 0;
 		for(int i=0; i<files.length; i++) {
 			File f = files[i];
 			if (f.getName() == "." || f.getName() == "..") continue;
-			if (f.isFile()) {
-				if (generateDataset(m, params, f, dataFolderFile, audioFolderFile, minNote, maxNote)) {
+			if (f.isFile() && f.getName().endsWith(FILE_SUFFIX_MIDI)) {
+				String path = sourceFolderFile.toURI().relativize(f.toURI()).getPath();
+				String stamp = getInputStamp(f);
+				DatasetJob entry = manifest.get(path);
+				String hash = (entry != null && stamp.equals(entry.stamp)) ? entry.hash : getInputHash(f);
+				if (entry != null && entry.hash.equals(hash) && isComplete(entry.basename, dataFolderFile, audioFolderFile)) {
+					if (!stamp.equals(entry.stamp)) {
+						// Touched, but unchanged inputs
+						entry.stamp = stamp;
+						manifestChanged = true;
+					}
 					ret++;
+					continue;
 				}
+				if (!manifestFound) {
+					// Data folder of an older version: Adopt the existing dataset with the same name
+					String name = getAdoptableName(f.getName().replace(FILE_SUFFIX_MIDI, ""), dataFolderFile, names);
+					if (name != null) {
+						manifest.put(path, new DatasetJob(f, path, name, hash, stamp));
+						manifestChanged = true;
+						ret++;
+						continue;
+					}
+				}
+				checkSoundFont(f);
+				String basename = (entry != null) ? entry.basename : getUniqueName(f.getName().replace(FILE_SUFFIX_MIDI, ""), dataFolderFile, names);
+				jobs.add(new DatasetJob(f, path, basename, hash, stamp));
 			}
 			if (f.isDirectory()) {
-				ret += generateDatasets(m, params, f, dataFolderFile, audioFolderFile, minNote, maxNote);
+				ret += collectDatasets(sourceFolderFile, f, dataFolderFile, audioFolderFile, jobs, names);
 			}
 		}
 		return ret;
 	}
 
 	/**
-	 * Generate a test set from one MIDI file.
-	 * 
-	 * @param m
-	 * @param midiFileSrc File to generate from (MIDI)
-	 * @param audioFolderFile folder to store evaluation visualizations
-	 * @return true if rendering was successful
-	 * @throws Exception 
+	 * Exits if the WAV file of a MIDI file has to be rendered, but no valid sound font is set.
+	 *
+	 * @param midiFileSrc
 	 */
-	private boolean generateDataset(RuntimeMeasure m, TransformParameters params, File midiFileSrc, File dataFolderFile, File audioFolderFile, int minNote, int maxNote) throws Exception {
-		if (!midiFileSrc.getName().endsWith(FILE_SUFFIX_MIDI)) return false;
-		String basename = midiFileSrc.getName().replace(FILE_SUFFIX_MIDI, "");
-
-		// Load MIDI file and save it to data folder
-		File midiFile = new File(dataFolderFile.getAbsolutePath() + File.separator + basename + FILE_SUFFIX_MIDI);
-		File wavRef = new File(midiFileSrc.getParent() + File.separator + basename + FILE_SUFFIX_AUDIO);
-		File wavFile = new File(audioFolderFile.getAbsolutePath() + File.separator + basename + FILE_SUFFIX_AUDIO);
-
+	private void checkSoundFont(File midiFileSrc) {
+		File wavRef = getWaveReference(midiFileSrc);
 		if (!midi && !wavRef.exists()) {
 			if (soundFont == null) {
 				System.err.println("Wave file " + wavRef.getAbsolutePath() + " not found, please specify sound font file to generate it");
@@ -291,18 +500,251 @@ public class GenerateDataAction extends Action {
 				System.exit(11);
 			}
 		}
-		
+	}
+
+	/**
+	 * Returns the WAV file beneath a MIDI file, which is used instead of rendering if it exists.
+	 *
+	 * @param midiFileSrc
+	 * @return
+	 */
+	private File getWaveReference(File midiFileSrc) {
+		String basename = midiFileSrc.getName().replace(FILE_SUFFIX_MIDI, "");
+		return new File(midiFileSrc.getParent() + File.separator + basename + FILE_SUFFIX_AUDIO);
+	}
+
+	/**
+	 * Returns the hash of all inputs of a dataset: The content of the MIDI file and its WAV file (if
+	 * existing), and all options and parameters that influence the generated files.
+	 *
+	 * @param midiFileSrc
+	 * @return
+	 * @throws Exception
+	 */
+	private String getInputHash(File midiFileSrc) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		SpectrumCache.update(md, midiFileSrc);
+		File wavRef = getWaveReference(midiFileSrc);
+		boolean render = !midi && !wavRef.exists();
+		if (!midi && !render) SpectrumCache.update(md, wavRef);
+		md.update(getOptionString(render).getBytes("UTF-8"));
+		return SpectrumCache.toHex(md.digest());
+	}
+
+	/**
+	 * Returns a cheap stamp of the inputs of a dataset: The sizes and modification times of the MIDI 
+	 * file and its WAV file (if used), and a hash of all options and parameters. If the stamp did not 
+	 * change, the inputs are assumed to be unchanged, see getInputHash(File).
+	 *
+	 * @param midiFileSrc
+	 * @return
+	 * @throws Exception
+	 */
+	private String getInputStamp(File midiFileSrc) throws Exception {
+		File wavRef = getWaveReference(midiFileSrc);
+		boolean render = !midi && !wavRef.exists();
+		String ret = midiFileSrc.length() + "," + midiFileSrc.lastModified();
+		if (!midi && !render) ret+= "," + wavRef.length() + "," + wavRef.lastModified();
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		md.update(getOptionString(render).getBytes("UTF-8"));
+		return ret + "," + SpectrumCache.toHex(md.digest());
+	}
+
+	/**
+	 * Returns all options and parameters that influence the generated files.
+	 *
+	 * @param render the WAV file is rendered with the sound font
+	 * @return
+	 */
+	private String getOptionString(boolean render) {
+		return "midi=" + midi
+				+ ";soundFont=" + (render ? soundFont : null)
+				+ ";stripPC=" + stripPC
+				+ ";stripControlMessages=" + stripControlMessages
+				+ ";maximizeVelocities=" + maximizeVelocities
+				+ ";minNote=" + minNote
+				+ ";maxNote=" + maxNote
+				+ ";scale=" + scale
+				+ ";" + SpectrumCache.getParameterString(params);
+	}
+
+	/**
+	 * Returns if all files of a dataset exist.
+	 *
+	 * @param basename
+	 * @param dataFolderFile
+	 * @param audioFolderFile
+	 * @return
+	 */
+	private boolean isComplete(String basename, File dataFolderFile, File audioFolderFile) {
+		if (!new File(dataFolderFile.getAbsolutePath() + File.separator + basename + FILE_SUFFIX_MIDI).exists()) return false;
+		if (midi) return true;
+		if (!new File(dataFolderFile.getAbsolutePath() + File.separator + basename + FILE_SUFFIX_CQT).exists()) return false;
+		if (images && !new File(audioFolderFile.getAbsolutePath() + File.separator + basename + FILE_SUFFIX_IMAGE).exists()) return false;
+		return true;
+	}
+
+	/**
+	 * Returns the name of an existing dataset generated without manifest, which can be adopted
+	 * for a MIDI file, or null. Older versions postfixed the names of files with identical names
+	 * in the order of traversal (see getUniqueName()), so the first name not adopted yet is used.
+	 * The MIDI file and (if needed) the spectrum of the dataset have to exist. The name is added to names.
+	 *
+	 * @param basename
+	 * @param dataFolderFile
+	 * @param names dataset names already in use
+	 * @return
+	 */
+	private String getAdoptableName(String basename, File dataFolderFile, Set<String> names) {
+		String ret = basename;
 		int i=2;
-		String bn2 = null;
-		while (midiFile.exists()) {
-			bn2 = basename + "_" + i;
-			midiFile = new File(dataFolderFile.getAbsolutePath() + File.separator + bn2 + FILE_SUFFIX_MIDI);
+		while (names.contains(ret)) {
+			ret = basename + "_" + i;
 			i++;
 		}
-		if (bn2 != null) {
-			basename = bn2;
+		if (!new File(dataFolderFile.getAbsolutePath() + File.separator + ret + FILE_SUFFIX_MIDI).exists()) return null;
+		if (!midi && !new File(dataFolderFile.getAbsolutePath() + File.separator + ret + FILE_SUFFIX_CQT).exists()) return null;
+		names.add(ret);
+		return ret;
+	}
+
+	/**
+	 * Returns a dataset name which is neither used by another dataset nor by existing files,
+	 * by postfixing an index if necessary. The name is added to names.
+	 *
+	 * @param basename
+	 * @param dataFolderFile
+	 * @param names dataset names already in use
+	 * @return
+	 */
+	private String getUniqueName(String basename, File dataFolderFile, Set<String> names) {
+		String ret = basename;
+		int i=2;
+		while (names.contains(ret) || new File(dataFolderFile.getAbsolutePath() + File.separator + ret + FILE_SUFFIX_MIDI).exists()) {
+			ret = basename + "_" + i;
+			i++;
 		}
-		
+		names.add(ret);
+		return ret;
+	}
+
+	/**
+	 * Loads the manifest of the data folder, if existing.
+	 *
+	 * @throws Exception
+	 */
+	private void loadManifest() throws Exception {
+		File file = new File(dataFolder + File.separator + MANIFEST_FILENAME);
+		if (!file.exists()) return;
+		manifestFound = true;
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.length() == 0) continue;
+				String[] e = line.split("\t", 4);
+				if (e.length == 3) {
+					// No input stamp
+					manifest.put(e[2], new DatasetJob(null, e[2], e[1], e[0], null));
+					continue;
+				}
+				if (e.length != 4) throw new Exception("Invalid line in manifest " + file.getAbsolutePath() + ": " + line);
+				manifest.put(e[3], new DatasetJob(null, e[3], e[2], e[0], e[1]));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Records a generated dataset in the manifest. The manifest is saved at most every 
+	 * MANIFEST_SAVE_INTERVAL milliseconds, so an interrupted generation keeps nearly all 
+	 * datasets finished until then, without rewriting the whole manifest for each dataset.
+	 *
+	 * @param job
+	 * @throws Exception
+	 */
+	public synchronized void datasetFinished(DatasetJob job) throws Exception {
+		manifest.put(job.path, job);
+		manifestChanged = true;
+		if (System.currentTimeMillis() - manifestSaved >= MANIFEST_SAVE_INTERVAL) saveManifest();
+	}
+
+	/**
+	 * Saves the manifest. It is written to a temporary file first, so it is never left incomplete.
+	 *
+	 * @throws Exception
+	 */
+	private synchronized void saveManifest() throws Exception {
+		File file = new File(dataFolder + File.separator + MANIFEST_FILENAME);
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		PrintWriter out = new PrintWriter(new FileWriter(tmp));
+		try {
+			for(DatasetJob entry : manifest.values()) {
+				out.println(entry.hash + "\t" + entry.stamp + "\t" + entry.basename + "\t" + entry.path);
+			}
+		} finally {
+			out.close();
+		}
+		file.delete();
+		if (!tmp.renameTo(file)) throw new Exception("Could not write manifest file: " + file.getAbsolutePath());
+		manifestChanged = false;
+		manifestSaved = System.currentTimeMillis();
+	}
+
+	/**
+	 * Generates the datasets with a pool of numOfThreads workers, plus one worker
+	 * for the images if enabled.
+	 *
+	 * @param m
+	 * @param jobs
+	 * @throws Exception
+	 */
+	private void generateDatasets(RuntimeMeasure m, List<DatasetJob> jobs) throws Exception {
+		if (jobs.size() == 0) return;
+		int workers = Math.min(numOfThreads, jobs.size());
+		threadsPerWorker = Math.max(1, Runtime.getRuntime().availableProcessors() / workers);
+		boolean imageWorker = images && !midi;
+
+		ThreadScheduler ts = new ThreadScheduler(workers + (imageWorker ? 1 : 0));
+		synchronized(ts) {
+			GenerateDataWorkerGroup group = new GenerateDataWorkerGroup(ts, this, jobs, workers, workers, THREAD_POLLING_INTERVAL, true);
+			for(int i=0; i<workers; i++) {
+				group.add(new GenerateDataWorker(group, m));
+			}
+			if (imageWorker) group.add(new GenerateImageWorker(group, m));
+			try {
+				group.runGroup();
+			} finally {
+				// Record the datasets finished since the last save, also on errors
+				synchronized(this) {
+					if (manifestChanged) saveManifest();
+				}
+			}
+			if (group.getError() != null) throw group.getError();
+		}
+	}
+
+	/**
+	 * Generate a test set from one MIDI file.
+	 *
+	 * @param m
+	 * @param job MIDI file to generate from, and the dataset name
+	 * @param worker the calling worker
+	 * @return the visualization image to save, or null if there is none
+	 * @throws Exception
+	 */
+	public ImageJob generateDataset(RuntimeMeasure m, DatasetJob job, GenerateDataWorker worker) throws Exception {
+		File midiFileSrc = job.midiFile;
+		String basename = job.basename;
+		File dataFolderFile = new File(dataFolder);
+		File audioFolderFile = new File(dataFolderFile.getAbsolutePath() + File.separator + IMG_FOLDER_NAME);
+
+		// Load MIDI file and save it to data folder
+		File midiFile = new File(dataFolderFile.getAbsolutePath() + File.separator + basename + FILE_SUFFIX_MIDI);
+		File wavRef = getWaveReference(midiFileSrc);
+		File wavFile = new File(audioFolderFile.getAbsolutePath() + File.separator + basename + FILE_SUFFIX_AUDIO);
+
 		MIDIAdapter midiSrc = new MIDIAdapter(midiFileSrc);
 		midiSrc.limitBandwidth(minNote, maxNote);
 		
@@ -324,7 +766,7 @@ public class GenerateDataAction extends Action {
 		midiSrc.writeFile(midiFile);
 		m.measure(" --> Copied MIDI reference to " + midiFile.getName());
 		
-		if (midi) return true;
+		if (midi) return null;
 		
 		// Render WAV file with external tool (to audio folder)
 		if (wavRef.exists()) {
@@ -340,35 +782,64 @@ public class GenerateDataAction extends Action {
 		}
 		
 		// Constant Q Transform
-		Sample src = new WaveSample(wavFile);
-		int[] mono = src.getMono();
-		double[][] data = getTransformation((double)src.getSampleRate()).calculate(mono, params.step, transformationWindow);
-		if (scale != null) {
-			ArrayUtils.normalize(data);
-			ArrayUtils.scale(data, scale);
-			//m.measure(" --> Scaled CQT data by " + scale.toString(), true);
+		AudioSource src = params.openAudioSource(wavFile);
+		byte[][] byteData;
+		try {
+			if (worker.transformation == null) worker.transformation = getTransformation(src.getSampleRate());
+			ShortTimeTransform t = worker.transformation;
+			String key = null;
+			SpectrumCache.Spectrum cached = null;
+			if (spectrumCache != null) {
+				key = spectrumCache.getKey(wavFile, params, scale, Byte.MAX_VALUE);
+				cached = spectrumCache.load(key);
+			}
+			if (cached != null) {
+				byteData = cached.data;
+				m.measure(" --> Loaded CQT from spectrum cache");
+			} else {
+				// Normalize, scale and convert to bytes, by the maximum tracked in the transformation
+				if (params.floatPrecision) {
+					float[][] data = t.calculateFloat(src, params.step, transformationWindow);
+					byteData = quantizer.quantize(data, t.getMaximum());
+				} else {
+					double[][] data = t.calculate(src, params.step, transformationWindow);
+					byteData = quantizer.quantize(data, t.getMaximum());
+				}
+				if (spectrumCache != null) spectrumCache.save(key, params.frequencies, byteData);
+			}
+		} finally {
+			src.close();
 		}
-		ArrayUtils.normalize(data, (double)Byte.MAX_VALUE);
-		byte[][] byteData = ArrayUtils.toByteArray(data);
 		File cqtFile = new File(dataFolderFile.getAbsolutePath() + File.separator + basename + FILE_SUFFIX_CQT);
 		cqtIo.save(cqtFile.getAbsolutePath(), byteData);
 		if (!cqtFile.exists() || !cqtFile.isFile()) throw new Exception("Error generating CQT file: " + cqtFile.getAbsolutePath());
 		m.measure(" --> Saved CQT to file " + cqtFile.getName());
 		
-		// Save additional images containing the spectrum and MIDI visually for evaluation (to eval folder)
-		long duration = MIDIAdapter.calculateDuration(data.length, params.step, (double)src.getSampleRate()); // Audio length in milliseconds
-		byte[][] midiData = midiSrc.toDataArray(data.length, 0, duration, params.frequencies, true);
+		m.measure(" -----> Generated Dataset from MIDI file " + midiFileSrc.getName(), true);
+		if (!images) return null;
+
+		// Additional image containing the spectrum and MIDI visually for evaluation (to eval folder)
+		long duration = MIDIAdapter.calculateDuration(byteData.length, params.step, src.getSampleRate()); // Audio length in milliseconds
+		byte[][] midiData = midiSrc.toDataArray(byteData.length, 0, duration, params.frequencies, true);
 		ArrayUtils.shiftRight(midiData, DEFAULT_REFERENCE_SHIFT);
 		File imgFile = new File(audioFolderFile.getAbsolutePath() + File.separator + basename + FILE_SUFFIX_IMAGE);
-		ArrayToImage img = new ArrayToImage(data.length, data[0].length, 1);
-		img.add(byteData, Color.WHITE, null);
-		img.add(midiData, Color.GREEN, null, 0);
-		img.save(imgFile);
-		if (!imgFile.exists() || !imgFile.isFile()) throw new Exception("Error generating visualization file: " + imgFile.getAbsolutePath());
-		m.measure(" --> Saved image to " + imgFile.getName());
-		
-		m.measure(" -----> Generated Dataset from MIDI file " + midiFileSrc.getName(), true);
-		return true;
+		return new ImageJob(job, byteData, midiData, imgFile);
+	}
+
+	/**
+	 * Saves the visualization image of a dataset.
+	 *
+	 * @param m
+	 * @param image
+	 * @throws Exception
+	 */
+	public void saveImage(RuntimeMeasure m, ImageJob image) throws Exception {
+		ArrayToImage img = new ArrayToImage(image.data.length, image.data[0].length, 1);
+		img.add(image.data, Color.WHITE, null);
+		img.add(image.midiData, Color.GREEN, null, 0);
+		img.save(image.imgFile);
+		if (!image.imgFile.exists() || !image.imgFile.isFile()) throw new Exception("Error generating visualization file: " + image.imgFile.getAbsolutePath());
+		m.measure(" --> Saved image to " + image.imgFile.getName());
 	}
 
 }
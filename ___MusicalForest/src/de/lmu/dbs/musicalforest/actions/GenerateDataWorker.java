@@ -0,0 +1,53 @@
+package de.lmu.dbs.musicalforest.actions;
+
+import de.lmu.dbs.jforest.util.workergroup.Worker;
+import de.lmu.dbs.jspectrum.ShortTimeTransform;
+import de.lmu.dbs.jspectrum.util.RuntimeMeasure;
+import de.lmu.dbs.musicalforest.actions.GenerateDataAction.DatasetJob;
+import de.lmu.dbs.musicalforest.actions.GenerateDataAction.ImageJob;
+
+/**
+ * Worker for parallel dataset generation. Takes jobs from its group until there are no more left,
+ * and passes the visualization images to the image worker of the group.
+ * Each worker has its own transformation instance, as some transformations keep state
+ * while calculating.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class GenerateDataWorker extends Worker {
+
+	private GenerateDataWorkerGroup group;
+
+	private RuntimeMeasure m;
+
+	/**
+	 * Transformation of this worker, created with the first audio file
+	 */
+	public ShortTimeTransform transformation = null;
+
+	public GenerateDataWorker(GenerateDataWorkerGroup parent, RuntimeMeasure m) {
+		super(parent);
+		this.group = parent;
+		this.m = m;
+	}
+
+	@Override
+	public void work() throws Exception {
+		try {
+			DatasetJob job;
+			while((job = group.nextJob()) != null) {
+				ImageJob image = group.getAction().generateDataset(m, job, this);
+				if (image != null) {
+					group.putImage(image);
+				} else {
+					group.jobFinished(job);
+				}
+			}
+		} catch (Exception e) {
+			group.setError(e);
+		} finally {
+			group.workerFinished();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package de.lmu.dbs.musicalforest.actions;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import de.lmu.dbs.jforest.util.workergroup.ThreadScheduler;
+import de.lmu.dbs.jforest.util.workergroup.WorkerGroup;
+import de.lmu.dbs.musicalforest.actions.GenerateDataAction.DatasetJob;
+import de.lmu.dbs.musicalforest.actions.GenerateDataAction.ImageJob;
+
+/**
+ * Worker group to generate datasets in parallel. The dataset workers take the jobs one by one
+ * from a shared list, so long and short files are balanced among them. Visualization images are
+ * passed to an image worker by a bounded queue: If the images are rendered slower than the
+ * datasets are generated, the dataset workers wait instead of piling up spectra in memory.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class GenerateDataWorkerGroup extends WorkerGroup {
+
+	/**
+	 * The action which generates the datasets
+	 */
+	private GenerateDataAction action;
+
+	/**
+	 * Jobs to process
+	 */
+	private List<DatasetJob> jobs;
+
+	/**
+	 * Index of the next job to hand out
+	 */
+	private int nextJob = 0;
+
+	/**
+	 * Number of finished jobs
+	 */
+	private int finishedJobs = 0;
+
+	/**
+	 * Number of dataset workers which have not finished yet
+	 */
+	private int activeWorkers;
+
+	/**
+	 * Images waiting to be rendered
+	 */
+	private BlockingQueue<ImageJob> images;
+
+	/**
+	 * Queue entry which tells the image worker that no more images will follow
+	 */
+	private static final ImageJob END_OF_IMAGES = new ImageJob(null, null, null, null);
+
+	/**
+	 * First error occurred in a worker, or null
+	 */
+	private Exception error = null;
+
+	/**
+	 *
+	 * @param scheduler
+	 * @param action
+	 * @param jobs
+	 * @param numOfWorkers number of dataset workers
+	 * @param imageQueueSize maximum number of images waiting to be rendered
+	 * @param waitTime
+	 * @param verbose
+	 */
+	public GenerateDataWorkerGroup(ThreadScheduler scheduler, GenerateDataAction action, List<DatasetJob> jobs, int numOfWorkers, int imageQueueSize, long waitTime, boolean verbose) {
+		super(scheduler, waitTime, verbose);
+		this.action = action;
+		this.jobs = jobs;
+		this.activeWorkers = numOfWorkers;
+		this.images = new ArrayBlockingQueue<ImageJob>(imageQueueSize);
+	}
+
+	/**
+	 * Returns the action which generates the datasets.
+	 *
+	 * @return
+	 */
+	public GenerateDataAction getAction() {
+		return action;
+	}
+
+	/**
+	 * Returns the next job, or null if all jobs have been handed out or an error occurred.
+	 *
+	 * @return
+	 */
+	public synchronized DatasetJob nextJob() {
+		if (error != null || nextJob >= jobs.size()) return null;
+		return jobs.get(nextJob++);
+	}
+
+	/**
+	 * Marks a job as finished and records it in the manifest of the action.
+	 *
+	 * @param job
+	 * @throws Exception
+	 */
+	public void jobFinished(DatasetJob job) throws Exception {
+		action.datasetFinished(job);
+		synchronized(this) {
+			finishedJobs++;
+		}
+	}
+
+	/**
+	 * Queues an image for rendering. Waits while the queue is full.
+	 *
+	 * @param image
+	 * @throws Exception
+	 */
+	public void putImage(ImageJob image) throws Exception {
+		images.put(image);
+	}
+
+	/**
+	 * Returns the next image to render. Waits while the queue is empty, and returns null
+	 * after all dataset workers finished and all images have been taken.
+	 *
+	 * @return
+	 * @throws Exception
+	 */
+	public ImageJob takeImage() throws Exception {
+		ImageJob ret = images.take();
+		return (ret == END_OF_IMAGES) ? null : ret;
+	}
+
+	/**
+	 * Called by each dataset worker when it takes no more jobs.
+	 *
+	 * @throws Exception
+	 */
+	public void workerFinished() throws Exception {
+		boolean last;
+		synchronized(this) {
+			activeWorkers--;
+			last = (activeWorkers == 0);
+		}
+		if (last) images.put(END_OF_IMAGES);
+	}
+
+	/**
+	 * Records an error of a worker. No more jobs are handed out afterwards.
+	 *
+	 * @param e
+	 */
+	public synchronized void setError(Exception e) {
+		if (error == null) error = e;
+	}
+
+	/**
+	 * Returns the first error occurred in a worker, or null.
+	 *
+	 * @return
+	 */
+	public synchronized Exception getError() {
+		return error;
+	}
+
+	@Override
+	public void printStats() throws Exception {
+		int finished;
+		synchronized(this) {
+			finished = finishedJobs;
+		}
+		double progress = (double)finished / jobs.size();
+		String eta = (finished > 0) ? (int)getEtaMinutes(progress, startTime) + " min" : "unknown";
+		System.out.println(
+				timeStampFormatter.format(new Date()) + ": Generation Threads: " + getScheduler().getThreadsActive() + ", Datasets: " + finished + " of " + jobs.size() + ", ETA: " + eta + "; " +
+				"Heap: " + getHeapMB() + " MB"
+		);
+	}
+
+}
@@ -0,0 +1,40 @@
+package de.lmu.dbs.musicalforest.actions;
+
+import de.lmu.dbs.jforest.util.workergroup.Worker;
+import de.lmu.dbs.jspectrum.util.RuntimeMeasure;
+import de.lmu.dbs.musicalforest.actions.GenerateDataAction.ImageJob;
+
+/**
+ * Worker which renders the visualization images queued by the dataset workers
+ * of its group, until all dataset workers have finished.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class GenerateImageWorker extends Worker {
+
+	private GenerateDataWorkerGroup group;
+
+	private RuntimeMeasure m;
+
+	public GenerateImageWorker(GenerateDataWorkerGroup parent, RuntimeMeasure m) {
+		super(parent);
+		this.group = parent;
+		this.m = m;
+	}
+
+	@Override
+	public void work() throws Exception {
+		ImageJob image;
+		while((image = group.takeImage()) != null) {
+			// Keep taking images after an error, so that no dataset worker waits forever
+			if (group.getError() != null) continue;
+			try {
+				group.getAction().saveImage(m, image);
+				group.jobFinished(image.job);
+			} catch (Exception e) {
+				group.setError(e);
+			}
+		}
+	}
+}
@@ -44,14 +44,14 @@ public class SpectrumAction extends Action {
 		if (scaleParam >= 0) {
 			scale = new LogScale(scaleParam); 
 		}
-		double[][] data = this.transformAudioFile(m, tparams, scale, audioFile);
+		byte[][] data = this.transformAudioFile(m, tparams, scale, audioFile, Byte.MAX_VALUE);
 
 		ArrayToImage img = new ArrayToImage(data.length, data[0].length); 
 		img.add(data, Color.WHITE, null);
 
 		if (midiFile != null) {
 			MIDIAdapter ma = new MIDIAdapter(new File(midiFile));
-			long duration = MIDIAdapter.calculateDuration(data.length, tparams.step, (double)this.audioSample.getSampleRate());
+			long duration = MIDIAdapter.calculateDuration(data.length, tparams.step, this.audioSource.getSampleRate());
 			byte[][] midi = ma.toDataArray(data.length, 0, duration, tparams.frequencies, true);
 			ArrayUtils.shiftRight(midi, DEFAULT_REFERENCE_SHIFT);
 			img.add(midi, Color.BLUE, null, 0);
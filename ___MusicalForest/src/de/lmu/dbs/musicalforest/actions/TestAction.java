@@ -68,7 +68,7 @@ public class TestAction extends Action {
 		float[][][][] classifications = new float[sampler.getPoolSize()][][][];
 		for(int i=0; i<sampler.getPoolSize(); i++) {
 			TreeDataset2d dataset = (TreeDataset2d)sampler.get(i);
-			byte[][] data = (byte[][])dataset.getData();
+			Object data = dataset.getData(); // byte[][] or Spectrogram, classified without copying
 			System.out.println("Classifying dataset " + (i+1) + "/ " + sampler.getPoolSize() + ":");
 			classifications[i] = forest.classify2d(data, numOfThreads, true, meta.maxDepth);
 		}
@@ -100,7 +100,7 @@ public class TestAction extends Action {
 		    msOff.process(dataForestOffset, (float)meta.bestOffsetThreshold);
 		    
 		    // Accuracy test (forest)
-			byte[][] reference = (byte[][])dataset.getReference();
+			byte[][] reference = dataset.getReferenceArray();
 
 			// Separate ons and offs in classification output
 			byte[][] refOn = ArrayUtils.clone(reference);
@@ -143,6 +143,9 @@ public class TestAction extends Action {
 
 			testMidiOn.addData(refMidiOn, refOn);
 			testMidiOff.addData(refMidiOff, refOff);
+			
+			// Drop the data and the array copy of the reference
+			dataset.release();
 		}		
 		m.measure("Finished mean shift detection and accuracy testing of " + sampler.getPoolSize() + " datasets");
 		
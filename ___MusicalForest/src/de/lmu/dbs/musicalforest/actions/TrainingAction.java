@@ -1,15 +1,22 @@
 package de.lmu.dbs.musicalforest.actions;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import de.lmu.dbs.jforest.core.Dataset;
 import de.lmu.dbs.jforest.core.ForestParameters;
+import de.lmu.dbs.jforest.core2d.Forest2d;
+import de.lmu.dbs.jforest.core2d.OutOfBagEstimate2d;
 import de.lmu.dbs.jforest.sampler.BootstrapSampler;
 import de.lmu.dbs.jspectrum.util.RuntimeMeasure;
 import de.lmu.dbs.musicalforest.Action;
+import de.lmu.dbs.musicalforest.classifier.CorpusStore;
 import de.lmu.dbs.musicalforest.classifier.DataMeta;
 import de.lmu.dbs.musicalforest.classifier.ForestMeta;
 import de.lmu.dbs.musicalforest.classifier.OnOffMusicalRandomTree;
+import de.lmu.dbs.musicalforest.classifier.OnOffMusicalTreeDataset;
+import de.lmu.dbs.musicalforest.optimizer.Optimizer;
 import de.lmu.dbs.musicalforest.util.Harmonics;
 
 /**
@@ -36,6 +43,21 @@ public class TrainingAction extends Action {
 	 */
 	private int nodeThreadingThreshold;
 	
+	/**
+	 * Folder of the off heap corpus store, or null to hold the training data in the heap
+	 */
+	private String corpusFolder = null;
+	
+	/**
+	 * Mapping limit of the corpus store in bytes, zero for no limit. See CorpusStore.
+	 */
+	private long corpusMapLimit = 0;
+	
+	/**
+	 * Folder of a prior forest for the adaptive feature proposal, or null
+	 */
+	private String priorFolder = null;
+	
 	/**
 	 * 
 	 * @param workingFolder
@@ -57,6 +79,28 @@ public class TrainingAction extends Action {
 		this.nodeThreadingThreshold = nodeThreshold;
 	}
 	
+	/**
+	 * Sets the off heap corpus store parameters (without calling this, the training
+	 * data is held in the Java heap).
+	 * 
+	 * @param folder corpus store folder
+	 * @param mapLimit mapping limit in bytes, zero for no limit
+	 */
+	public void setCorpusParams(String folder, long mapLimit) {
+		this.corpusFolder = folder;
+		this.corpusMapLimit = mapLimit;
+	}
+	
+	/**
+	 * Sets a prior forest, whose split features initialize the adaptive feature
+	 * proposal statistics (see ForestParameters.adaptiveProposal).
+	 * 
+	 * @param folder forest folder
+	 */
+	public void setPriorForest(String folder) {
+		this.priorFolder = folder;
+	}
+	
 	/**
 	 * Trains a forest upon test data.
 	 * 
@@ -66,21 +110,35 @@ public class TrainingAction extends Action {
 	public void process(RuntimeMeasure m) throws Exception {
 		m.measure("Java Heap size (maximum): " + ((double)Runtime.getRuntime().maxMemory() / (1024*1024)) + " MB");
 		checkFolder(new File(dataFolder));
+		if (corpusFolder != null) {
+			OnOffMusicalTreeDataset.setCorpusStore(new CorpusStore(new File(corpusFolder), corpusMapLimit));
+			m.measure("Using off heap corpus store: " + OnOffMusicalTreeDataset.getCorpusStore());
+		}
 
 		// Load Prerequisites
 		ForestParameters fparams = loadForestParams(m, settingsFile);
 		DataMeta dataMeta = DataMeta.load(dataFolder + File.separator + DATA_META_FILENAME);
 		BootstrapSampler<Dataset> sampler = loadTrainingData(m, dataMeta.transformParams);
 		
+		// Load prior forest
+		Forest2d prior = null;
+		if (priorFolder != null) {
+			checkFolder(new File(priorFolder));
+			prior = new Forest2d();
+			prior.load(priorFolder + File.separator + NODEDATA_FILE_PREFIX, OnOffMusicalRandomTree.NUM_OF_CLASSES, new OnOffMusicalRandomTree());
+			m.measure("Loaded prior forest from " + priorFolder);
+		}
+		
 		// Create result folder
 		createWorkingFolder(m);
 
 		// Grow forest
 		Harmonics.init(OnOffMusicalRandomTree.NUM_OF_OVERTONES, dataMeta.transformParams.binsPerOctave);
-		growForest(m, fparams, sampler, maxNumOfEvalThreads, maxNumOfNodeThreads, nodeThreadingThreshold);
+		Forest2d forest = growForest(m, fparams, sampler, maxNumOfEvalThreads, maxNumOfNodeThreads, nodeThreadingThreshold, prior);
+		if (corpusFolder != null) m.measure(OnOffMusicalTreeDataset.getCorpusStore().toString());
 		
 		/*
-		Forest2d forest = growForest(m, fparams, sampler, maxNumOfEvalThreads, maxNumOfNodeThreads, nodeThreadingThreshold);
+		Forest2d forest = growForest(m, fparams, sampler, maxNumOfEvalThreads, maxNumOfNodeThreads, nodeThreadingThreshold, prior);
 		
 		// Calculate optimal thresholds
 		int binsPerHalftone = dataMeta.transformParams.getBinsPerHalfTone();
@@ -92,8 +150,47 @@ public class TrainingAction extends Action {
 		ForestMeta meta = new ForestMeta();
 		meta.forestParams = fparams;
 		meta.dataMeta = dataMeta;
+		
+		// Out-of-bag validation and initial thresholds
+		OutOfBagEstimate2d oob = forest.getOutOfBagEstimate();
+		boolean thresholds = false;
+		if (oob != null) {
+			m.measure(oob.getStatsString(), true);
+			// The accuracy tests work on neighbouring frames, so each contiguous segment of 
+			// covered frames is passed as a separate classification of its dataset
+			List<Dataset> segmentDatasets = new ArrayList<Dataset>();
+			List<float[][][]> posteriors = new ArrayList<float[][][]>();
+			List<byte[][]> references = new ArrayList<byte[][]>();
+			for(int i=0; i<oob.getPoolSize(); i++) {
+				List<int[]> segments = oob.getCoveredSegments(i, 2 * TEST_TIME_WINDOW + 1);
+				for(int s=0; s<segments.size(); s++) {
+					segmentDatasets.add(sampler.getData().get(i));
+					posteriors.add(oob.getPosteriors(i, segments.get(s)));
+					references.add(oob.getReference(i, segments.get(s)));
+				}
+			}
+			if (segmentDatasets.size() == 0) {
+				m.measure(" -> No out-of-bag segment of at least " + (2 * TEST_TIME_WINDOW + 1) + " frames, grow more trees or use the update action to get the thresholds", true);
+			} else {
+				m.measure(" -> Out-of-bag threshold search on " + segmentDatasets.size() + " covered segments", true);
+				int binsPerHalftone = dataMeta.transformParams.getBinsPerHalfTone();
+				Optimizer tc = new Optimizer(THRESHOLD_ANALYSIS_GRANULARITY, TEST_TIME_WINDOW, binsPerHalftone, binsPerHalftone, -1);
+				ForestMeta metaT = tc.optimize(forest, segmentDatasets, posteriors.toArray(new float[0][][][]), references.toArray(new byte[0][][]));
+				meta.bestOnsetThreshold = metaT.bestOnsetThreshold;
+				meta.bestOffsetThreshold = metaT.bestOffsetThreshold;
+				meta.bestOnsetThresholdTest = metaT.bestOnsetThresholdTest;
+				meta.bestOffsetThresholdTest = metaT.bestOffsetThresholdTest;
+				meta.noteLengthDistribution = metaT.noteLengthDistribution;
+				meta.noteLengthAvg = metaT.noteLengthAvg;
+				m.measure(" -> Out-of-bag Onset Test: \n" + meta.bestOnsetThresholdTest, true);
+				m.measure(" -> Out-of-bag Offset Test: \n" + meta.bestOffsetThresholdTest, true);
+				m.measure(" -> Best Onset threshold: " + meta.bestOnsetThreshold, true);
+				m.measure(" -> Best Offset threshold: " + meta.bestOffsetThreshold, true);
+				thresholds = true;
+			}
+		}
 		String mf = workingFolder + File.separator + FOREST_META_FILENAME;
-		meta.save(mf, true);
+		meta.save(mf, !thresholds);
 		m.measure("Finished generating meta data to " + mf);
 		
 		/*
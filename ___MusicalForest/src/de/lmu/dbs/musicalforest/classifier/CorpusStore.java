@@ -0,0 +1,220 @@
+package de.lmu.dbs.musicalforest.classifier;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import de.lmu.dbs.jforest.core2d.Spectrogram;
+
+/**
+ * Off heap store for the training corpus. The data and reference planes of each dataset are
+ * converted once to spectrogram files in the corpus folder, and are memory mapped from there
+ * afterwards. So the planes never occupy the Java heap, the operating system pages them in and
+ * out as needed.
+ * <br><br>
+ * The store also keeps track of the mapped datasets in least recently used order (an LRU list of
+ * handles). If the mapped bytes exceed the mapping limit, the least recently used datasets are 
+ * released, that is they drop their references to the mappings. Released datasets are mapped again 
+ * when they are used the next time.
+ * <br><br>
+ * Note that the mapping limit does not bound the memory used: Which pages of the mappings are resident
+ * is decided by the operating system, and Java unmaps a released mapping only when the garbage collector
+ * collects its buffer. Heap copies of the planes, created by Spectrogram.toArray() for code which does 
+ * not access spectrograms directly, are not counted either. They are dropped together with the 
+ * mapping when their dataset is released. The limit mainly bounds the number of mappings and the
+ * address space held at once.
+ *
+ * @author Thomas Weber
+ *
+ */
+public class CorpusStore {
+
+	/**
+	 * File suffix for data planes
+	 */
+	public static final String FILE_SUFFIX_DATA = ".corpus_data";
+
+	/**
+	 * File suffix for reference planes
+	 */
+	public static final String FILE_SUFFIX_REFERENCE = ".corpus_ref";
+
+	/**
+	 * Folder holding the plane files
+	 */
+	private File folder;
+
+	/**
+	 * Mapping limit in bytes. Zero or less means no limit.
+	 */
+	private long mapLimit;
+
+	/**
+	 * Mapped datasets with their plane sizes in bytes, in access order
+	 */
+	private LinkedHashMap<OnOffMusicalTreeDataset, Long> mapped = new LinkedHashMap<OnOffMusicalTreeDataset, Long>(16, 0.75f, true);
+
+	/**
+	 * Sum of all plane sizes in mapped
+	 */
+	private long mappedBytes = 0;
+
+	/**
+	 * Number of released datasets, for statistics
+	 */
+	private long releases = 0;
+
+	/**
+	 * Creates a corpus store.
+	 *
+	 * @param folder folder to store the planes in. Created if not existing.
+	 * @param mapLimit mapping limit in bytes, zero or less for no limit
+	 * @throws Exception
+	 */
+	public CorpusStore(File folder, long mapLimit) throws Exception {
+		if (!folder.exists() && !folder.mkdirs()) throw new Exception("Could not create corpus folder " + folder.getAbsolutePath());
+		if (!folder.isDirectory()) throw new Exception("Corpus folder " + folder.getAbsolutePath() + " is no folder");
+		this.folder = folder;
+		this.mapLimit = mapLimit;
+	}
+
+	/**
+	 * Returns the key for a dataset: A hash over the source files and all
+	 * parameters affecting the planes. If one of them changes, the planes are generated again.
+	 *
+	 * @param dataFile
+	 * @param referenceFile
+	 * @param frequencies
+	 * @param step
+	 * @param noBlur
+	 * @return
+	 */
+	public String getKey(File dataFile, File referenceFile, double[] frequencies, int step, boolean noBlur) {
+		StringBuilder s = new StringBuilder();
+		s.append(dataFile.getAbsolutePath()).append('|').append(dataFile.length()).append('|').append(dataFile.lastModified()).append('|');
+		s.append(referenceFile.getAbsolutePath()).append('|').append(referenceFile.length()).append('|').append(referenceFile.lastModified()).append('|');
+		s.append(step).append('|').append(noBlur);
+		for(int i=0; i<frequencies.length; i++) {
+			s.append('|').append(frequencies[i]);
+		}
+		return DigestUtils.md5Hex(s.toString());
+	}
+
+	/**
+	 * Determines if the planes for key have been stored.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public boolean contains(String key) {
+		return getFile(key, FILE_SUFFIX_DATA).exists() && getFile(key, FILE_SUFFIX_REFERENCE).exists();
+	}
+
+	/**
+	 * Stores the planes of a dataset. The files are written under temporary names and renamed
+	 * afterwards, so an interrupted run never leaves incomplete planes.
+	 *
+	 * @param key
+	 * @param data
+	 * @param reference
+	 * @throws Exception
+	 */
+	public void store(String key, byte[][] data, byte[][] reference) throws Exception {
+		save(key, FILE_SUFFIX_DATA, data);
+		save(key, FILE_SUFFIX_REFERENCE, reference);
+	}
+
+	/**
+	 * Internal: Saves one plane.
+	 *
+	 * @param key
+	 * @param suffix
+	 * @param plane
+	 * @throws Exception
+	 */
+	private void save(String key, String suffix, byte[][] plane) throws Exception {
+		File f = getFile(key, suffix);
+		File tmp = new File(f.getAbsolutePath() + ".tmp");
+		Spectrogram.fromArray(plane, Spectrogram.FRAME_MAJOR).save(tmp);
+		if (f.exists()) f.delete();
+		if (!tmp.renameTo(f)) throw new Exception("Could not rename " + tmp.getAbsolutePath() + " to " + f.getAbsolutePath());
+	}
+
+	/**
+	 * Maps the planes for key. Returns an array holding the data and the reference plane.
+	 *
+	 * @param key
+	 * @return
+	 * @throws Exception
+	 */
+	public Spectrogram[] map(String key) throws Exception {
+		Spectrogram[] ret = new Spectrogram[2];
+		ret[0] = Spectrogram.map(getFile(key, FILE_SUFFIX_DATA), false);
+		ret[1] = Spectrogram.map(getFile(key, FILE_SUFFIX_REFERENCE), false);
+		return ret;
+	}
+
+	/**
+	 * Internal: Returns the file of a plane.
+	 *
+	 * @param key
+	 * @param suffix
+	 * @return
+	 */
+	private File getFile(String key, String suffix) {
+		return new File(folder, key + suffix);
+	}
+
+	/**
+	 * Marks a dataset as used. If the mapping limit is exceeded afterwards, the least
+	 * recently used other datasets are released. This must not be called while holding the
+	 * lock of a dataset, because releasing locks the released datasets.
+	 *
+	 * @param dataset
+	 * @param bytes size of the dataset´s planes in bytes
+	 * @throws Exception
+	 */
+	public void touch(OnOffMusicalTreeDataset dataset, long bytes) throws Exception {
+		List<OnOffMusicalTreeDataset> victims = null;
+		synchronized(this) {
+			Long old = mapped.put(dataset, bytes);
+			if (old != null) mappedBytes-= old;
+			mappedBytes+= bytes;
+			if (mapLimit <= 0 || mappedBytes <= mapLimit) return;
+
+			// Collect least recently used datasets
+			victims = new ArrayList<OnOffMusicalTreeDataset>();
+			Iterator<Map.Entry<OnOffMusicalTreeDataset, Long>> it = mapped.entrySet().iterator();
+			while(mappedBytes > mapLimit && it.hasNext()) {
+				Map.Entry<OnOffMusicalTreeDataset, Long> e = it.next();
+				if (e.getKey() == dataset) continue;
+				mappedBytes-= e.getValue();
+				victims.add(e.getKey());
+				it.remove();
+			}
+			releases+= victims.size();
+		}
+		for(int i=0; i<victims.size(); i++) {
+			victims.get(i).release();
+		}
+	}
+
+	/**
+	 * Returns the corpus folder.
+	 *
+	 * @return
+	 */
+	public File getFolder() {
+		return folder;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Corpus store " + folder.getAbsolutePath() + ": " + mapped.size() + " datasets mapped (" + (mappedBytes / (1024*1024)) + " MB), mapping limit: " + ((mapLimit > 0) ? (mapLimit / (1024*1024)) + " MB" : "unlimited") + ", releases: " + releases;
+	}
+}
@@ -8,6 +8,7 @@ import de.lmu.dbs.musicalforest.Action;
 import de.lmu.dbs.musicalforest.actions.GenerateDataAction;
 import de.lmu.dbs.musicalforest.midi.MIDIAdapter;
 import de.lmu.dbs.jforest.core.Dataset;
+import de.lmu.dbs.jforest.core2d.Spectrogram;
 import de.lmu.dbs.jforest.core2d.TreeDataset2d;
 import de.lmu.dbs.jspectrum.util.ArrayToImage;
 import de.lmu.dbs.jspectrum.util.ArrayUtils;
@@ -32,6 +33,12 @@ public class OnOffMusicalTreeDataset extends TreeDataset2d {
 	 * IO handler for serialized byte[][] object files
 	 */
 	private static FileIO<byte[][]> dataIo = new FileIO<byte[][]>();
+	
+	/**
+	 * Off heap corpus store. If set, the data and reference planes are memory mapped 
+	 * from the store instead of being held on the heap.
+	 */
+	private static CorpusStore corpus = null;
 
 	/**
 	 * Indicates if the spectrum and midi data has been loaded
@@ -129,7 +136,27 @@ public class OnOffMusicalTreeDataset extends TreeDataset2d {
 	}
 	
 	/**
-	 * Loads the spectral and midi data into memory.
+	 * Sets the off heap corpus store used by all datasets loaded afterwards. 
+	 * Pass null to hold the data on the heap (default).
+	 * 
+	 * @param store
+	 */
+	public static void setCorpusStore(CorpusStore store) {
+		corpus = store;
+	}
+	
+	/**
+	 * Returns the off heap corpus store, or null if none is used.
+	 * 
+	 * @return
+	 */
+	public static CorpusStore getCorpusStore() {
+		return corpus;
+	}
+	
+	/**
+	 * Loads the spectral and midi data into memory. If a corpus store is set, the data 
+	 * is mapped from there, after storing it there first if necessary.
 	 *
 	 * @throws Exception 
 	 * 
@@ -137,6 +164,29 @@ public class OnOffMusicalTreeDataset extends TreeDataset2d {
 	public synchronized void load() throws Exception {
 		if (isLoaded()) return;
 		
+		if (corpus != null) {
+			String key = corpus.getKey(dataFile, referenceFile, frequencies, step, noBlur);
+			if (!corpus.contains(key)) {
+				loadArrays();
+				corpus.store(key, (byte[][])data, (byte[][])reference);
+			}
+			Spectrogram[] planes = corpus.map(key);
+			data = planes[0];
+			reference = planes[1];
+			loaded = true;
+			return;
+		}
+		loadArrays();
+		loaded = true;
+	}
+	
+	/**
+	 * Internal: Loads the spectral data and generates the reference data from MIDI, as 
+	 * byte[][] arrays on the heap.
+	 * 
+	 * @throws Exception
+	 */
+	private void loadArrays() throws Exception {
 		// Load meta data
 		String metafile = dataFile.getParent() + File.separator + Action.DATA_META_FILENAME;
 		DataMeta meta = DataMeta.load(metafile);
@@ -175,8 +225,56 @@ public class OnOffMusicalTreeDataset extends TreeDataset2d {
 			img.save(new File("SyncTest_" + dataFile.getName() + ".png"));
 			System.exit(0);
 		}
-		
-		loaded = true;
+	}
+	
+	/**
+	 * Releases the data of the dataset. It is loaded again when needed next time. 
+	 * Code still holding references to the data can keep on using it.
+	 */
+	@Override
+	public synchronized void release() {
+		data = null;
+		reference = null;
+		loaded = false;
+	}
+	
+	/**
+	 * Returns the data, and marks the dataset as used in the corpus store.
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	@Override
+	public Object getData() throws Exception {
+		Object ret = super.getData();
+		touch(ret);
+		return ret;
+	}
+
+	/**
+	 * Returns the reference, and marks the dataset as used in the corpus store.
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	@Override
+	public Object getReference() throws Exception {
+		Object ret = super.getReference();
+		touch(ret);
+		return ret;
+	}
+	
+	/**
+	 * Internal: Marks the dataset as used in the corpus store, if the plane is mapped from it.
+	 * Must be called without holding the dataset´s lock.
+	 * 
+	 * @param plane
+	 * @throws Exception
+	 */
+	private void touch(Object plane) throws Exception {
+		if (corpus == null || !(plane instanceof Spectrogram)) return;
+		Spectrogram s = (Spectrogram)plane;
+		corpus.touch(this, 2L * s.getFrames() * s.getBins());
 	}
 	
 	/**
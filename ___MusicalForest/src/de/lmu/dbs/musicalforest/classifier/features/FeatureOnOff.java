@@ -4,7 +4,9 @@ import java.util.ArrayList;
 import java.util.List;
 
 import de.lmu.dbs.jforest.core.ForestParameters;
+import de.lmu.dbs.jforest.core2d.Classification2d;
 import de.lmu.dbs.jforest.core2d.Feature2d;
+import de.lmu.dbs.jforest.core2d.Spectrogram;
 import de.lmu.dbs.jspectrum.util.RandomUtils;
 import de.lmu.dbs.musicalforest.util.Harmonics;
 
@@ -70,6 +72,135 @@ public class FeatureOnOff extends Feature2d {
 		}
 	}
 	
+	/**
+	 * Batch version of evaluate(), with hoisted bounds checks. Onset and offset only differ in the
+	 * compared frame offsets, the harmonic sums are the same for both modes. The sums are 
+	 * accumulated as integers, which is exact, so the results equal the ones of evaluate().
+	 * 
+	 * @param data data sample
+	 * @param cla packed classification values
+	 * @param from first value index (inclusive)
+	 * @param to last value index (exclusive)
+	 * @param out result buffer
+	 * @throws Exception 
+	 */
+	@Override
+	public void evaluateBatch(final byte[][] data, final Classification2d cla, final int from, final int to, final float[] out) throws Exception {
+		final int[] harmonics = Harmonics.harmonics;
+		final int numOfHarmonics = harmonics.length;
+		final int height = data[0].length;
+		final int cmp = on ? -uX : vX; // Frame to compare with
+		final int other = on ? vX : -uX; // Frame to weight with
+		final int minX = uX;
+		final int maxX = data.length - vX - 1;
+		final int[] values = cla.values;
+		final int xShift = cla.xShift;
+		final int yShift = cla.yShift;
+		final int yMask = cla.yMask;
+		
+		for(int c=from; c<to; c++) {
+			int v = values[c];
+			int x = v >>> xShift;
+			int y = (v >>> yShift) & yMask;
+			final byte[] row = data[x];
+			if (x < minX || x > maxX || (on && row[y] == 0)) {
+				out[c-from] = -Float.MAX_VALUE;
+				continue;
+			}
+			float diff = (row[y] - data[x+cmp][y]);
+			if (diff <= 0) {
+				out[c-from] = -Float.MAX_VALUE;
+				continue;
+			}
+			float d2 = diff * row[y] * data[x+other][y];
+
+			// Own harmonics. Each harmonic j is also counted j times as foreign harmonic of the lower ones.
+			int harmOwn = 0;
+			int harmForeignUp = 0;
+			for(int j=0; j<numOfHarmonics; j++) {
+				int ny = y + harmonics[j];
+				if (ny >= height) break; 
+				harmOwn+= row[ny];
+				harmForeignUp+= j * row[ny];
+			}
+
+			int harmForeignDn = 0;
+			for(int j=0; j<numOfHarmonics; j++) {
+				int ny = y - harmonics[j];
+				if (ny < 0) break; 
+				harmForeignDn+= row[ny];
+			}
+			
+			out[c-from] = d2 * (harmOwn - harmForeignUp * foreignHarmonicsUpWeight - harmForeignDn * foreignHarmonicsDnWeight);
+		}
+	}
+	
+	/**
+	 * Feature function for data held in a Spectrogram, i.e. mapped from the corpus store.
+	 * Same computation as evaluateBatch(byte[][], ...), reading the spectrogram directly, so 
+	 * off heap data is never copied to the heap.
+	 * 
+	 * @param data data sample
+	 * @param x coordinate in data sample
+	 * @param y coordinate in data sample
+	 * @return
+	 * @throws Exception 
+	 */
+	@Override
+	public float evaluate(final Spectrogram data, final int x, final int y) throws Exception {
+		final int[] harmonics = Harmonics.harmonics;
+		final int numOfHarmonics = harmonics.length;
+		final int height = data.getBins();
+		if (x < uX || x >= data.getFrames() - vX) return -Float.MAX_VALUE;
+		final int val = data.get(x, y);
+		if (on && val == 0) return -Float.MAX_VALUE;
+		float diff = (val - data.get(on ? x-uX : x+vX, y));
+		if (diff <= 0) return -Float.MAX_VALUE;
+		float d2 = diff * val * data.get(on ? x+vX : x-uX, y);
+
+		// Own harmonics. Each harmonic j is also counted j times as foreign harmonic of the lower ones.
+		int harmOwn = 0;
+		int harmForeignUp = 0;
+		for(int j=0; j<numOfHarmonics; j++) {
+			int ny = y + harmonics[j];
+			if (ny >= height) break; 
+			int v = data.get(x, ny);
+			harmOwn+= v;
+			harmForeignUp+= j * v;
+		}
+
+		int harmForeignDn = 0;
+		for(int j=0; j<numOfHarmonics; j++) {
+			int ny = y - harmonics[j];
+			if (ny < 0) break; 
+			harmForeignDn+= data.get(x, ny);
+		}
+		
+		return d2 * (harmOwn - harmForeignUp * foreignHarmonicsUpWeight - harmForeignDn * foreignHarmonicsDnWeight);
+	}
+	
+	/**
+	 * Batch version of evaluate(Spectrogram, x, y).
+	 * 
+	 * @param data data sample
+	 * @param cla packed classification values
+	 * @param from first value index (inclusive)
+	 * @param to last value index (exclusive)
+	 * @param out result buffer
+	 * @throws Exception 
+	 */
+	@Override
+	public void evaluateBatch(final Spectrogram data, final Classification2d cla, final int from, final int to, final float[] out) throws Exception {
+		final int[] values = cla.values;
+		final int xShift = cla.xShift;
+		final int yShift = cla.yShift;
+		final int yMask = cla.yMask;
+		for(int c=from; c<to; c++) {
+			int v = values[c];
+			out[c-from] = evaluate(data, v >>> xShift, (v >>> yShift) & yMask);
+		}
+	}
+	
 	/**
 	 * Feature function called to classify tree nodes.  -> feature5.png, quite good
 	 * 
@@ -212,6 +343,17 @@ public class FeatureOnOff extends Feature2d {
 		return ret;
 	}
 
+	/**
+	 * Returns the discretized parameters for adaptive proposal: Mode, uX, vX and 
+	 * the foreign harmonics weight in four bins.
+	 * 
+	 * @return
+	 */
+	@Override
+	public int[] getParameterBins() {
+		return new int[] {on ? 1 : 0, uX, vX, Math.min((int)(foreignHarmonicsUpWeight * 4), 3)};
+	}
+
 	/**
 	 * Returns a randomly generated threshold candidate for the feature.
 	 * 
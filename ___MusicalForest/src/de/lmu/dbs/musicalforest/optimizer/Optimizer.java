@@ -4,11 +4,12 @@ import gnu.trove.list.TDoubleList;
 import gnu.trove.list.array.TDoubleArrayList;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 
 import de.lmu.dbs.jforest.core.Dataset;
 import de.lmu.dbs.jforest.core.Forest;
-import de.lmu.dbs.jforest.core.TreeDataset;
 import de.lmu.dbs.jforest.core2d.Forest2d;
 import de.lmu.dbs.jforest.core2d.TreeDataset2d;
 import de.lmu.dbs.jforest.util.MeanShift;
@@ -85,6 +86,33 @@ public class Optimizer {
 	 * @throws Exception
 	 */
 	public ForestMeta optimize(Forest2d forest, List<Dataset> datasets, int numOfClassifyingThreads) throws Exception {
+		// Classify all datasets
+		float[][][][] classifications = new float[datasets.size()][][][];
+		for(int i=0; i<datasets.size(); i++) {
+			TreeDataset2d dataset = (TreeDataset2d)datasets.get(i);
+			Object data = dataset.getData(); // byte[][] or Spectrogram, classified without copying
+			System.out.println("Classifying dataset " + (i+1) + "/ " + datasets.size() + ":");
+			classifications[i] = forest.classify2d(data, numOfClassifyingThreads, true, maxDepth);
+		}
+		
+		return optimize(forest, datasets, classifications, null);
+	}
+	
+	/**
+	 * Searches the best thresholds upon given classifications of the datasets, 
+	 * i.e. out-of-bag posteriors collected while training.
+	 * 
+	 * @param forest
+	 * @param datasets dataset of each classification. A dataset may be listed more than once,
+	 *                 i.e. for several segments of its frames
+	 * @param classifications forest output for each dataset, [x][y][class]. The frames have
+	 *                   to be contiguous, as the accuracy tests work on neighbouring frames
+	 * @param references references corresponding to the classifications, or null to 
+	 *                   use the complete references of the datasets
+	 * @return
+	 * @throws Exception
+	 */
+	public ForestMeta optimize(Forest2d forest, List<Dataset> datasets, float[][][][] classifications, byte[][][] references) throws Exception {
 		// Init arrays
 		AccuracyTest[] testsOnset = new AccuracyTest[granularity];
 		for(int i=0; i<testsOnset.length; i++) {
@@ -95,15 +123,6 @@ public class Optimizer {
 			testsOffset[i] = new AccuracyTest(testRadiusX, testRadiusY);
 		}
 		
-		// Classify all datasets
-		float[][][][] classifications = new float[datasets.size()][][][];
-		for(int i=0; i<datasets.size(); i++) {
-			TreeDataset2d dataset = (TreeDataset2d)datasets.get(i);
-			byte[][] data = (byte[][])dataset.getData();
-			System.out.println("Classifying dataset " + (i+1) + "/ " + datasets.size() + ":");
-			classifications[i] = forest.classify2d(data, numOfClassifyingThreads, true, maxDepth);
-		}
-		
 		// Multithreaded thresholds search
 		System.out.println("Search best thresholds...");
 		threadScheduler = new ThreadScheduler(datasets.size());
@@ -111,7 +130,8 @@ public class Optimizer {
 			OptimizerWorkerGroup group = new OptimizerWorkerGroup(threadScheduler, Forest.THREAD_POLLING_INTERVAL, true);
 			for(int i=0; i<datasets.size(); i++) {
 				TreeDataset2d dataset = (TreeDataset2d)datasets.get(i);
-				OptimizerWorker worker = new OptimizerWorker(group, this, forest, dataset, classifications[i], testsOnset, testsOffset, i);
+				if (classifications[i].length == 0) continue;
+				OptimizerWorker worker = new OptimizerWorker(group, this, forest, dataset, (references != null) ? references[i] : null, classifications[i], testsOnset, testsOffset, i);
 				group.add(worker);
 			}
 			group.runGroup();
@@ -146,7 +166,7 @@ public class Optimizer {
 		}
 
 		// Get note length stats
-		TDoubleList noteStats = getNoteLengthDistribution(datasets);
+		TDoubleList noteStats = getNoteLengthDistribution(new ArrayList<Dataset>(new LinkedHashSet<Dataset>(datasets)));
 		int nlavg = ArrayUtils.getMedianIndex(noteStats.toArray());
 		
 		// Return meta object
@@ -162,10 +182,11 @@ public class Optimizer {
 	 * 
 	 * @param forest
 	 * @param dataset
+	 * @param reference reference matching the classification, or null to use the dataset´s reference
 	 * @throws Exception
 	 */
-	public void processThreaded(Worker worker, Forest2d forest, TreeDataset2d dataset, float[][][] classification, AccuracyTest[] testsOnset, AccuracyTest[] testsOffset, int num) throws Exception {
-		byte[][] reference = (byte[][])dataset.getReference();
+	public void processThreaded(Worker worker, Forest2d forest, TreeDataset2d dataset, byte[][] reference, float[][][] classification, AccuracyTest[] testsOnset, AccuracyTest[] testsOffset, int num) throws Exception {
+		if (reference == null) reference = dataset.getReferenceArray();
 		
 		// Split ons and offs from classification output
 		float[][] dataForestOnset = new float[classification.length][classification[0].length];
@@ -220,8 +241,8 @@ public class Optimizer {
 		TDoubleList ret = new TDoubleArrayList();
 		double max = -Double.MAX_VALUE;
 		for(int i=0; i<datasets.size(); i++) {
-			TreeDataset dataset = (TreeDataset)datasets.get(i);
-			byte[][] ref = (byte[][])dataset.getReference();
+			TreeDataset2d dataset = (TreeDataset2d)datasets.get(i);
+			byte[][] ref = dataset.getReferenceArray();
 			for(int x=0; x<ref.length; x++) {
 				for(int y=0; y<ref[0].length; y++) {
 					if (ref[x][y] == 1) {
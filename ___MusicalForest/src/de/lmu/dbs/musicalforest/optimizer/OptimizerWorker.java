@@ -14,6 +14,8 @@ public class OptimizerWorker extends Worker {
 	
 	private TreeDataset2d dataset;
 	
+	private byte[][] reference;
+	
 	private AccuracyTest[] testsOnset;
 	
 	private AccuracyTest[] testsOffset;
@@ -22,11 +24,12 @@ public class OptimizerWorker extends Worker {
 	
 	private float[][][] classification;
 	
-	public OptimizerWorker(WorkerGroup parent, Optimizer optimizer, Forest2d forest, TreeDataset2d dataset, float[][][] classification, AccuracyTest[] testsOnset, AccuracyTest[] testsOffset, int num) {
+	public OptimizerWorker(WorkerGroup parent, Optimizer optimizer, Forest2d forest, TreeDataset2d dataset, byte[][] reference, float[][][] classification, AccuracyTest[] testsOnset, AccuracyTest[] testsOffset, int num) {
 		super(parent);
 		this.optimizer = optimizer;
 		this.forest = forest;
 		this.dataset = dataset;
+		this.reference = reference;
 		this.classification = classification;
 		this.testsOnset = testsOnset;
 		this.testsOffset = testsOffset;
@@ -35,6 +38,6 @@ public class OptimizerWorker extends Worker {
 	
 	@Override
 	public void work() throws Exception {
-		optimizer.processThreaded(this, forest, dataset, classification, testsOnset, testsOffset, num);
+		optimizer.processThreaded(this, forest, dataset, reference, classification, testsOnset, testsOffset, num);
 	}
 }